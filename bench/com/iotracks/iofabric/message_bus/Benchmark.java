@@ -0,0 +1,62 @@
+package com.iotracks.iofabric.message_bus;
+
+/**
+ * minimal benchmark runner, the repo has no JMH
+ * each case is run for warmup rounds first, then measured rounds are reported
+ * results of operations are kept in {@link #sink}, so JIT cannot drop the work
+ *
+ * benchmarks are compiled with "mvn -B test-compile" and run with
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) com.iotracks.iofabric.message_bus.FanOutBenchmark
+ * where cp.txt comes from "mvn -B dependency:build-classpath -Dmdep.outputFile=cp.txt"
+ *
+ */
+final class Benchmark {
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 10;
+
+	static volatile long sink;
+
+	/**
+	 * one round of a benchmark case
+	 *
+	 */
+	interface Round {
+		/**
+		 * @return number of operations done
+		 * @throws Exception
+		 */
+		long run() throws Exception;
+	}
+
+	private Benchmark() {
+	}
+
+	/**
+	 * runs a case and prints operations per second of measured rounds
+	 *
+	 * @param name - name of case
+	 * @param round - {@link Round} to run
+	 * @throws Exception
+	 */
+	static void run(String name, Round round) throws Exception {
+		run(name, WARMUP_ROUNDS, ROUNDS, round);
+	}
+
+	static void run(String name, int warmupRounds, int rounds, Round round) throws Exception {
+		for (int i = 0; i < warmupRounds; i++)
+			round.run();
+
+		double min = Double.MAX_VALUE, max = 0, sum = 0;
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			long operations = round.run();
+			double rate = operations / ((System.nanoTime() - start) / 1e9);
+			min = Math.min(min, rate);
+			max = Math.max(max, rate);
+			sum += rate;
+		}
+		System.out.println(String.format("%-40s %,14.0f ops/s  (min %,.0f, max %,.0f, %d rounds)",
+				name, sum / rounds, min, max, rounds));
+	}
+
+}
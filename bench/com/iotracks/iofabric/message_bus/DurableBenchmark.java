@@ -0,0 +1,109 @@
+package com.iotracks.iofabric.message_bus;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.iotracks.iofabric.element.Route;
+import com.iotracks.iofabric.utils.configuration.Configuration;
+
+/**
+ * publish rate with message durability off and on, single messages and batches
+ * in durable mode server is restarted afterwards and messages left in the route queue are counted
+ * a single durable send waits for its own sync, so it is slow whatever the buffer timeout;
+ * batches and concurrent publishers share syncs
+ *
+ * usage: DurableBenchmark [journal type, default NIO] [journal buffer timeout in microseconds, default 3333]
+ *
+ */
+public class DurableBenchmark {
+	private static final int SINGLE_COUNT = 1_000;
+	private static final int BATCH_COUNT = 20_000;
+	private static final int BATCH = 100;
+	private static final int CONTENT_SIZE = 1024;
+
+	private static final Route route = new Route();
+
+	private static long published;
+
+	private static Message nextMessage() {
+		Message message = new Message("p1");
+		message.setTimestamp(System.currentTimeMillis());
+		message.setContentData(new byte[CONTENT_SIZE]);
+		return message;
+	}
+
+	/**
+	 * starts server the way {@link MessageBus} does, route queues left from previous run are used again
+	 *
+	 */
+	private static MessageBusServer startServer() throws Exception {
+		MessageBusServer server = new MessageBusServer();
+		server.startServer();
+		server.initialize();
+		if (Configuration.isMessageDurability())
+			server.removeStaleQueues(Collections.singletonMap("p1", route));
+		server.createCosumer("p1", "r1");
+		return server;
+	}
+
+	private static void run(boolean durability) throws Exception {
+		Configuration.setMessageDurability(durability);
+		Configuration.setDiskDirectory(Files.createTempDirectory("iofabric-benchmark").toString() + "/");
+		published = 0;
+
+		MessageBusServer server = startServer();
+		String mode = durability ? "durable" : "non-durable";
+		try {
+			server.createProducer("p1");
+			MessagePublisher publisher = new MessagePublisher("p1", route, server.getProducer("p1"));
+			Benchmark.run(mode + ", single", 1, 3, () -> {
+				for (int i = 0; i < SINGLE_COUNT; i++)
+					publisher.publish(nextMessage());
+				published += SINGLE_COUNT;
+				return SINGLE_COUNT;
+			});
+			Benchmark.run(mode + ", batches of " + BATCH, 1, 3, () -> {
+				for (int sent = 0; sent < BATCH_COUNT; sent += BATCH) {
+					List<Message> batch = new ArrayList<>(BATCH);
+					for (int i = 0; i < BATCH; i++)
+						batch.add(nextMessage());
+					publisher.publish(batch);
+				}
+				published += BATCH_COUNT;
+				return BATCH_COUNT;
+			});
+			publisher.close();
+		} finally {
+			server.stopServer();
+		}
+		if (!durability)
+			return;
+
+		server = startServer();
+		try {
+			MessageReceiver receiver = new MessageReceiver("r1");
+			receiver.addConsumer("p1", server.getConsumer("p1", "r1"));
+			long recovered = 0;
+			for (int count; (count = receiver.getMessages().size()) > 0; )
+				recovered += count;
+			System.out.println(String.format("%s, restart: %d of %d messages recovered", mode, recovered, published));
+		} finally {
+			server.stopServer();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		route.getReceivers().add("r1");
+		Configuration.debugging = true;
+		Configuration.setMemoryLimit(200);
+		Configuration.setJournalType(args.length > 0 ? args[0] : "NIO");
+		Configuration.setJournalBufferTimeout(args.length > 1 ? Integer.parseInt(args[1]) : 3333);
+
+		run(false);
+		run(true);
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,159 @@
+package com.iotracks.iofabric.message_bus;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.api.core.client.ClientConsumer;
+import org.hornetq.api.core.client.ClientMessage;
+import org.hornetq.api.core.client.ClientProducer;
+import org.hornetq.api.core.client.ClientSession;
+
+import com.iotracks.iofabric.element.Route;
+import com.iotracks.iofabric.utils.Constants;
+import com.iotracks.iofabric.utils.configuration.Configuration;
+
+/**
+ * deliveries per second from one publisher to many receivers on embedded server
+ * "selector" is previous topology, one queue and a consumer with receiver = '<id>'
+ * filter per receiver, a copy is sent for each receiver
+ * "queues" is current topology, a queue per receiver bound to publisher address, one send
+ * "bus" is current topology through {@link MessagePublisher} and {@link MessageReceiver},
+ * with archive and route properties
+ * messages are sent in batches and receivers are drained after each batch
+ *
+ * usage: FanOutBenchmark [receivers, default 64] [content size, default 1024]
+ *
+ */
+public class FanOutBenchmark {
+	private static final int MESSAGES = 2_000;
+	private static final int BATCH = 100;
+	private static final long RECEIVE_TIMEOUT = 10_000;
+
+	private static int receivers;
+	private static byte[] content;
+
+	private static byte[] nextMessage(String publisher) throws Exception {
+		Message message = new Message(publisher);
+		message.setTimestamp(System.currentTimeMillis());
+		message.setContentData(content);
+		return message.getBytes();
+	}
+
+	private static void drain(ClientConsumer consumer, int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			ClientMessage msg = consumer.receive(RECEIVE_TIMEOUT);
+			if (msg == null)
+				throw new IllegalStateException("message not received in " + RECEIVE_TIMEOUT + " ms");
+			msg.acknowledge();
+		}
+	}
+
+	private static long selectorRound(ClientSession session, ClientProducer producer, List<ClientConsumer> consumers) throws Exception {
+		for (int sent = 0; sent < MESSAGES; sent += BATCH) {
+			for (int i = 0; i < BATCH; i++) {
+				byte[] bytes = nextMessage("selector");
+				for (int r = 0; r < receivers; r++) {
+					ClientMessage msg = session.createMessage(false);
+					msg.putStringProperty("receiver", "r" + r);
+					msg.getBodyBuffer().writeBytes(bytes);
+					producer.send(msg);
+				}
+			}
+			for (ClientConsumer consumer : consumers)
+				drain(consumer, BATCH);
+		}
+		return (long) MESSAGES * receivers;
+	}
+
+	private static long queuesRound(ClientSession session, ClientProducer producer, List<ClientConsumer> consumers) throws Exception {
+		for (int sent = 0; sent < MESSAGES; sent += BATCH) {
+			for (int i = 0; i < BATCH; i++) {
+				ClientMessage msg = session.createMessage(false);
+				msg.getBodyBuffer().writeBytes(nextMessage("queues"));
+				producer.send(msg);
+			}
+			for (ClientConsumer consumer : consumers)
+				drain(consumer, BATCH);
+		}
+		return (long) MESSAGES * receivers;
+	}
+
+	private static long busRound(MessagePublisher publisher, List<MessageReceiver> messageReceivers) throws Exception {
+		for (int sent = 0; sent < MESSAGES; sent += BATCH) {
+			for (int i = 0; i < BATCH; i++) {
+				Message message = new Message("bus");
+				message.setTimestamp(System.currentTimeMillis());
+				message.setContentData(content);
+				publisher.publish(message);
+			}
+			for (MessageReceiver receiver : messageReceivers) {
+				long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT;
+				for (int received = 0; received < BATCH; ) {
+					if (System.currentTimeMillis() > deadline)
+						throw new IllegalStateException("message not received in " + RECEIVE_TIMEOUT + " ms");
+					received += receiver.getMessages().size();
+				}
+			}
+		}
+		return (long) MESSAGES * receivers;
+	}
+
+	public static void main(String[] args) throws Exception {
+		receivers = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		content = new byte[args.length > 1 ? Integer.parseInt(args[1]) : 1024];
+
+		Configuration.debugging = true;
+		Configuration.setDiskDirectory(Files.createTempDirectory("iofabric-benchmark").toString() + "/");
+		Configuration.setMemoryLimit(200);
+		MessageBusServer server = new MessageBusServer();
+		server.startServer();
+		server.initialize();
+		try {
+			ClientSession session = MessageBusServer.getSession();
+			String suffix = ", " + receivers + " receivers";
+
+			SimpleString selectorAddress = new SimpleString(Constants.address + ".benchmark.selector");
+			session.createQueue(selectorAddress, selectorAddress, false);
+			List<ClientConsumer> selectorConsumers = new ArrayList<>();
+			for (int r = 0; r < receivers; r++)
+				selectorConsumers.add(session.createConsumer(selectorAddress, new SimpleString("receiver = 'r" + r + "'")));
+			ClientProducer selectorProducer = session.createProducer(selectorAddress);
+			Benchmark.run("selector" + suffix, 3, 5, () -> selectorRound(session, selectorProducer, selectorConsumers));
+			for (ClientConsumer consumer : selectorConsumers)
+				consumer.close();
+
+			SimpleString queuesAddress = new SimpleString(Constants.address + ".benchmark.queues");
+			List<ClientConsumer> queueConsumers = new ArrayList<>();
+			for (int r = 0; r < receivers; r++) {
+				SimpleString queue = queuesAddress.concat(".r" + r);
+				session.createQueue(queuesAddress, queue, false);
+				queueConsumers.add(session.createConsumer(queue));
+			}
+			ClientProducer queuesProducer = session.createProducer(queuesAddress);
+			Benchmark.run("queues" + suffix, 3, 5, () -> queuesRound(session, queuesProducer, queueConsumers));
+			for (ClientConsumer consumer : queueConsumers)
+				consumer.close();
+
+			Route route = new Route();
+			List<MessageReceiver> messageReceivers = new ArrayList<>();
+			for (int r = 0; r < receivers; r++) {
+				String receiver = "r" + r;
+				route.getReceivers().add(receiver);
+				server.createCosumer("bus", receiver);
+				MessageReceiver messageReceiver = new MessageReceiver(receiver);
+				messageReceiver.addConsumer("bus", server.getConsumer("bus", receiver));
+				messageReceivers.add(messageReceiver);
+			}
+			server.createProducer("bus");
+			MessagePublisher publisher = new MessagePublisher("bus", route, server.getProducer("bus"));
+			Benchmark.run("bus" + suffix, 3, 5, () -> busRound(publisher, messageReceivers));
+			publisher.close();
+		} finally {
+			server.stopServer();
+		}
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,62 @@
+package com.iotracks.iofabric.message_bus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * ids per second of {@link MessageIdGenerator} with 1 to N threads
+ * "uuid" case is the work previous generator did for each id, a synchronized call
+ * and a UUID without dashes; its refill thread could not keep up, so it is an upper bound
+ *
+ * usage: MessageIdGeneratorBenchmark [max threads, default 8] [ids per thread, default 1000000]
+ *
+ */
+public class MessageIdGeneratorBenchmark {
+	private static final Object lock = new Object();
+
+	private static String nextUuid() {
+		synchronized (lock) {
+			return UUID.randomUUID().toString().replaceAll("-", "");
+		}
+	}
+
+	private static long generate(ExecutorService executor, int threads, int count, Supplier<String> generator) throws Exception {
+		List<Callable<Long>> tasks = new ArrayList<>();
+		for (int i = 0; i < threads; i++)
+			tasks.add(() -> {
+				long hash = 0;
+				for (int j = 0; j < count; j++)
+					hash += generator.get().hashCode();
+				return hash;
+			});
+		long hash = 0;
+		for (Future<Long> result : executor.invokeAll(tasks))
+			hash += result.get();
+		Benchmark.sink = hash;
+		return (long) threads * count;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+		MessageIdGenerator idGenerator = new MessageIdGenerator();
+		ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+		try {
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				int t = threads;
+				Benchmark.run("generator, " + threads + " threads", () -> generate(executor, t, count, idGenerator::getNextId));
+				Benchmark.run("uuid, " + threads + " threads", () -> generate(executor, t, count / 10, MessageIdGeneratorBenchmark::nextUuid));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
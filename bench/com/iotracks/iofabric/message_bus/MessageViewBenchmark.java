@@ -0,0 +1,179 @@
+package com.iotracks.iofabric.message_bus;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.iotracks.iofabric.utils.BytesUtil;
+
+/**
+ * decoding speed of {@link Message} and {@link MessageView}
+ * "before" case is previous Message(byte[]) constructor, kept here with the
+ * stream based copyOfRange it used, so both are measured on the same input
+ *
+ * usage: MessageViewBenchmark [content sizes, default 100,65536]
+ *
+ */
+public class MessageViewBenchmark {
+	private static final int COUNT = 100_000;
+
+	/**
+	 * copyOfRange as it was, reads the prefix into a throwaway array first
+	 *
+	 */
+	private static byte[] copyOfRange(byte[] src, int from, int to) {
+		if (from < 0 || from >= src.length || to < from || to > src.length)
+			return new byte[] {};
+		byte[] tmp = new byte[from];
+		byte[] result = new byte[to - from];
+		ByteArrayInputStream input = new ByteArrayInputStream(src);
+		input.read(tmp, 0, tmp.length);
+		input.read(result, 0, result.length);
+		try {
+			input.close();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return result;
+	}
+
+	private static String readString(byte[] raw, int pos, int size) {
+		return size > 0 ? BytesUtil.bytesToString(copyOfRange(raw, pos, pos + size)) : null;
+	}
+
+	/**
+	 * previous Message(byte[]) constructor, every field is decoded eagerly
+	 *
+	 */
+	private static Message decodeBefore(byte[] raw) {
+		Message message = new Message();
+		int pos = 33;
+
+		int size = raw[2];
+		message.setId(readString(raw, pos, size));
+		pos += size;
+		size = BytesUtil.bytesToShort(copyOfRange(raw, 3, 5));
+		message.setTag(readString(raw, pos, size));
+		pos += size;
+		size = raw[5];
+		message.setMessageGroupId(readString(raw, pos, size));
+		pos += size;
+		size = raw[6];
+		if (size > 0)
+			message.setSequenceNumber(BytesUtil.bytesToInteger(copyOfRange(raw, pos, pos + size)));
+		pos += size;
+		size = raw[7];
+		if (size > 0)
+			message.setSequenceTotal(BytesUtil.bytesToInteger(copyOfRange(raw, pos, pos + size)));
+		pos += size;
+		size = raw[8];
+		if (size > 0)
+			message.setPriority(raw[pos]);
+		pos += size;
+		size = raw[9];
+		if (size > 0)
+			message.setTimestamp(BytesUtil.bytesToLong(copyOfRange(raw, pos, pos + size)));
+		pos += size;
+		size = raw[10];
+		message.setPublisher(readString(raw, pos, size));
+		pos += size;
+		size = BytesUtil.bytesToShort(copyOfRange(raw, 11, 13));
+		message.setAuthIdentifier(readString(raw, pos, size));
+		pos += size;
+		size = BytesUtil.bytesToShort(copyOfRange(raw, 13, 15));
+		message.setAuthGroup(readString(raw, pos, size));
+		pos += size;
+		size = raw[15];
+		if (size > 0)
+			message.setChainPosition(BytesUtil.bytesToLong(copyOfRange(raw, pos, pos + size)));
+		pos += size;
+		size = BytesUtil.bytesToShort(copyOfRange(raw, 16, 18));
+		message.setHash(readString(raw, pos, size));
+		pos += size;
+		size = BytesUtil.bytesToShort(copyOfRange(raw, 18, 20));
+		message.setPreviousHash(readString(raw, pos, size));
+		pos += size;
+		size = BytesUtil.bytesToShort(copyOfRange(raw, 20, 22));
+		message.setNonce(readString(raw, pos, size));
+		pos += size;
+		size = raw[22];
+		if (size > 0)
+			message.setDifficultyTarget(BytesUtil.bytesToInteger(copyOfRange(raw, pos, pos + size)));
+		pos += size;
+		size = raw[23];
+		message.setInfoType(readString(raw, pos, size));
+		pos += size;
+		size = raw[24];
+		message.setInfoFormat(readString(raw, pos, size));
+		pos += size;
+		size = BytesUtil.bytesToInteger(copyOfRange(raw, 25, 29));
+		if (size > 0)
+			message.setContextData(copyOfRange(raw, pos, pos + size));
+		pos += size;
+		size = BytesUtil.bytesToInteger(copyOfRange(raw, 29, 33));
+		if (size > 0)
+			message.setContentData(copyOfRange(raw, pos, pos + size));
+		return message;
+	}
+
+	private static byte[] createMessage(int contentSize) throws Exception {
+		Message message = new Message("benchmark-publisher");
+		message.setId(new MessageIdGenerator().getNextId());
+		message.setTag("tag");
+		message.setMessageGroupId("group");
+		message.setSequenceNumber(1);
+		message.setSequenceTotal(10);
+		message.setPriority((byte) 4);
+		message.setTimestamp(System.currentTimeMillis());
+		message.setAuthIdentifier("auth");
+		message.setAuthGroup("group");
+		message.setChainPosition(5);
+		message.setHash("hash");
+		message.setPreviousHash("previous-hash");
+		message.setNonce("nonce");
+		message.setDifficultyTarget(16);
+		message.setInfoType("text");
+		message.setInfoFormat("utf-8");
+		message.setContextData(new byte[16]);
+		message.setContentData(new byte[contentSize]);
+		return message.getBytes();
+	}
+
+	public static void main(String[] args) throws Exception {
+		String sizes = args.length > 0 ? args[0] : "100,65536";
+
+		for (String contentSize : sizes.split(",")) {
+			byte[] raw = createMessage(Integer.parseInt(contentSize.trim()));
+			String suffix = ", " + raw.length + " bytes";
+			if (!decodeBefore(raw).toString().equals(new Message(raw).toString()))
+				throw new IllegalStateException("decoders do not agree");
+
+			Benchmark.run("Message(byte[]) before" + suffix, () -> {
+				long hash = 0;
+				for (int i = 0; i < COUNT; i++)
+					hash += decodeBefore(raw).getTimestamp();
+				Benchmark.sink = hash;
+				return COUNT;
+			});
+			Benchmark.run("Message(byte[])" + suffix, () -> {
+				long hash = 0;
+				for (int i = 0; i < COUNT; i++)
+					hash += new Message(raw).getTimestamp();
+				Benchmark.sink = hash;
+				return COUNT;
+			});
+			ByteBuffer buffer = ByteBuffer.wrap(raw);
+			MessageView view = new MessageView();
+			Benchmark.run("MessageView timestamp+publisher" + suffix, () -> {
+				long hash = 0;
+				for (int i = 0; i < COUNT; i++) {
+					view.wrap(buffer, 0);
+					hash += view.getTimestamp() + view.getPublisher().length();
+				}
+				Benchmark.sink = hash;
+				return COUNT;
+			});
+		}
+	}
+
+}
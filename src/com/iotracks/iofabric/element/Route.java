@@ -1,7 +1,12 @@
 package com.iotracks.iofabric.element;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import com.iotracks.iofabric.utils.Constants.OverflowPolicy;
 
 /**
  * represents IOElements routings
@@ -11,9 +16,42 @@ import java.util.List;
  */
 public class Route {
 	private List<String> receivers;
+	private List<String> externalReceivers;
+	private Map<String, RoutePredicate> predicates;
+	private OverflowPolicy overflowPolicy;
+	private long blockTimeout;
+	private long ttl;
+	private boolean latestOnly;
 	
 	public Route() {
 		receivers = new ArrayList<>();
+		externalReceivers = new ArrayList<>();
+		predicates = new HashMap<>();
+		overflowPolicy = OverflowPolicy.DROP_NEW;
+		blockTimeout = 1000;
+		ttl = 0;
+		latestOnly = false;
+	}
+
+	/**
+	 * creates a copy of a route whose receivers and predicates cannot be changed
+	 * later changes of the original route are not seen by the copy
+	 * 
+	 * @param route - {@link Route} to copy
+	 */
+	public Route(Route route) {
+		receivers = route.receivers == null ? Collections.emptyList() 
+				: Collections.unmodifiableList(new ArrayList<>(route.receivers));
+		externalReceivers = route.externalReceivers == null ? Collections.emptyList() 
+				: Collections.unmodifiableList(new ArrayList<>(route.externalReceivers));
+		Map<String, RoutePredicate> predicatesCopy = new HashMap<>();
+		if (route.predicates != null)
+			route.predicates.forEach((receiver, predicate) -> predicatesCopy.put(receiver, new RoutePredicate(predicate)));
+		predicates = Collections.unmodifiableMap(predicatesCopy);
+		overflowPolicy = route.overflowPolicy;
+		blockTimeout = route.blockTimeout;
+		ttl = route.ttl;
+		latestOnly = route.latestOnly;
 	}
 
 	public List<String> getReceivers() {
@@ -24,6 +62,97 @@ public class Route {
 		this.receivers = receivers;
 	}
 
+	/**
+	 * returns receivers running on other ioFabric instances
+	 * each one is "ID@host:port", port may be omitted
+	 * 
+	 * @return list of external receivers
+	 */
+	public List<String> getExternalReceivers() {
+		return externalReceivers;
+	}
+
+	public void setExternalReceivers(List<String> externalReceivers) {
+		this.externalReceivers = externalReceivers;
+	}
+
+	/**
+	 * returns predicates of receivers which get only part of messages
+	 * 
+	 * @return map of receiver ID to {@link RoutePredicate}
+	 */
+	public Map<String, RoutePredicate> getPredicates() {
+		return predicates;
+	}
+
+	public void setPredicates(Map<String, RoutePredicate> predicates) {
+		this.predicates = predicates;
+	}
+
+	/**
+	 * returns filter of messages for a receiver
+	 * 
+	 * @param receiver - ID of receiver
+	 * @return filter expression or null if receiver gets all messages
+	 */
+	public String getFilter(String receiver) {
+		RoutePredicate predicate = predicates == null ? null : predicates.get(receiver);
+		return predicate == null ? null : predicate.getFilter();
+	}
+
+	/**
+	 * returns what happens to new messages when memory limit of this route is reached
+	 * 
+	 * @return {@link OverflowPolicy}
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * returns how long a publisher waits for free memory before dropping, when policy is BLOCK
+	 * 
+	 * @return timeout in milliseconds
+	 */
+	public long getBlockTimeout() {
+		return blockTimeout;
+	}
+
+	public void setBlockTimeout(long blockTimeout) {
+		this.blockTimeout = blockTimeout;
+	}
+
+	/**
+	 * returns time to live of messages, expired messages are dropped before delivery
+	 * 
+	 * @return ttl in milliseconds, 0 if messages never expire
+	 */
+	public long getTtl() {
+		return ttl;
+	}
+
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * returns whether receivers only get the latest message of this route
+	 * each new message replaces the one waiting in receiver queue
+	 * 
+	 * @return true if latest only
+	 */
+	public boolean isLatestOnly() {
+		return latestOnly;
+	}
+
+	public void setLatestOnly(boolean latestOnly) {
+		this.latestOnly = latestOnly;
+	}
+
 	@Override
 	public String toString() {
 		String in = "\"receivers\" : [";
@@ -31,6 +160,20 @@ public class Route {
 			for (String e : receivers)
 				in += "\"" + e + "\",";
 		in += "]";
+		in += ", \"external\" : [";
+		if (externalReceivers != null)
+			for (String e : externalReceivers)
+				in += "\"" + e + "\",";
+		in += "]";
+		if (predicates != null && !predicates.isEmpty()) {
+			in += ", \"filters\" : {";
+			for (Map.Entry<String, RoutePredicate> e : predicates.entrySet())
+				in += "\"" + e.getKey() + "\" : " + e.getValue() + ",";
+			in += "}";
+		}
+		in += ", \"overflow\" : \"" + overflowPolicy + "\"";
+		in += ", \"ttl\" : " + ttl;
+		in += ", \"latestonly\" : " + latestOnly;
 		return "{" + in + "}";
 	}
 }
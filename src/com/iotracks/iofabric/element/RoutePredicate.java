@@ -0,0 +1,88 @@
+package com.iotracks.iofabric.element;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * represents condition on messages of a route for one receiver
+ * each header field may be limited to a list of values, a message must match all of them
+ *
+ */
+public class RoutePredicate {
+	public static final String INFO_TYPE = "infotype";
+	public static final String INFO_FORMAT = "infoformat";
+	public static final String TAG = "tag";
+	public static final String GROUP_ID = "messagegroupid";
+	public static final String[] FIELDS = { INFO_TYPE, INFO_FORMAT, TAG, GROUP_ID };
+
+	private final Map<String, List<String>> conditions;
+	private String filter;
+
+	public RoutePredicate() {
+		conditions = new LinkedHashMap<>();
+	}
+
+	/**
+	 * creates a copy of a predicate whose conditions cannot be changed
+	 *
+	 * @param predicate - {@link RoutePredicate} to copy
+	 */
+	public RoutePredicate(RoutePredicate predicate) {
+		Map<String, List<String>> conditionsCopy = new LinkedHashMap<>();
+		synchronized (predicate) {
+			predicate.conditions.forEach((field, values) -> 
+				conditionsCopy.put(field, Collections.unmodifiableList(new ArrayList<>(values))));
+		}
+		conditions = Collections.unmodifiableMap(conditionsCopy);
+	}
+
+	/**
+	 * limits a header field to given values, an empty list means no limit
+	 *
+	 * @param field - one of {@link #FIELDS}
+	 * @param values - accepted values
+	 */
+	public synchronized void addCondition(String field, List<String> values) {
+		if (values == null || values.isEmpty())
+			return;
+		conditions.put(field, values);
+		filter = null;
+	}
+
+	public Map<String, List<String>> getConditions() {
+		return conditions;
+	}
+
+	/**
+	 * returns predicate as HornetQ filter on message properties with the same names as fields
+	 * filter is built once, broker parses it once when route queue is created
+	 *
+	 * @return filter expression or null if there is no condition
+	 */
+	public synchronized String getFilter() {
+		if (filter != null || conditions.isEmpty())
+			return filter;
+		StringBuilder result = new StringBuilder();
+		conditions.entrySet().forEach(entry -> {
+			if (result.length() > 0)
+				result.append(" AND ");
+			result.append(entry.getKey()).append(" IN (");
+			for (int i = 0; i < entry.getValue().size(); i++) {
+				if (i > 0)
+					result.append(", ");
+				result.append('\'').append(entry.getValue().get(i).replace("'", "''")).append('\'');
+			}
+			result.append(')');
+		});
+		filter = result.toString();
+		return filter;
+	}
+
+	@Override
+	public String toString() {
+		return "\"" + getFilter() + "\"";
+	}
+}
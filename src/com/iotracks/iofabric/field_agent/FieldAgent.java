@@ -13,6 +13,7 @@ import java.security.MessageDigest;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,6 +22,8 @@ import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
 import javax.json.JsonWriter;
 import javax.net.ssl.SSLHandshakeException;
 
@@ -31,12 +34,14 @@ import com.iotracks.iofabric.element.ElementManager;
 import com.iotracks.iofabric.element.PortMapping;
 import com.iotracks.iofabric.element.Registry;
 import com.iotracks.iofabric.element.Route;
+import com.iotracks.iofabric.element.RoutePredicate;
 import com.iotracks.iofabric.local_api.LocalApi;
 import com.iotracks.iofabric.message_bus.MessageBus;
 import com.iotracks.iofabric.process_manager.ProcessManager;
 import com.iotracks.iofabric.status_reporter.StatusReporter;
 import com.iotracks.iofabric.utils.Constants;
 import com.iotracks.iofabric.utils.Constants.ControllerStatus;
+import com.iotracks.iofabric.utils.Constants.OverflowPolicy;
 import com.iotracks.iofabric.utils.Orchestrator;
 import com.iotracks.iofabric.utils.configuration.Configuration;
 import com.iotracks.iofabric.utils.logging.LoggingService;
@@ -101,6 +106,7 @@ public class FieldAgent {
 		result.put("processedmessages", StatusReporter.getMessageBusStatus().getProcessedMessages());
 		result.put("elementmessagecounts", StatusReporter.getMessageBusStatus().getJsonPublishedMessagesPerElement());
 		result.put("messagespeed", StatusReporter.getMessageBusStatus().getAverageSpeed());
+		result.put("bridgestatus", StatusReporter.getMessageBusStatus().getJsonBridges().toString());
 		result.put("lastcommandtime", StatusReporter.getFieldAgentStatus().getLastCommandTime());
 		result.put("version", Constants.VERSION);
 
@@ -420,12 +426,41 @@ public class FieldAgent {
 				Route elementRoute = new Route();
 				String container = route.getString("container");
 
-				JsonArray receivers = route.getJsonArray("receivers");
-				if (receivers.size() == 0)
+				JsonArray receivers;
+				JsonArray external = null;
+				if (route.get("receivers") instanceof JsonArray) {
+					receivers = route.getJsonArray("receivers");
+				} else {
+					JsonObject routeReceivers = route.getJsonObject("receivers");
+					receivers = routeReceivers.getJsonArray("internal");
+					external = routeReceivers.getJsonArray("external");
+				}
+				if (receivers != null)
+					for (int j = 0; j < receivers.size(); j++)
+						elementRoute.getReceivers().add(receivers.getString(j));
+				if (external != null)
+					for (int j = 0; j < external.size(); j++)
+						elementRoute.getExternalReceivers().add(getExternalReceiver(external.get(j)));
+				if (elementRoute.getReceivers().size() == 0 && elementRoute.getExternalReceivers().size() == 0)
 					continue;
-				for (int j = 0; j < receivers.size(); j++) {
-					String receiver = receivers.getString(j);
-					elementRoute.getReceivers().add(receiver);
+				// messages for other instances are kept on disk while link is down, unless route says otherwise
+				if (elementRoute.getExternalReceivers().size() > 0)
+					elementRoute.setOverflowPolicy(OverflowPolicy.PAGE);
+				if (route.containsKey("overflow"))
+					try {
+						elementRoute.setOverflowPolicy(OverflowPolicy.valueOf(route.getString("overflow").toUpperCase()));
+					} catch (Exception e) {
+						LoggingService.logWarning(MODULE_NAME, "invalid overflow policy for " + container + " --> " + e.getMessage());
+					}
+				if (route.containsKey("blocktimeout"))
+					elementRoute.setBlockTimeout(route.getJsonNumber("blocktimeout").longValue());
+				if (route.containsKey("ttl"))
+					elementRoute.setTtl(route.getJsonNumber("ttl").longValue());
+				elementRoute.setLatestOnly(route.getBoolean("latestonly", false));
+				if (route.containsKey("filters")) {
+					JsonObject filters = route.getJsonObject("filters");
+					for (String receiver : filters.keySet())
+						elementRoute.getPredicates().put(receiver, getRoutePredicate(filters.getJsonObject(receiver)));
 				}
 				r.put(container, elementRoute);
 			}
@@ -437,6 +472,46 @@ public class FieldAgent {
 		}
 	}
 
+	/**
+	 * converts filter of a receiver in routing to {@link RoutePredicate}
+	 * each field is a value or an array of accepted values
+	 * 
+	 * @param filter - filter from routing
+	 * @return {@link RoutePredicate}
+	 */
+	private RoutePredicate getRoutePredicate(JsonObject filter) {
+		RoutePredicate predicate = new RoutePredicate();
+		for (String field : RoutePredicate.FIELDS) {
+			JsonValue value = filter.get(field);
+			if (value instanceof JsonString) {
+				predicate.addCondition(field, Collections.singletonList(((JsonString) value).getString()));
+			} else if (value instanceof JsonArray) {
+				List<String> values = new ArrayList<>();
+				for (int i = 0; i < ((JsonArray) value).size(); i++)
+					values.add(((JsonArray) value).getString(i));
+				predicate.addCondition(field, values);
+			}
+		}
+		return predicate;
+	}
+
+	/**
+	 * converts an external receiver of routing to "ID@host:port"
+	 * controller may send it as a string in this form or as an object
+	 * 
+	 * @param receiver - external receiver from routing
+	 * @return external receiver
+	 */
+	private String getExternalReceiver(JsonValue receiver) {
+		if (receiver instanceof JsonString)
+			return ((JsonString) receiver).getString();
+		JsonObject external = (JsonObject) receiver;
+		String result = external.getString("id") + "@" + external.getString("host");
+		if (external.containsKey("port"))
+			result += ":" + external.getInt("port");
+		return result;
+	}
+
 	/**
 	 * gets list of IOElements from file or IOFabric controller
 	 * 
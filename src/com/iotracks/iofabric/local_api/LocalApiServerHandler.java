@@ -36,6 +36,7 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
@@ -56,10 +57,13 @@ public class LocalApiServerHandler extends SimpleChannelInboundHandler<Object>{
 	private byte[] content;
 
 	private final EventExecutorGroup executor;
+	private final EventExecutor publishExecutor;
 
 	public LocalApiServerHandler(EventExecutorGroup executor) {
 		super(false);
 		this.executor = executor;
+		// one executor per channel, so messages of a websocket are published in order
+		this.publishExecutor = executor.next();
 	}
 
 	/**
@@ -91,7 +95,7 @@ public class LocalApiServerHandler extends SimpleChannelInboundHandler<Object>{
 					ControlWebsocketHandler controlSocket = new ControlWebsocketHandler();
 					controlSocket.handleWebSocketFrame(ctx, (WebSocketFrame) msg);
 				} else if (mapName != null && mapName.equals("message")) {
-					MessageWebsocketHandler messageSocket = new MessageWebsocketHandler();
+					MessageWebsocketHandler messageSocket = new MessageWebsocketHandler(publishExecutor);
 					messageSocket.handleWebSocketFrame(ctx, (WebSocketFrame) msg);
 				} else {
 					LoggingService.logWarning(MODULE_NAME, "Cannot initiate real-time service: Context not found");
@@ -163,7 +167,7 @@ public class LocalApiServerHandler extends SimpleChannelInboundHandler<Object>{
 		}
 
 		if (request.getUri().equals("/v2/messages/next")) {
-			Callable<? extends Object> callable = new MessageReceiverHandler(request, ctx.alloc().buffer(), content);
+			Callable<? extends Object> callable = new MessageReceiverHandler(request, ctx.alloc().buffer(), content, executor.next(), ctx.channel());
 			runTask(callable, ctx, request);
 			return;
 		}
@@ -175,7 +179,13 @@ public class LocalApiServerHandler extends SimpleChannelInboundHandler<Object>{
 		}
 
 		if (request.getUri().equals("/v2/messages/query")) {
-			Callable<? extends Object> callable = new QueryMessageReceiverHandler(request, ctx.alloc().buffer(), content);
+			Callable<? extends Object> callable = new QueryMessageReceiverHandler(request, ctx.alloc().buffer(), content, ctx);
+			runTask(callable, ctx, request);
+			return;
+		}
+
+		if (request.getUri().equals("/v2/status/latency")) {
+			Callable<? extends Object> callable = new RouteLatencyHandler(request, ctx.alloc().buffer(), content);
 			runTask(callable, ctx, request);
 			return;
 		}
@@ -241,16 +251,23 @@ public class LocalApiServerHandler extends SimpleChannelInboundHandler<Object>{
 
 	/**
 	 * Helper for request thread
+	 * Task may return a future of the response, to complete it later without holding the thread,
+	 * or write the response itself and return future of the write
 	 * @param Callable, ChannelHandlerContext, FullHttpRequest
 	 * @return void
 	 */
 	private void runTask(Callable<? extends Object> callable, ChannelHandlerContext ctx, HttpRequest req) {
 		final Future<? extends Object> future = executor.submit(callable);
 		future.addListener(new GenericFutureListener<Future<Object>>() {
+			@SuppressWarnings("unchecked")
 			public void operationComplete(Future<Object> future)
 					throws Exception {
-				if (future.isSuccess()) {
+				if (future.isSuccess() && future.get() instanceof Future) {
+					((Future<Object>) future.get()).addListener(this);
+				} else if (future.isSuccess() && future.get() instanceof FullHttpResponse) {
 					sendHttpResponse(ctx, req, (FullHttpResponse)future.get());
+				} else if (future.isSuccess()) {
+					// response has been written by task
 				} else {
 					ctx.fireExceptionCaught(future.cause());
 					ctx.close();
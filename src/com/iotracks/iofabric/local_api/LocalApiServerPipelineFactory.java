@@ -1,5 +1,7 @@
 package com.iotracks.iofabric.local_api;
 
+import com.iotracks.iofabric.utils.Constants;
+
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
@@ -16,6 +18,7 @@ import io.netty.util.concurrent.EventExecutorGroup;
  * @since 2016
  */
 public class LocalApiServerPipelineFactory extends ChannelInitializer<SocketChannel>{
+	private static final int MAX_CONTENT_LENGTH = 64 * Constants.MiB;
 	private final SslContext sslCtx;
 	private final EventExecutorGroup executor;
 	
@@ -36,7 +39,7 @@ public class LocalApiServerPipelineFactory extends ChannelInitializer<SocketChan
 		}
 		pipeline.addLast(new HttpServerCodec());
 //		pipeline.addLast(new HttpRequestDecoder(4 * Constants.KiB, 64 * Constants.KiB, 2 * Constants.MiB));
-		pipeline.addLast(new HttpObjectAggregator(Integer.MAX_VALUE));
+		pipeline.addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH));
 		pipeline.addLast(new LocalApiServerHandler(executor));	
 	}
 }	
\ No newline at end of file
@@ -9,6 +9,7 @@ import com.iotracks.iofabric.message_bus.Message;
  */
 public class MessageCallback {
 	private final String name;
+	private final MessageWebsocketHandler handler = new MessageWebsocketHandler();
 	
 	public MessageCallback(String name) {
 		this.name = name;
@@ -18,9 +19,19 @@ public class MessageCallback {
 	 * Method called from message bus to send real-time messages to the containers
 	 * @param Message
 	 * @return void
+	 * @throws Exception if message could not be handed to the container
 	 */
-	public void sendRealtimeMessage(Message message) {
-		MessageWebsocketHandler handler = new MessageWebsocketHandler();
+	public void sendRealtimeMessage(Message message) throws Exception {
 		handler.sendRealTimeMessage(name, message);
 	}
+
+	/**
+	 * Method called from message bus to forward encoded real-time messages to the containers
+	 * @param byte[]
+	 * @return void
+	 * @throws Exception if message could not be handed to the container
+	 */
+	public void sendRealtimeMessage(byte[] bytes) throws Exception {
+		handler.sendRealTimeMessage(name, bytes);
+	}
 }
\ No newline at end of file
@@ -8,27 +8,36 @@ import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonBuilderFactory;
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
 
 import com.iotracks.iofabric.message_bus.Message;
 import com.iotracks.iofabric.message_bus.MessageBusUtil;
+import com.iotracks.iofabric.utils.Constants;
 import com.iotracks.iofabric.utils.logging.LoggingService;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
 
 /**
  * Handler to deliver the messages to the receiver, if found any.
+ * Request may limit number and size of messages with "maxcount" and "maxbytes",
+ * and wait up to "waitms" milliseconds for messages if there is none.
  * 
  * @author ashita
  * @since 2016
@@ -36,15 +45,29 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 public class MessageReceiverHandler implements Callable<Object> {
 
 	private final String MODULE_NAME = "Local API";
+	private static final long MAX_RESPONSE_BYTES = 32 * Constants.MiB;
+	private static final long MAX_WAIT_MILLIS = 60 * 1000;
+	private static final long RECHECK_INTERVAL_MILLIS = 2000;
 
 	private final HttpRequest req;
 	private ByteBuf outputBuffer;
 	private final byte[] content;
-
-	public MessageReceiverHandler(HttpRequest req, ByteBuf outputBuffer, byte[] content) {
+	private final EventExecutor executor;
+	private final Channel channel;
+	private final MessageBusUtil bus;
+	private String receiverId;
+	private int maxCount;
+	private long maxBytes;
+	private Runnable waiter;
+	private ScheduledFuture<?> recheck;
+
+	public MessageReceiverHandler(HttpRequest req, ByteBuf outputBuffer, byte[] content, EventExecutor executor, Channel channel) {
 		this.req = req;
 		this.outputBuffer = outputBuffer;
 		this.content = content;
+		this.executor = executor;
+		this.channel = channel;
+		this.bus = new MessageBusUtil();
 	}
 
 	/**
@@ -82,15 +105,102 @@ public class MessageReceiverHandler implements Callable<Object> {
 			return new DefaultFullHttpResponse(HTTP_1_1, HttpResponseStatus.BAD_REQUEST, outputBuffer);
 		}
 
-		String receiverId = jsonObject.getString("id");
+		receiverId = jsonObject.getString("id");
+		maxCount = jsonObject.containsKey("maxcount") ? jsonObject.getInt("maxcount") : Integer.MAX_VALUE;
+		maxBytes = jsonObject.containsKey("maxbytes") 
+				? Math.min(jsonObject.getJsonNumber("maxbytes").longValue(), MAX_RESPONSE_BYTES) : MAX_RESPONSE_BYTES;
+		long waitMillis = jsonObject.containsKey("waitms") 
+				? Math.min(jsonObject.getJsonNumber("waitms").longValue(), MAX_WAIT_MILLIS) : 0;
+
+		List<Message> messageList = bus.getMessages(receiverId, maxCount, maxBytes);
+		if (!messageList.isEmpty() || waitMillis == 0)
+			return getResponse(messageList);
+
+		// response is completed when a message is published to receiver or wait time is over,
+		// executor thread is not held meanwhile
+		Promise<Object> promise = executor.newPromise();
+		long deadline = System.currentTimeMillis() + waitMillis;
+		executor.execute(() -> waitForMessages(promise, deadline));
+		return promise;
+	}
+
+	/**
+	 * Wait for messages of the receiver, runs on executor of the request
+	 * message bus wakes it up when messages are added to route queues of receiver,
+	 * it is checked again rarely, in case a wake up is missed
+	 * 
+	 * @param Promise, long
+	 * @return void
+	 */
+	private void waitForMessages(Promise<Object> promise, long deadline) {
+		if (waiter == null) {
+			Runnable task = () -> executor.execute(() -> {
+				waiter = null;
+				poll(promise, deadline);
+			});
+			if (bus.waitForMessages(receiverId, task))
+				waiter = task;
+		}
+		if (recheck != null)
+			recheck.cancel(false);
+		long delay = Math.max(0, Math.min(RECHECK_INTERVAL_MILLIS, deadline - System.currentTimeMillis()));
+		recheck = executor.schedule(() -> poll(promise, deadline), delay, TimeUnit.MILLISECONDS);
+	}
 
+	/**
+	 * Get the messages for a waiting request and complete it if found any or wait time is over
+	 * Messages are acknowledged when received, so none is received after client is gone
+	 * 
+	 * @param Promise, long
+	 * @return void
+	 */
+	private void poll(Promise<Object> promise, long deadline) {
+		if (promise.isDone())
+			return;
+		if (!channel.isActive()) {
+			stopWaiting();
+			outputBuffer.release();
+			promise.setSuccess(null);
+			return;
+		}
+		List<Message> messageList = bus.getMessages(receiverId, maxCount, maxBytes);
+		if (messageList.isEmpty() && System.currentTimeMillis() < deadline) {
+			waitForMessages(promise, deadline);
+			return;
+		}
+		stopWaiting();
+		try {
+			promise.setSuccess(getResponse(messageList));
+		} catch (Exception e) {
+			promise.setFailure(e);
+		}
+	}
+
+	/**
+	 * Stop waiting for messages, so receiver does not keep the request
+	 * 
+	 * @param None
+	 * @return void
+	 */
+	private void stopWaiting() {
+		if (waiter != null)
+			bus.stopWaiting(receiverId, waiter);
+		waiter = null;
+		if (recheck != null)
+			recheck.cancel(false);
+	}
+
+	/**
+	 * Build the response of the messages
+	 * 
+	 * @param List<Message>
+	 * @return FullHttpResponse
+	 */
+	private FullHttpResponse getResponse(List<Message> messageList) {
 		JsonBuilderFactory factory = Json.createBuilderFactory(null);
 		JsonObjectBuilder builder = factory.createObjectBuilder();
 		JsonArrayBuilder messagesArray = factory.createArrayBuilder();
 
-		MessageBusUtil bus = new MessageBusUtil();
-		List<Message> messageList = bus.getMessages(receiverId);
-
 		for (Message msg : messageList) {
 			JsonObject msgJson = msg.toJson();
 			messagesArray.add(msgJson);
@@ -118,6 +228,15 @@ public class MessageReceiverHandler implements Callable<Object> {
 			throw new Exception(" Id not found ");
 		if (jsonObject.getString("id").equals(null) || jsonObject.getString("id").trim().equals(""))
 			throw new Exception(" Id value not found ");
+		for (String limit : new String[] { "maxcount", "maxbytes", "waitms" }) {
+			if (!jsonObject.containsKey(limit))
+				continue;
+			if (!(jsonObject.get(limit) instanceof JsonNumber) || !jsonObject.getJsonNumber(limit).isIntegral())
+				throw new Exception(" " + limit + " is not an integer ");
+			long value = jsonObject.getJsonNumber(limit).longValue();
+			if (value < (limit.equals("waitms") ? 0 : 1) || (limit.equals("maxcount") && value > Integer.MAX_VALUE))
+				throw new Exception(" " + limit + " value out of range ");
+		}
 	}
 
 	/**
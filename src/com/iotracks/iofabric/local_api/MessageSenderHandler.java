@@ -6,13 +6,18 @@ import static io.netty.handler.codec.http.HttpVersion.*;
 
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
 import javax.json.JsonBuilderFactory;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
+import javax.json.JsonStructure;
 
 import com.iotracks.iofabric.message_bus.Message;
 import com.iotracks.iofabric.message_bus.MessageBusUtil;
@@ -67,7 +72,10 @@ public class MessageSenderHandler implements Callable<Object> {
 
 		String msgString = new String(content, StandardCharsets.UTF_8);
 		JsonReader reader = Json.createReader(new StringReader(msgString));
-		JsonObject jsonObject = reader.readObject();
+		JsonStructure json = reader.read();
+		if (json instanceof JsonArray)
+			return handleBatchRequest((JsonArray) json);
+		JsonObject jsonObject = (JsonObject) json;
 
 		try {
 			validateMessage(jsonObject);
@@ -103,6 +111,49 @@ public class MessageSenderHandler implements Callable<Object> {
 		return res;
 	}
 
+	/**
+	 * Publish a burst of messages sent as a json array in one batch
+	 * 
+	 * @param JsonArray
+	 * @return Object
+	 */
+	private Object handleBatchRequest(JsonArray jsonArray) throws Exception {
+		List<Message> messages = new ArrayList<>(jsonArray.size());
+		try {
+			for (int i = 0; i < jsonArray.size(); i++) {
+				JsonObject jsonObject = jsonArray.getJsonObject(i);
+				validateMessage(jsonObject);
+				messages.add(new Message(jsonObject));
+			}
+		} catch (Exception e) {
+			String errorMsg = "Validation Error, " + e.getMessage();
+			LoggingService.logWarning(MODULE_NAME, errorMsg);
+			outputBuffer.writeBytes(errorMsg.getBytes());
+			return new DefaultFullHttpResponse(HTTP_1_1, HttpResponseStatus.BAD_REQUEST, outputBuffer);
+		}
+
+		MessageBusUtil bus = new MessageBusUtil();
+		bus.publishBatch(messages);
+
+		JsonBuilderFactory factory = Json.createBuilderFactory(null);
+		JsonObjectBuilder builder = factory.createObjectBuilder();
+		JsonArrayBuilder messagesArray = factory.createArrayBuilder();
+		for (Message message : messages) {
+			messagesArray.add(factory.createObjectBuilder()
+					.add("timestamp", message.getTimestamp())
+					.add("id", message.getId()));
+		}
+		builder.add("status", "okay");
+		builder.add("count", messages.size());
+		builder.add("messages", messagesArray);
+
+		String sendMessageResult = builder.build().toString();
+		outputBuffer.writeBytes(sendMessageResult.getBytes());
+		FullHttpResponse res = new DefaultFullHttpResponse(HTTP_1_1, OK, outputBuffer);
+		HttpHeaders.setContentLength(res, outputBuffer.readableBytes());
+		return res;
+	}
+
 	/**
 	 * Validate the request and the message to be publish
 	 * 
@@ -8,6 +8,7 @@ import com.iotracks.iofabric.message_bus.Message;
  * @since 2016
  */
 public class MessageSentInfo {
+	byte[] bytes;
 	Message message;
 	int sendTryCount = 0;
 	long timeMillis;
@@ -15,7 +16,12 @@ public class MessageSentInfo {
 	
 
 	MessageSentInfo(Message message, int count, long timeMillis){
+		this(message.getBytes(), count, timeMillis);
 		this.message = message;
+	}
+
+	MessageSentInfo(byte[] bytes, int count, long timeMillis){
+		this.bytes = bytes;
 		this.sendTryCount = count;
 		this.timeMillis = timeMillis;
 	}
@@ -29,11 +35,13 @@ public class MessageSentInfo {
 	}
 	
 	/**
-	 * Get message
+	 * Get message, decoded on first call
 	 * @param none
 	 * @return Message
 	 */
 	public Message getMessage() {
+		if (message == null)
+			message = new Message(bytes);
 		return message;
 	}
 	
@@ -44,6 +52,16 @@ public class MessageSentInfo {
 	 */
 	public void setMessage(Message message) {
 		this.message = message;
+		this.bytes = message.getBytes();
+	}
+
+	/**
+	 * Get encoded message
+	 * @param none
+	 * @return byte[]
+	 */
+	public byte[] getBytes() {
+		return bytes;
 	}
 	
 	/**
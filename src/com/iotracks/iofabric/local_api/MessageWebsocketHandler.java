@@ -2,25 +2,38 @@ package com.iotracks.iofabric.local_api;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.HOST;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 
 import com.iotracks.iofabric.message_bus.Message;
 import com.iotracks.iofabric.message_bus.MessageBus;
 import com.iotracks.iofabric.message_bus.MessageBusUtil;
+import com.iotracks.iofabric.message_bus.MessageView;
 import com.iotracks.iofabric.status_reporter.StatusReporter;
 import com.iotracks.iofabric.utils.BytesUtil;
+import com.iotracks.iofabric.utils.Constants;
+import com.iotracks.iofabric.utils.configuration.Configuration;
 import com.iotracks.iofabric.utils.logging.LoggingService;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
 
 /**
  * Hadler for the real-time message websocket Open real-time message websocket
@@ -37,10 +50,30 @@ public class MessageWebsocketHandler {
 	private static final Byte OPCODE_MSG = 0xD;
 	private static final Byte OPCODE_RECEIPT = 0xE;
 
-	private final String MODULE_NAME = "Local API";
+	private static final String MODULE_NAME = "Local API";
 	private static final String WEBSOCKET_PATH = "/v2/message/socket";
+	private static final int LARGE_MESSAGE_SIZE = 64 * Constants.KiB;
+	private static final int MAX_FRAME_SIZE = 64 * Constants.MiB;
+	private static final int MAX_FRAGMENTS = 1024;
+	private static final int STATUS_MESSAGE_TOO_BIG = 1009;
+	private static final long WRITE_TIMEOUT = 10000;
+	private static final AttributeKey<CompositeByteBuf> FRAGMENTS = AttributeKey.valueOf("messageFragments");
 
 	private WebSocketServerHandshaker handshaker;
+	private final EventExecutor publishExecutor;
+
+	public MessageWebsocketHandler() {
+		this(null);
+	}
+
+	/**
+	 * @param EventExecutor
+	 *            executor to publish messages on, so I/O thread is not held
+	 *            when a route waits for free memory
+	 */
+	public MessageWebsocketHandler(EventExecutor publishExecutor) {
+		this.publishExecutor = publishExecutor;
+	}
 
 	/**
 	 * Handler to open the websocket for the real-time message websocket
@@ -64,7 +97,7 @@ public class MessageWebsocketHandler {
 
 		// Handshake
 		WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(getWebSocketLocation(req),
-				null, true, Integer.MAX_VALUE);
+				null, true, MAX_FRAME_SIZE);
 		handshaker = wsFactory.newHandshaker(req);
 		if (handshaker == null) {
 			WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
@@ -109,119 +142,283 @@ public class MessageWebsocketHandler {
 			return;
 		}
 
-		if (frame instanceof BinaryWebSocketFrame) {
-			ByteBuf input = frame.content();
-			if (!input.isReadable()) {
+		if (frame instanceof BinaryWebSocketFrame || frame instanceof ContinuationWebSocketFrame) {
+			boolean fragmented = !(frame instanceof BinaryWebSocketFrame && frame.isFinalFragment());
+			ByteBuf input = getFrameContent(ctx, frame);
+			if (input == null)
 				return;
+			try {
+				handleBinaryContent(ctx, input);
+			} finally {
+				if (fragmented)
+					input.release();
 			}
+			return;
+		}
 
-			byte[] byteArray = new byte[input.readableBytes()];
-			int readerIndex = input.readerIndex();
-			input.getBytes(readerIndex, byteArray);
-			Byte opcode = 0;
+		// Check for closing frame
+		if (frame instanceof CloseWebSocketFrame) {
+			close(ctx);
+			return;
+		}
+	}
 
-			if(byteArray.length >= 1){
-				opcode = byteArray[0];
-			}else{
-				return;
-			}
+	/**
+	 * Helper to close the websocket and stop real-time delivery to it
+	 * 
+	 * @param ChannelHandlerContext
+	 * @return void
+	 */
+	private void close(ChannelHandlerContext ctx) {
+		Attribute<CompositeByteBuf> fragments = ctx.channel().attr(FRAGMENTS);
+		if (fragments.get() != null)
+			fragments.getAndRemove().release();
+		ctx.channel().close();
+		MessageBus.getInstance()
+		.disableRealTimeReceiving(WebsocketUtil.getIdForWebsocket(ctx, WebSocketMap.messageWebsocketMap));
+		WebsocketUtil.removeWebsocketContextFromMap(ctx, WebSocketMap.messageWebsocketMap);
+		StatusReporter.setLocalApiStatus().setOpenConfigSocketsCount(WebSocketMap.messageWebsocketMap.size());
+	}
 
-			if (opcode == OPCODE_MSG.intValue()) {
-				if (byteArray.length >= 2) {
-					opcode = byteArray[0];
-					Message message = null;
+	/**
+	 * Helper to collect fragments of a large binary frame
+	 * Fragments are kept as components of one buffer, without copying them
+	 * A frame larger than {@link #MAX_FRAME_SIZE} or split in more than {@link #MAX_FRAGMENTS} 
+	 * fragments closes the websocket
+	 * 
+	 * @param ChannelHandlerContext,
+	 *            WebSocketFrame
+	 * @return content of whole frame or null if more fragments are expected
+	 */
+	private ByteBuf getFrameContent(ChannelHandlerContext ctx, WebSocketFrame frame) {
+		Attribute<CompositeByteBuf> attribute = ctx.channel().attr(FRAGMENTS);
+		CompositeByteBuf fragments = attribute.get();
+		if (fragments == null) {
+			if (frame instanceof ContinuationWebSocketFrame) {
+				LoggingService.logInfo(MODULE_NAME, "continuation frame without first fragment");
+				frame.release();
+				return null;
+			}
+			if (frame.isFinalFragment())
+				return frame.content();
+			fragments = ctx.alloc().compositeBuffer(MAX_FRAGMENTS);
+			attribute.set(fragments);
+		}
+		ByteBuf content = frame.content();
+		if (fragments.numComponents() >= MAX_FRAGMENTS || content.readableBytes() > MAX_FRAME_SIZE - fragments.writerIndex()) {
+			LoggingService.logWarning(MODULE_NAME, "fragmented frame over " + MAX_FRAME_SIZE + " bytes or " 
+					+ MAX_FRAGMENTS + " fragments, closing websocket");
+			frame.release();
+			ctx.channel().writeAndFlush(new CloseWebSocketFrame(STATUS_MESSAGE_TOO_BIG, "message too big"));
+			close(ctx);
+			return null;
+		}
+		fragments.addComponent(content);
+		fragments.writerIndex(fragments.writerIndex() + content.readableBytes());
+		if (!frame.isFinalFragment())
+			return null;
+		attribute.remove();
+		return fragments;
+	}
 
-					if (WebsocketUtil.hasContextInMap(ctx, WebSocketMap.messageWebsocketMap)) {
+	/**
+	 * Helper to handle content of a binary frame
+	 * Messages are read from the frame buffer, without copying whole frame
+	 * 
+	 * @param ChannelHandlerContext,
+	 *            ByteBuf
+	 * @return void
+	 */
+	private void handleBinaryContent(ChannelHandlerContext ctx, ByteBuf input) throws Exception {
+		if (!input.isReadable()) {
+			return;
+		}
 
-						int totalMsgLength = BytesUtil.bytesToInteger(BytesUtil.copyOfRange(byteArray, 1, 5));
+		int length = input.readableBytes();
+		Byte opcode = input.getByte(input.readerIndex());
+
+		if (opcode == OPCODE_MSG.intValue()) {
+			if (length >= 2) {
+				if (WebsocketUtil.hasContextInMap(ctx, WebSocketMap.messageWebsocketMap)) {
+					// a frame may carry a burst of messages, each one prefixed by opcode and length
+					List<Message> messages = new ArrayList<>();
+					List<String> rejected = new ArrayList<>();
+					ByteBuffer frameBuffer = input.nioBuffer().slice();
+					MessageView view = new MessageView();
+					int pos = 0;
+					while (pos + 5 <= length && frameBuffer.get(pos) == OPCODE_MSG.intValue()) {
+						int totalMsgLength = frameBuffer.getInt(pos + 1);
+						// length must fit in the frame and agree with header of message,
+						// otherwise where next message starts is unknown
+						if (totalMsgLength < MessageView.HEADER_SIZE || totalMsgLength > length - pos - 5)
+							break;
+						view.wrap(frameBuffer, pos + 5);
+						if (view.getLength() != totalMsgLength)
+							break;
 						try {
-							message = new Message(BytesUtil.copyOfRange(byteArray, 5, totalMsgLength + 5));
-							LoggingService.logInfo(MODULE_NAME, message.toString());
+							if (!view.isValid())
+								throw new Exception("unsupported version " + view.getVersion());
+							Message message = view.toMessage();
+							// content is not logged, it may be megabytes
+							LoggingService.logInfo(MODULE_NAME, "message from " + message.getPublisher() + ", " + totalMsgLength + " bytes");
+							messages.add(message);
 						} catch (Exception e) {
 							LoggingService.logInfo(MODULE_NAME, "wrong message format  " + e.getMessage());
 							LoggingService.logInfo(MODULE_NAME, "Validation fail");
+							rejected.add(getMessageId(view));
 						}
-
-						MessageBusUtil messageBus = new MessageBusUtil();
-						messageBus.publishMessage(message);
-
-						String messageId = message.getId();
-						Long msgTimestamp = message.getTimestamp();
-						ByteBuf buffer1 = ctx.alloc().buffer();
-
-						buffer1.writeByte(OPCODE_RECEIPT.intValue());
-
-						// send Length
-						int msgIdLength = messageId.length();
-						buffer1.writeByte(msgIdLength);
-						buffer1.writeByte(Long.BYTES);
-
-						// Send opcode, id and timestamp
-						buffer1.writeBytes(messageId.getBytes());
-						buffer1.writeBytes(BytesUtil.longToBytes(msgTimestamp));
-						ctx.channel().write(new BinaryWebSocketFrame(buffer1));
+						pos += totalMsgLength + 5;
 					}
-					return;
+					// rest of the frame cannot be split into messages
+					if (pos < length)
+						rejected.add("");
+
+					if (publishExecutor == null)
+						publish(ctx, messages, rejected);
+					else
+						publishExecutor.execute(() -> publish(ctx, messages, rejected));
 				}
-			} else if (opcode == OPCODE_ACK.intValue()) {
-				WebSocketMap.unackMessageSendingMap.remove(ctx);
 				return;
 			}
-			
+		} else if (opcode == OPCODE_ACK.intValue()) {
+			WebSocketMap.unackMessageSendingMap.remove(ctx);
 			return;
 		}
+	}
 
-		// Check for closing frame
-		if (frame instanceof CloseWebSocketFrame) {
-			ctx.channel().close();
-			MessageBus.getInstance()
-			.disableRealTimeReceiving(WebsocketUtil.getIdForWebsocket(ctx, WebSocketMap.messageWebsocketMap));
-			WebsocketUtil.removeWebsocketContextFromMap(ctx, WebSocketMap.messageWebsocketMap);
-			StatusReporter.setLocalApiStatus().setOpenConfigSocketsCount(WebSocketMap.messageWebsocketMap.size());
-			return;
+	/**
+	 * Helper to publish messages of a frame and send their receipts
+	 * rejected messages get a receipt too, so client hears back about each message of the frame
+	 * 
+	 * @param ChannelHandlerContext,
+	 *            List<Message>, List<String>
+	 * @return void
+	 */
+	private void publish(ChannelHandlerContext ctx, List<Message> messages, List<String> rejected) {
+		MessageBusUtil messageBus = new MessageBusUtil();
+		if (messages.size() == 1)
+			messageBus.publishMessage(messages.get(0));
+		else if (messages.size() > 1)
+			messageBus.publishBatch(messages);
+
+		for (Message message : messages)
+			sendReceipt(ctx, message.getId(), message.getTimestamp());
+		for (String messageId : rejected)
+			sendReceipt(ctx, messageId, null);
+		ctx.channel().flush();
+	}
+
+	/**
+	 * Helper to read id of a message which could not be decoded
+	 * 
+	 * @param MessageView
+	 * @return id or empty string if it cannot be read
+	 */
+	private static String getMessageId(MessageView view) {
+		try {
+			if (!view.isValid())
+				return "";
+			String messageId = view.getId();
+			return messageId == null ? "" : messageId;
+		} catch (Exception e) {
+			return "";
 		}
 	}
 
+	/**
+	 * Helper to send receipt of a message
+	 * receipt without timestamp tells that message has been rejected
+	 * 
+	 * @param ChannelHandlerContext,
+	 *            String, Long
+	 * @return void
+	 */
+	private void sendReceipt(ChannelHandlerContext ctx, String messageId, Long msgTimestamp) {
+		ByteBuf buffer1 = ctx.alloc().buffer();
+
+		buffer1.writeByte(OPCODE_RECEIPT.intValue());
+
+		// send Length
+		int msgIdLength = messageId.length();
+		buffer1.writeByte(msgIdLength);
+		buffer1.writeByte(msgTimestamp == null ? 0 : Long.BYTES);
+
+		// Send opcode, id and timestamp
+		buffer1.writeBytes(messageId.getBytes());
+		if (msgTimestamp != null)
+			buffer1.writeBytes(BytesUtil.longToBytes(msgTimestamp));
+		ctx.channel().write(new BinaryWebSocketFrame(buffer1));
+	}
+
 	/**
 	 * Helper to send real-time messages
 	 * 
 	 * @param String,
 	 *            Message
 	 * @return void
+	 * @throws Exception
 	 */
-	public void sendRealTimeMessage(String receiverId, Message message) {
+	public void sendRealTimeMessage(String receiverId, Message message) throws Exception {
+		sendRealTimeMessage(receiverId, message.getBytes());
+	}
+
+	/**
+	 * Helper to send real-time messages as received from message bus
+	 * Encoded message is forwarded as is, without decoding or re-encoding
+	 * in durable mode returns after message is written to websocket, so caller acknowledges
+	 * only messages that left the daemon
+	 * 
+	 * @param String,
+	 *            byte[]
+	 * @return void
+	 * @throws Exception if there is no websocket for receiver or, in durable mode, the write fails
+	 */
+	public void sendRealTimeMessage(String receiverId, byte[] bytes) throws Exception {
 		ChannelHandlerContext ctx = null;
 		Hashtable<String, ChannelHandlerContext> messageSocketMap = WebSocketMap.messageWebsocketMap;
 
 		if (messageSocketMap != null && messageSocketMap.containsKey(receiverId)) {
 			ctx = messageSocketMap.get(receiverId);
-			WebSocketMap.unackMessageSendingMap.put(ctx, new MessageSentInfo(message, 1, System.currentTimeMillis()));
-
-			int totalMsgLength = 0;
-
-			byte[] bytesMsg = null;
-			try {
-				bytesMsg = message.getBytes();
-			} catch (Exception e) {
-				LoggingService.logWarning(MODULE_NAME, "Problem in retrieving the message");
+			WebSocketMap.unackMessageSendingMap.put(ctx, new MessageSentInfo(bytes, 1, System.currentTimeMillis()));
+
+			ChannelFuture future = ctx.channel().writeAndFlush(new BinaryWebSocketFrame(encodeMessage(ctx, bytes)));
+			if (Configuration.isMessageDurability()) {
+				if (!future.await(WRITE_TIMEOUT))
+					throw new Exception("timed out writing real-time message for " + receiverId);
+				if (!future.isSuccess())
+					throw new Exception("unable to write real-time message for " + receiverId + " --> " + future.cause().getMessage());
 			}
-
-			totalMsgLength = bytesMsg.length;
-
-			ByteBuf buffer1 = ctx.alloc().buffer(totalMsgLength + 5);
-			// Send Opcode
-			buffer1.writeByte(OPCODE_MSG);
-			// Total Length
-			buffer1.writeBytes(BytesUtil.integerToBytes(totalMsgLength));
-			// Message
-			buffer1.writeBytes(bytesMsg);
-			ctx.channel().writeAndFlush(new BinaryWebSocketFrame(buffer1));
 		} else {
-			LoggingService.logWarning(MODULE_NAME, "No active real-time websocket found for " + receiverId);
+			throw new Exception("No active real-time websocket found for " + receiverId);
 		}
 
 	}
 
+	/**
+	 * Builds message frame from encoded message
+	 * Buffer is allocated once with the final frame size
+	 * Large messages are not copied, frame wraps the encoded message after opcode and length
+	 * 
+	 * @param ChannelHandlerContext, byte[]
+	 * @return ByteBuf
+	 */
+	static ByteBuf encodeMessage(ChannelHandlerContext ctx, byte[] bytes) {
+		if (bytes.length >= LARGE_MESSAGE_SIZE) {
+			ByteBuf header = ctx.alloc().buffer(5);
+			header.writeByte(OPCODE_MSG);
+			header.writeInt(bytes.length);
+			return Unpooled.wrappedBuffer(header, Unpooled.wrappedBuffer(bytes));
+		}
+		ByteBuf buffer = ctx.alloc().buffer(bytes.length + 5);
+		// Send Opcode
+		buffer.writeByte(OPCODE_MSG);
+		// Total Length
+		buffer.writeInt(bytes.length);
+		// Message
+		buffer.writeBytes(bytes);
+		return buffer;
+	}
+
 	/**
 	 * Websocket path
 	 * 
@@ -2,10 +2,8 @@ package com.iotracks.iofabric.local_api;
 
 import java.util.Map;
 
-import com.iotracks.iofabric.message_bus.Message;
 import com.iotracks.iofabric.message_bus.MessageBus;
 import com.iotracks.iofabric.status_reporter.StatusReporter;
-import com.iotracks.iofabric.utils.BytesUtil;
 import com.iotracks.iofabric.utils.logging.LoggingService;
 
 import io.netty.buffer.ByteBuf;
@@ -20,7 +18,6 @@ import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
  */
 public class MessageWebsocketWorker implements Runnable{
 	private final String MODULE_NAME = "Local API";
-	private static final Byte OPCODE_MSG = 0xD;
 	private static int count = 0;
 	
 	/**
@@ -65,26 +62,10 @@ public class MessageWebsocketWorker implements Runnable{
 		count++;
 		MessageSentInfo messageContextAndCount = WebSocketMap.unackMessageSendingMap.get(ctx);
 		int tryCount = messageContextAndCount.getSendTryCount();
-		Message message = messageContextAndCount.getMessage();
+		byte[] bytes = messageContextAndCount.getBytes();
 		tryCount = tryCount + 1;
-		WebSocketMap.unackMessageSendingMap.put(ctx, new MessageSentInfo(message, tryCount, System.currentTimeMillis()));
-		ByteBuf buffer1 = ctx.alloc().buffer();
-
-		//Send Opcode
-		buffer1.writeByte(OPCODE_MSG);
-		int totalMsgLength = 0;
-
-		byte[] bytesMsg = null;
-		try {
-			bytesMsg = message.getBytes();
-		} catch (Exception e) {
-			LoggingService.logInfo(MODULE_NAME, "Problem in retrieving the message");
-		}
-		totalMsgLength = bytesMsg.length;
-		//Total Length
-		buffer1.writeBytes(BytesUtil.integerToBytes(totalMsgLength));
-		//Message
-		buffer1.writeBytes(bytesMsg);
+		WebSocketMap.unackMessageSendingMap.put(ctx, new MessageSentInfo(bytes, tryCount, System.currentTimeMillis()));
+		ByteBuf buffer1 = MessageWebsocketHandler.encodeMessage(ctx, bytes);
 		ctx.channel().writeAndFlush(new BinaryWebSocketFrame(buffer1));
 		return;
 	}
@@ -6,46 +6,64 @@ import static io.netty.handler.codec.http.HttpVersion.*;
 
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 import javax.json.Json;
 import javax.json.JsonArray;
-import javax.json.JsonArrayBuilder;
-import javax.json.JsonBuilderFactory;
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
 
+import com.iotracks.iofabric.message_bus.ArchiveQuery;
 import com.iotracks.iofabric.message_bus.Message;
 import com.iotracks.iofabric.message_bus.MessageBusUtil;
 import com.iotracks.iofabric.utils.logging.LoggingService;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 
 /**
  * Handler to deliver the messages to the receiver, if found any. Messages are
  * delivered for the particular query from the receiver.
+ * Messages are read from archive lazily and written as a chunked response, 
+ * so memory used does not depend on size of the result.
+ * Archives of publishers are read in parallel and messages are sent in timestamp order.
+ * Request may limit number and size of messages with "maxcount" and "maxbytes",
+ * response then has a "cursor" to be sent back to get the rest.
  * 
  * @author ashita
  * @since 2016
  */
 public class QueryMessageReceiverHandler implements Callable<Object> {
 	private final String MODULE_NAME = "Local API";
+	private static final int CHUNK_SIZE = 64 * 1024;
 
 	private final HttpRequest req;
 	private ByteBuf outputBuffer;
 	private final byte[] content;
+	private final ChannelHandlerContext ctx;
 
-	public QueryMessageReceiverHandler(HttpRequest req, ByteBuf outputBuffer, byte[] content) {
+	public QueryMessageReceiverHandler(HttpRequest req, ByteBuf outputBuffer, byte[] content, ChannelHandlerContext ctx) {
 		this.req = req;
 		this.outputBuffer = outputBuffer;
 		this.content = content;
+		this.ctx = ctx;
 	}
 
 	/**
@@ -86,44 +104,92 @@ public class QueryMessageReceiverHandler implements Callable<Object> {
 		String receiverId = jsonObject.getString("id");
 		long timeframeStart = Long.parseLong(jsonObject.get("timeframestart").toString());
 		long timeframeEnd = Long.parseLong(jsonObject.get("timeframeend").toString());
-		long actualTimeframeEnd = timeframeEnd;
+		int maxCount = jsonObject.containsKey("maxcount") ? jsonObject.getInt("maxcount") : Integer.MAX_VALUE;
+		long maxBytes = jsonObject.containsKey("maxbytes") ? jsonObject.getJsonNumber("maxbytes").longValue() : Long.MAX_VALUE;
+		JsonObject resume = jsonObject.containsKey("cursor") ? jsonObject.getJsonObject("cursor") : null;
 		
 		JsonArray publishersArray = jsonObject.getJsonArray("publishers");
 
-		JsonBuilderFactory factory = Json.createBuilderFactory(null);
-		JsonObjectBuilder builder = factory.createObjectBuilder();
-		JsonArrayBuilder messagesArray = factory.createArrayBuilder();
-
 		MessageBusUtil bus = new MessageBusUtil();
-		int msgCount = 0;
+		outputBuffer.release();
+		Channel channel = ctx.channel();
+		HttpResponse res = new DefaultHttpResponse(HTTP_1_1, OK);
+		res.headers().set(HttpHeaders.Names.CONTENT_TYPE, "application/json");
+		HttpHeaders.setTransferEncodingChunked(res);
+		channel.write(res);
 
-		for (int i = 0; i < publishersArray.size(); i++) {
-			String publisherId = publishersArray.getString(i);
+		ByteBuf chunk = ctx.alloc().buffer(CHUNK_SIZE);
+		try {
+			chunk.writeBytes(("{\"status\":\"okay\",\"timeframestart\":" + timeframeStart + ",\"messages\":[").getBytes(StandardCharsets.UTF_8));
+			int msgCount = 0;
+			long bytes = 0;
+			long lastTimestamp = timeframeStart;
 
-			List<Message> messageList = bus.messageQuery(publisherId, receiverId, timeframeStart, timeframeEnd);
+			// publishers not in cursor have been read completely
+			Map<String, String> positions = new LinkedHashMap<>();
+			for (int i = 0; i < publishersArray.size(); i++) {
+				String publisherId = publishersArray.getString(i);
+				if (resume == null)
+					positions.put(publisherId, "");
+				else if (resume.containsKey(publisherId))
+					positions.put(publisherId, resume.getString(publisherId));
+			}
 
-			if (messageList != null) {
-				for (Message msg : messageList) {
-					JsonObject msgJson = msg.toJson();
-					messagesArray.add(msgJson);
+			boolean truncated;
+			JsonObjectBuilder cursorBuilder = Json.createObjectBuilder();
+			try (ArchiveQuery query = bus.openQuery(receiverId, positions, timeframeStart, timeframeEnd)) {
+				while (msgCount < maxCount && bytes < maxBytes && query.hasNext()) {
+					Message msg = query.next();
+					byte[] msgJson = msg.toJson().toString().getBytes(StandardCharsets.UTF_8);
+					if (msgCount > 0)
+						chunk.writeByte(',');
+					chunk.writeBytes(msgJson);
 					msgCount++;
+					bytes += msgJson.length;
+					lastTimestamp = msg.getTimestamp();
+					if (chunk.readableBytes() >= CHUNK_SIZE) {
+						writeChunk(channel, chunk);
+						chunk = ctx.alloc().buffer(CHUNK_SIZE);
+					}
 				}
-				
-				actualTimeframeEnd = messageList.get(messageList.size()-1).getTimestamp();
+				truncated = !query.isComplete();
+				if (truncated)
+					query.getPositions().forEach(cursorBuilder::add);
 			}
+
+			// actual end of time frame is the last message sent, if there are more to be read
+			StringBuilder result = new StringBuilder();
+			result.append("],\"count\":").append(msgCount)
+				.append(",\"timeframeend\":").append(truncated ? lastTimestamp : timeframeEnd);
+			if (truncated)
+				result.append(",\"cursor\":").append(cursorBuilder.build().toString());
+			result.append('}');
+			chunk.writeBytes(result.toString().getBytes(StandardCharsets.UTF_8));
+		} catch (Exception e) {
+			// status has been sent already
+			LoggingService.logWarning(MODULE_NAME, "Unable to send query response " + e.getMessage());
+			chunk.release();
+			return channel.close();
 		}
 
-		builder.add("status", "okay");
-		builder.add("count", msgCount);
-		builder.add("timeframestart", timeframeStart);
-		builder.add("timeframeend", actualTimeframeEnd);
-		builder.add("messages", messagesArray);
-
-		String result = builder.build().toString();
-		outputBuffer.writeBytes(result.getBytes());
-		FullHttpResponse res = new DefaultFullHttpResponse(HTTP_1_1, OK, outputBuffer);
-		HttpHeaders.setContentLength(res, outputBuffer.readableBytes());
-		return res;
+		ChannelFuture future = channel.writeAndFlush(new DefaultLastHttpContent(chunk));
+		if (!HttpHeaders.isKeepAlive(req))
+			future.addListener(ChannelFutureListener.CLOSE);
+		return future;
+	}
+
+	/**
+	 * Write a chunk of the response, waits while the client is slower than the archive
+	 * 
+	 * @param Channel, ByteBuf
+	 * @return void
+	 */
+	private void writeChunk(Channel channel, ByteBuf chunk) throws Exception {
+		ChannelFuture future = channel.writeAndFlush(new DefaultHttpContent(chunk));
+		if (!channel.isWritable())
+			future.await();
+		if (!channel.isActive() || (future.isDone() && !future.isSuccess()))
+			throw new Exception("connection closed");
 	}
 
 	/**
@@ -162,6 +228,25 @@ public class QueryMessageReceiverHandler implements Callable<Object> {
 
 		if ((message.getString("id").trim().equals("")))
 			throw new Exception("Error: Missing input field value id");
+
+		for (String limit : new String[] { "maxcount", "maxbytes" }) {
+			if (!message.containsKey(limit))
+				continue;
+			if (!(message.get(limit) instanceof JsonNumber) || !message.getJsonNumber(limit).isIntegral())
+				throw new Exception("Error: Invalid value of " + limit);
+			long value = message.getJsonNumber(limit).longValue();
+			if (value < 1 || (limit.equals("maxcount") && value > Integer.MAX_VALUE))
+				throw new Exception("Error: Invalid value of " + limit);
+		}
+
+		if (message.containsKey("cursor")) {
+			if (message.get("cursor").getValueType() != JsonValue.ValueType.OBJECT)
+				throw new Exception("Error: Invalid value of cursor");
+			for (JsonValue position : message.getJsonObject("cursor").values()) {
+				if (!(position instanceof JsonString) || !((JsonString) position).getString().matches("(\\d+:\\d+)?"))
+					throw new Exception("Error: Invalid value of cursor");
+			}
+		}
 	}
 
 	/**
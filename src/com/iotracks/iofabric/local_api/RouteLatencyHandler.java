@@ -0,0 +1,74 @@
+package com.iotracks.iofabric.local_api;
+
+import static io.netty.handler.codec.http.HttpMethod.GET;
+import static io.netty.handler.codec.http.HttpMethod.POST;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+import java.util.concurrent.Callable;
+
+import javax.json.Json;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObjectBuilder;
+
+import com.iotracks.iofabric.status_reporter.StatusReporter;
+import com.iotracks.iofabric.utils.logging.LoggingService;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * Handler to get the publish-to-delivery latency of the routes
+ * 
+ */
+public class RouteLatencyHandler implements Callable<Object> {
+
+	private final String MODULE_NAME = "Local API";
+
+	private final HttpRequest req;
+	private ByteBuf outputBuffer;
+
+	public RouteLatencyHandler(HttpRequest req, ByteBuf outputBuffer, byte[] content) {
+		this.req = req;
+		this.outputBuffer = outputBuffer;
+	}
+
+	/**
+	 * Handler method to get latency percentiles of every route
+	 * 
+	 * @param None
+	 * @return Object
+	 */
+	public Object handleRouteLatencyRequest() {
+		if (req.getMethod() != GET && req.getMethod() != POST) {
+			LoggingService.logWarning(MODULE_NAME, "Request method not allowed");
+			return new DefaultFullHttpResponse(HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED);
+		}
+
+		JsonBuilderFactory factory = Json.createBuilderFactory(null);
+		JsonObjectBuilder builder = factory.createObjectBuilder();
+		builder.add("status", "okay");
+		builder.add("routes", StatusReporter.getMessageBusStatus().getJsonLatencyPerRoute());
+
+		String result = builder.build().toString();
+		outputBuffer.writeBytes(result.getBytes());
+		FullHttpResponse res = new DefaultFullHttpResponse(HTTP_1_1, OK, outputBuffer);
+		HttpHeaders.setContentLength(res, outputBuffer.readableBytes());
+		return res;
+	}
+
+	/**
+	 * Overriden method of the Callable interface which call the handler method
+	 * 
+	 * @param None
+	 * @return Object
+	 */
+	@Override
+	public Object call() throws Exception {
+		return handleRouteLatencyRequest();
+	}
+}
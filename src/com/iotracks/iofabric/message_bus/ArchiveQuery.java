@@ -0,0 +1,213 @@
+package com.iotracks.iofabric.message_bus;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+import com.iotracks.iofabric.utils.logging.LoggingService;
+
+/**
+ * reads archived {@link Message}s of many publishers in timestamp order
+ * archives are scanned in parallel on executor of message bus, each one page ahead of the merge,
+ * and merged by timestamp with a heap of next {@link Message} of each publisher
+ * so a query takes about as long as scan of the slowest publisher
+ * pages of {@link MessageArchive.Cursor} are used as they are, limited by size of their data,
+ * so a query holds at most two of them per publisher
+ * order is global as long as each archive is in timestamp order
+ *
+ */
+public class ArchiveQuery implements AutoCloseable {
+	private final List<Source> sources = new ArrayList<>();
+	private final PriorityQueue<Source> heap;
+	private Source last;
+
+	/**
+	 * archive of one publisher, with its current page and the one being read
+	 *
+	 */
+	private static class Source {
+		private final String publisher;
+		private final int order;
+		private final Supplier<MessageArchive.Cursor> opener;
+		private final Executor executor;
+		private MessageArchive.Cursor cursor;
+		private CompletableFuture<MessageArchive.Page> prefetch;
+		private MessageArchive.Page page;
+		private int index;
+
+		private Source(String publisher, int order, Supplier<MessageArchive.Cursor> opener, Executor executor) {
+			this.publisher = publisher;
+			this.order = order;
+			this.opener = opener;
+			this.executor = executor;
+		}
+
+		/**
+		 * reads next page, runs in executor
+		 * cursor is opened here, since opening waits for archive writer
+		 *
+		 * @return {@link MessageArchive.Page}, null if there is no more {@link Message}
+		 */
+		private MessageArchive.Page fetch() {
+			if (cursor == null)
+				cursor = opener.get();
+			return cursor == null ? null : cursor.nextPage();
+		}
+
+		private void startFetch() {
+			try {
+				prefetch = CompletableFuture.supplyAsync(this::fetch, executor);
+			} catch (RejectedExecutionException e) {
+				prefetch = new CompletableFuture<>();
+				prefetch.completeExceptionally(e);
+			}
+		}
+
+		/**
+		 * replaces current page with the one read meanwhile and starts reading next one
+		 *
+		 * @return false if there is no more {@link Message}
+		 */
+		private boolean nextPage() {
+			try {
+				page = prefetch.join();
+			} catch (Exception e) {
+				LoggingService.logWarning("Message Archive", "unable to read archive of " + publisher + " --> " + e.getMessage());
+				page = null;
+			}
+			prefetch = null;
+			index = 0;
+			if (page == null || page.size() == 0)
+				return false;
+			startFetch();
+			return true;
+		}
+
+		private boolean hasMessage() {
+			return page != null && index < page.size();
+		}
+
+		private Message peek() {
+			return page.get(index);
+		}
+
+		private boolean isComplete() {
+			return !hasMessage() && prefetch == null && (cursor == null || cursor.isComplete());
+		}
+
+		/**
+		 * returns position of next {@link Message} of this publisher
+		 *
+		 * @return position or null if all have been read
+		 */
+		private String getPosition() {
+			if (hasMessage())
+				return page.getPosition(index);
+			if (isComplete())
+				return null;
+			return cursor == null ? "" : cursor.getPosition();
+		}
+
+		private void close() {
+			try {
+				if (prefetch != null)
+					prefetch.join();
+			} catch (Exception e) {}
+			if (cursor != null)
+				cursor.close();
+		}
+	}
+
+	/**
+	 * starts reading archives of publishers
+	 *
+	 * @param cursors - map of publisher ID to function opening a {@link MessageArchive.Cursor} of its archive,
+	 * function may return null if archive cannot be read
+	 * @param executor - executor to scan archives on
+	 */
+	public ArchiveQuery(Map<String, Supplier<MessageArchive.Cursor>> cursors, Executor executor) {
+		heap = new PriorityQueue<>(Math.max(1, cursors.size()), (s1, s2) -> {
+			int result = Long.compare(s1.peek().getTimestamp(), s2.peek().getTimestamp());
+			return result != 0 ? result : Integer.compare(s1.order, s2.order);
+		});
+		cursors.forEach((publisher, opener) -> {
+			Source source = new Source(publisher, sources.size(), opener, executor);
+			sources.add(source);
+			source.startFetch();
+		});
+		sources.forEach(source -> {
+			if (source.nextPage())
+				heap.add(source);
+		});
+	}
+
+	public boolean hasNext() {
+		advance();
+		return !heap.isEmpty();
+	}
+
+	/**
+	 * returns {@link Message} with lowest timestamp among next ones of publishers
+	 *
+	 * @return {@link Message}
+	 */
+	public Message next() {
+		advance();
+		last = heap.poll();
+		if (last == null)
+			throw new NoSuchElementException();
+		return last.page.get(last.index++);
+	}
+
+	/**
+	 * puts publisher of last returned {@link Message} back to heap, after it is moved forward
+	 * done lazily, so positions stay right until next one is asked for
+	 *
+	 */
+	private void advance() {
+		if (last == null)
+			return;
+		if (last.hasMessage() || last.nextPage())
+			heap.add(last);
+		last = null;
+	}
+
+	/**
+	 * returns whether all {@link Message}s of all publishers have been read
+	 *
+	 * @return true if there is no more {@link Message}
+	 */
+	public boolean isComplete() {
+		advance();
+		return sources.stream().allMatch(Source::isComplete);
+	}
+
+	/**
+	 * returns positions to resume reading from, for publishers not read completely
+	 *
+	 * @return map of publisher ID to position of its {@link MessageArchive.Cursor}
+	 */
+	public Map<String, String> getPositions() {
+		advance();
+		Map<String, String> result = new LinkedHashMap<>();
+		sources.forEach(source -> {
+			String position = source.getPosition();
+			if (position != null)
+				result.put(source.publisher, position);
+		});
+		return result;
+	}
+
+	@Override
+	public void close() {
+		sources.forEach(Source::close);
+		heap.clear();
+	}
+}
@@ -0,0 +1,175 @@
+package com.iotracks.iofabric.message_bus;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.iotracks.iofabric.status_reporter.StatusReporter;
+import com.iotracks.iofabric.utils.Constants.ArchiveDurability;
+import com.iotracks.iofabric.utils.configuration.Configuration;
+import com.iotracks.iofabric.utils.logging.LoggingService;
+
+/**
+ * writes {@link Message}s of all {@link MessageArchive}s in one thread
+ * publishers only queue messages, writer groups them in buffers and writes
+ * them when buffers are full or flush interval passes, and forces them to disk
+ * according to {@link ArchiveDurability}
+ * if queue is full, messages are not archived and counted as dropped
+ *
+ */
+public class ArchiveWriter implements Runnable {
+	private static final String MODULE_NAME = "Message Archive";
+	private static final int MAX_TASKS_PER_GROUP = 1000;
+	private static final long FLUSH_TIMEOUT = 5000;
+
+	private static volatile ArchiveWriter instance;
+
+	private final BlockingQueue<Task> queue;
+
+	private static class Task {
+		private final MessageArchive archive;
+		private final List<byte[]> messages;
+		private final long enqueued;
+		private final CompletableFuture<Void> done;
+		private final boolean close;
+
+		private Task(MessageArchive archive, List<byte[]> messages, boolean close) {
+			this.archive = archive;
+			this.messages = messages;
+			this.close = close;
+			this.enqueued = System.currentTimeMillis();
+			this.done = messages == null ? new CompletableFuture<>() : null;
+		}
+	}
+
+	private ArchiveWriter() {
+		queue = new ArrayBlockingQueue<>(Math.max(1, Configuration.getArchiveQueueSize()));
+	}
+
+	public static ArchiveWriter getInstance() {
+		if (instance == null) {
+			synchronized (ArchiveWriter.class) {
+				if (instance == null) {
+					instance = new ArchiveWriter();
+					Thread writer = new Thread(instance, "MessageArchive : Writer");
+					writer.setDaemon(true);
+					writer.start();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * queues {@link Message}s to be archived, never blocks publisher
+	 *
+	 * @param archive - {@link MessageArchive} of publisher
+	 * @param messages - list of {@link Message} bytes
+	 */
+	public void append(MessageArchive archive, List<byte[]> messages) {
+		if (messages == null || messages.isEmpty())
+			return;
+		if (!queue.offer(new Task(archive, messages, false)))
+			StatusReporter.setMessageBusStatus().increaseArchiveDroppedMessages(messages.size());
+	}
+
+	/**
+	 * waits until {@link Message}s queued before are written to files of archive
+	 *
+	 * @param archive - {@link MessageArchive} to flush
+	 * @param close - closes files after flush
+	 */
+	public void flush(MessageArchive archive, boolean close) {
+		Task task = new Task(archive, null, close);
+		try {
+			if (!queue.offer(task, FLUSH_TIMEOUT, TimeUnit.MILLISECONDS))
+				throw new Exception("writer queue is full");
+			task.done.get(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			LoggingService.logWarning(MODULE_NAME, "unable to flush archive --> " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void run() {
+		Set<MessageArchive> unflushed = new HashSet<>();
+		Set<MessageArchive> unsynced = new HashSet<>();
+		List<Task> tasks = new ArrayList<>();
+		long lastFlush = System.currentTimeMillis();
+		long lastSync = lastFlush;
+		while (true) {
+			ArchiveDurability durability = Configuration.getArchiveDurability();
+			try {
+				Task first = queue.poll(Math.max(1, Configuration.getArchiveFlushInterval()), TimeUnit.MILLISECONDS);
+				if (first != null) {
+					tasks.add(first);
+					queue.drainTo(tasks, MAX_TASKS_PER_GROUP);
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			for (Task task : tasks) {
+				try {
+					if (task.messages != null) {
+						task.archive.write(task.messages);
+						unflushed.add(task.archive);
+					} else if (task.close) {
+						task.archive.closeFiles();
+						unflushed.remove(task.archive);
+						unsynced.remove(task.archive);
+					} else {
+						task.archive.flush();
+						if (unflushed.remove(task.archive) && durability != ArchiveDurability.NONE)
+							unsynced.add(task.archive);
+					}
+				} catch (Throwable e) {
+					// writer thread serves all archives, nothing thrown by one of them may stop it
+					LoggingService.logWarning(MODULE_NAME, "unable to write archive --> " + e.getMessage());
+				} finally {
+					if (task.done != null)
+						task.done.complete(null);
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			boolean groupWritten = !tasks.isEmpty();
+			tasks.clear();
+			if ((durability == ArchiveDurability.BATCH && groupWritten)
+					|| now - lastFlush >= Configuration.getArchiveFlushInterval()) {
+				unflushed.forEach(archive -> {
+					try {
+						archive.flush();
+					} catch (Throwable e) {
+						LoggingService.logWarning(MODULE_NAME, "unable to write archive --> " + e.getMessage());
+					}
+				});
+				if (durability != ArchiveDurability.NONE)
+					unsynced.addAll(unflushed);
+				unflushed.clear();
+				lastFlush = now;
+			}
+			if (durability == ArchiveDurability.BATCH
+					|| (durability == ArchiveDurability.PERIODIC && now - lastSync >= Configuration.getArchiveSyncInterval())) {
+				unsynced.forEach(archive -> {
+					try {
+						archive.sync();
+					} catch (Throwable e) {
+						LoggingService.logWarning(MODULE_NAME, "unable to sync archive --> " + e.getMessage());
+					}
+				});
+				unsynced.clear();
+				lastSync = now;
+			}
+
+			Task oldest = queue.peek();
+			StatusReporter.setMessageBusStatus().setArchiveLag(queue.size(),
+					oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - oldest.enqueued));
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.iotracks.iofabric.message_bus;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * status of a bridge forwarding messages of a publisher to another ioFabric instance
+ * values are sampled from bridge queue by Message Bus monitor
+ *
+ */
+public class BridgeStatus {
+	private final String publisher;
+	private final String link;
+	private final RateMeter forwardRate = new RateMeter();
+	private volatile boolean connected;
+	private volatile long pending;
+	private volatile long forwarded;
+	private long lastAdded;
+	private long lastSample = System.currentTimeMillis();
+
+	public BridgeStatus(String publisher, String link) {
+		this.publisher = publisher;
+		this.link = link;
+	}
+
+	/**
+	 * updates status from counters of bridge queue
+	 * messages added to queue and not in it anymore have been forwarded,
+	 * they are spread over the time since previous sample for the rate
+	 *
+	 * @param connected - whether bridge is connected to remote instance
+	 * @param added - messages added to bridge queue since its creation
+	 * @param count - messages waiting in bridge queue
+	 */
+	public synchronized void sample(boolean connected, long added, long count) {
+		long sent = added - count;
+		long delta = sent - (lastAdded - pending);
+		// queue has been recreated
+		if (delta < 0)
+			delta = sent;
+		long now = System.currentTimeMillis();
+		if (delta > 0) {
+			forwarded += delta;
+			forwardRate.mark(delta, (int) Math.min(Integer.MAX_VALUE, (now - lastSample) / 1000));
+		}
+		lastSample = now;
+		lastAdded = added;
+		pending = count;
+		this.connected = connected;
+	}
+
+	public String getPublisher() {
+		return publisher;
+	}
+
+	public String getLink() {
+		return link;
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * returns number of messages waiting to be forwarded
+	 *
+	 * @return lag in messages
+	 */
+	public long getPending() {
+		return pending;
+	}
+
+	public long getForwarded() {
+		return forwarded;
+	}
+
+	public float getForwardRate(int window) {
+		return forwardRate.getRate(window);
+	}
+
+	/**
+	 * returns status as json
+	 *
+	 * @return json object builder
+	 */
+	public JsonObjectBuilder toJson() {
+		return Json.createObjectBuilder()
+				.add("publisher", publisher)
+				.add("link", link)
+				.add("connected", connected)
+				.add("pending", pending)
+				.add("forwarded", forwarded)
+				.add("forwardrate", getForwardRate(RateMeter.ONE_MINUTE));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s, pending %,d, forwarded %,d, %.2f msg/s",
+				connected ? "connected" : "disconnected", pending, forwarded, getForwardRate(RateMeter.ONE_MINUTE));
+	}
+}
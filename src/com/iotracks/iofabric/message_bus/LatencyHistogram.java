@@ -0,0 +1,130 @@
+package com.iotracks.iofabric.message_bus;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * histogram of latencies in milliseconds
+ * values are counted in log-linear buckets, each power of 2 is split into 8 buckets
+ * so percentiles are within 12.5% of real value
+ * recording does not lock or allocate
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * returns index of bucket containing the value
+	 *
+	 * @param value - latency
+	 * @return bucket index
+	 */
+	private static int getBucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * returns highest value counted in a bucket
+	 *
+	 * @param bucket - bucket index
+	 * @return value
+	 */
+	private static long getBucketLimit(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	/**
+	 * records a latency
+	 * negative values, caused by clock changes, are counted as 0
+	 *
+	 * @param value - latency in milliseconds
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(getBucket(value));
+		count.increment();
+		sum.add(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value))
+			current = max.get();
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public float getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (float) sum.sum() / n;
+	}
+
+	/**
+	 * returns value at given percentile
+	 *
+	 * @param percentile - between 0 and 100
+	 * @return upper limit of bucket containing the percentile, at most max
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(getBucketLimit(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * returns summary of histogram as json
+	 *
+	 * @return json object builder
+	 */
+	public JsonObjectBuilder toJson() {
+		return Json.createObjectBuilder()
+				.add("count", getCount())
+				.add("mean", getMean())
+				.add("p50", getPercentile(50))
+				.add("p99", getPercentile(99))
+				.add("p999", getPercentile(99.9))
+				.add("max", getMax());
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count %,d, p50 %d ms, p99 %d ms, p999 %d ms, max %d ms",
+				getCount(), getPercentile(50), getPercentile(99), getPercentile(99.9), getMax());
+	}
+}
@@ -1,6 +1,6 @@
 package com.iotracks.iofabric.message_bus;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Base64;
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -14,7 +14,7 @@ import com.iotracks.iofabric.utils.BytesUtil;
  *
  */
 public class Message {
-	private final short VERSION = 4; 
+	protected static final short VERSION = 4; 
 
 	private String id;
 	private String tag;
@@ -112,253 +112,41 @@ public class Message {
 	}
 
 	public Message(byte[] rawBytes) {
-		super();
-
-		version = BytesUtil.bytesToShort(BytesUtil.copyOfRange(rawBytes, 0, 2));
-		if (version != VERSION) {
-			// TODO: incompatible version
-			return;
-		}
-
-		int pos = 33;
-
-		int size = rawBytes[2];
-		if (size > 0) {
-			id = BytesUtil.bytesToString(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToShort(BytesUtil.copyOfRange(rawBytes, 3, 5));
-		if (size > 0) {
-			tag = BytesUtil.bytesToString(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = rawBytes[5];
-		if (size > 0) {
-			messageGroupId = BytesUtil.bytesToString(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = rawBytes[6];
-		if (size > 0) {
-			sequenceNumber = BytesUtil.bytesToInteger(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = rawBytes[7];
-		if (size > 0) {
-			sequenceTotal = BytesUtil.bytesToInteger(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = rawBytes[8];
-		if (size > 0) {
-			priority = rawBytes[pos];
-			pos += size;
-		}
-
-		size = rawBytes[9];
-		if (size > 0) {
-			timestamp = BytesUtil.bytesToLong(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = rawBytes[10];
-		if (size > 0) {
-			publisher = BytesUtil.bytesToString(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToShort(BytesUtil.copyOfRange(rawBytes, 11, 13));
-		if (size > 0) {
-			authIdentifier = BytesUtil.bytesToString(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToShort(BytesUtil.copyOfRange(rawBytes, 13, 15));
-		if (size > 0) {
-			authGroup = BytesUtil.bytesToString(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = rawBytes[15];
-		if (size > 0) {
-			chainPosition = BytesUtil.bytesToLong(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToShort(BytesUtil.copyOfRange(rawBytes, 16, 18));
-		if (size > 0) {
-			hash = BytesUtil.bytesToString(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToShort(BytesUtil.copyOfRange(rawBytes, 18, 20));
-		if (size > 0) {
-			previousHash = BytesUtil.bytesToString(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToShort(BytesUtil.copyOfRange(rawBytes, 20, 22));
-		if (size > 0) {
-			nonce = BytesUtil.bytesToString(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = rawBytes[22];
-		if (size > 0) {
-			difficultyTarget = BytesUtil.bytesToInteger(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = rawBytes[23];
-		if (size > 0) {
-			infoType = BytesUtil.bytesToString(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = rawBytes[24];
-		if (size > 0) {
-			infoFormat = BytesUtil.bytesToString(BytesUtil.copyOfRange(rawBytes, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToInteger(BytesUtil.copyOfRange(rawBytes, 25, 29));
-		if (size > 0) {
-			contextData = BytesUtil.copyOfRange(rawBytes, pos, pos + size);
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToInteger(BytesUtil.copyOfRange(rawBytes, 29, 33));
-		if (size > 0) {
-			contentData = BytesUtil.copyOfRange(rawBytes, pos, pos + size);
-		}
+		this(new MessageView().wrap(ByteBuffer.wrap(rawBytes), 0));
 	}
 
 	public Message(byte[] header, byte[] data) {
+		this(new MessageView().wrap(ByteBuffer.wrap(header), 0, ByteBuffer.wrap(data), 0));
+	}
+
+	public Message(MessageView view) {
 		super();
 
-		version = BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 0, 2));
+		version = view.getVersion();
 		if (version != VERSION) {
 			// TODO: incompatible version
 			return;
 		}
 
-		int pos = 0;
-
-		int size = header[2];
-		if (size > 0) {
-			id = BytesUtil.bytesToString(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 3, 5));
-		if (size > 0) {
-			tag = BytesUtil.bytesToString(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = header[5];
-		if (size > 0) {
-			messageGroupId = BytesUtil.bytesToString(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = header[6];
-		if (size > 0) {
-			sequenceNumber = BytesUtil.bytesToInteger(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = header[7];
-		if (size > 0) {
-			sequenceTotal = BytesUtil.bytesToInteger(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = header[8];
-		if (size > 0) {
-			priority = data[pos];
-			pos += size;
-		}
-
-		size = header[9];
-		if (size > 0) {
-			timestamp = BytesUtil.bytesToLong(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = header[10];
-		if (size > 0) {
-			publisher = BytesUtil.bytesToString(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 11, 13));
-		if (size > 0) {
-			authIdentifier = BytesUtil.bytesToString(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 13, 15));
-		if (size > 0) {
-			authGroup = BytesUtil.bytesToString(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = header[15];
-		if (size > 0) {
-			chainPosition = BytesUtil.bytesToLong(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 16, 18));
-		if (size > 0) {
-			hash = BytesUtil.bytesToString(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 18, 20));
-		if (size > 0) {
-			previousHash = BytesUtil.bytesToString(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 20, 22));
-		if (size > 0) {
-			nonce = BytesUtil.bytesToString(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = header[22];
-		if (size > 0) {
-			difficultyTarget = BytesUtil.bytesToInteger(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = header[23];
-		if (size > 0) {
-			infoType = BytesUtil.bytesToString(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = header[24];
-		if (size > 0) {
-			infoFormat = BytesUtil.bytesToString(BytesUtil.copyOfRange(data, pos, pos + size));
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToInteger(BytesUtil.copyOfRange(header, 25, 29));
-		if (size > 0) {
-			contextData = BytesUtil.copyOfRange(data, pos, pos + size);
-			pos += size;
-		}
-
-		size = BytesUtil.bytesToInteger(BytesUtil.copyOfRange(header, 29, 33));
-		if (size > 0) {
-			contentData = BytesUtil.copyOfRange(data, pos, pos + size);
-		}
+		id = view.getId();
+		tag = view.getTag();
+		messageGroupId = view.getMessageGroupId();
+		sequenceNumber = view.getSequenceNumber();
+		sequenceTotal = view.getSequenceTotal();
+		priority = view.getPriority();
+		timestamp = view.getTimestamp();
+		publisher = view.getPublisher();
+		authIdentifier = view.getAuthIdentifier();
+		authGroup = view.getAuthGroup();
+		chainPosition = view.getChainPosition();
+		hash = view.getHash();
+		previousHash = view.getPreviousHash();
+		nonce = view.getNonce();
+		difficultyTarget = view.getDifficultyTarget();
+		infoType = view.getInfoType();
+		infoFormat = view.getInfoFormat();
+		contextData = view.getContextData();
+		contentData = view.getContentData();
 	}
 
 	public String getId() {
@@ -483,159 +271,176 @@ public class Message {
 		if (str == null)
 			return 0;
 		else
-			return str.length();
+			return BytesUtil.utf8Length(str);
+	}
+
+	/**
+	 * computes size of encoded {@link Message} without encoding it
+	 * 
+	 * @return length in bytes
+	 */
+	public int getEncodedSize() {
+		int size = MessageView.HEADER_SIZE;
+		size += getLength(id);
+		size += getLength(tag);
+		size += getLength(messageGroupId);
+		size += sequenceNumber == 0 ? 0 : Integer.BYTES;
+		size += sequenceTotal == 0 ? 0 : Integer.BYTES;
+		size += priority == 0 ? 0 : Byte.BYTES;
+		size += timestamp == 0 ? 0 : Long.BYTES;
+		size += getLength(publisher);
+		size += getLength(authIdentifier);
+		size += getLength(authGroup);
+		size += chainPosition == 0 ? 0 : Long.BYTES;
+		size += getLength(hash);
+		size += getLength(previousHash);
+		size += getLength(nonce);
+		size += difficultyTarget == 0 ? 0 : Integer.BYTES;
+		size += getLength(infoType);
+		size += getLength(infoFormat);
+		size += contextData == null ? 0 : contextData.length;
+		size += contentData == null ? 0 : contentData.length;
+		return size;
+	}
+
+	/**
+	 * encodes {@link Message} into buffer at its current position, in one pass 
+	 * header and data are written at their final offsets, so no temporary array is used
+	 * buffer must have {@link #getEncodedSize()} bytes remaining 
+	 * 
+	 * @param buffer - output buffer
+	 */
+	public void encode(ByteBuffer buffer) {
+		int header = buffer.position();
+		buffer.position(header + MessageView.HEADER_SIZE);
+
+		//version
+		buffer.putShort(header, VERSION);
+
+		// id
+		int len = getLength(id);
+		buffer.put(header + 2, (byte) (len & 0xff));
+		BytesUtil.putUtf8(buffer, id);
+
+		// tag
+		len = getLength(tag);
+		buffer.putShort(header + 3, (short) (len & 0xffff));
+		BytesUtil.putUtf8(buffer, tag);
+
+		//groupid
+		len = getLength(messageGroupId);
+		buffer.put(header + 5, (byte) (len & 0xff));
+		BytesUtil.putUtf8(buffer, messageGroupId);
+
+		// seq no
+		if (sequenceNumber == 0)
+			buffer.put(header + 6, (byte) 0);
+		else {
+			buffer.put(header + 6, (byte) Integer.BYTES);
+			buffer.putInt(sequenceNumber);
+		}
+
+		// seq total
+		if (sequenceTotal == 0)
+			buffer.put(header + 7, (byte) 0);
+		else {
+			buffer.put(header + 7, (byte) Integer.BYTES);
+			buffer.putInt(sequenceTotal);
+		}
+
+		// priority
+		if (priority == 0)
+			buffer.put(header + 8, (byte) 0);
+		else {
+			buffer.put(header + 8, (byte) Byte.BYTES);
+			buffer.put(priority);
+		}
+
+		//timestamp
+		if (timestamp == 0)
+			buffer.put(header + 9, (byte) 0);
+		else {
+			buffer.put(header + 9, (byte) Long.BYTES);
+			buffer.putLong(timestamp);
+		}
+
+		// publisher
+		len = getLength(publisher);
+		buffer.put(header + 10, (byte) (len & 0xff));
+		BytesUtil.putUtf8(buffer, publisher);
+
+		// authIdentifier
+		len = getLength(authIdentifier);
+		buffer.putShort(header + 11, (short) (len & 0xffff));
+		BytesUtil.putUtf8(buffer, authIdentifier);
+
+		// authGroup
+		len = getLength(authGroup);
+		buffer.putShort(header + 13, (short) (len & 0xffff));
+		BytesUtil.putUtf8(buffer, authGroup);
+
+		// chainPosition
+		if (chainPosition == 0)
+			buffer.put(header + 15, (byte) 0);
+		else {
+			buffer.put(header + 15, (byte) Long.BYTES);
+			buffer.putLong(chainPosition);
+		}
+
+		// hash
+		len = getLength(hash);
+		buffer.putShort(header + 16, (short) (len & 0xffff));
+		BytesUtil.putUtf8(buffer, hash);
+
+		// previousHash
+		len = getLength(previousHash);
+		buffer.putShort(header + 18, (short) (len & 0xffff));
+		BytesUtil.putUtf8(buffer, previousHash);
+
+		// nonce
+		len = getLength(nonce);
+		buffer.putShort(header + 20, (short) (len & 0xffff));
+		BytesUtil.putUtf8(buffer, nonce);
+
+		// difficultyTarget
+		if (difficultyTarget == 0)
+			buffer.put(header + 22, (byte) 0);
+		else {
+			buffer.put(header + 22, (byte) Integer.BYTES);
+			buffer.putInt(difficultyTarget);
+		}
+
+		// infoType
+		len = getLength(infoType);
+		buffer.put(header + 23, (byte) (len & 0xff));
+		BytesUtil.putUtf8(buffer, infoType);
+
+		// infoFormat
+		len = getLength(infoFormat);
+		buffer.put(header + 24, (byte) (len & 0xff));
+		BytesUtil.putUtf8(buffer, infoFormat);
+
+		// contextData
+		if (contextData == null)
+			buffer.putInt(header + 25, 0);
+		else {
+			buffer.putInt(header + 25, contextData.length);
+			buffer.put(contextData);
+		}
+
+		// contentData
+		if (contentData == null)
+			buffer.putInt(header + 29, 0);
+		else {
+			buffer.putInt(header + 29, contentData.length);
+			buffer.put(contentData);
+		}
 	}
 
 	public byte[] getBytes() {
-		ByteArrayOutputStream headerBaos = new ByteArrayOutputStream(); 
-		ByteArrayOutputStream dataBaos = new ByteArrayOutputStream(); 
-		try {
-			//version
-			headerBaos.write(BytesUtil.shortToBytes((short) VERSION));
-
-			// id
-			int len = getLength(getId());
-			headerBaos.write((byte) (len & 0xff));
-			if (len > 0)
-				dataBaos.write(BytesUtil.stringToBytes(getId()));
-
-			// tag
-			len = getLength(getTag());
-			headerBaos.write(BytesUtil.shortToBytes((short) (len & 0xffff)));
-			if (len > 0)
-				dataBaos.write(BytesUtil.stringToBytes(getTag()));
-
-			//groupid
-			len = getLength(getMessageGroupId());
-			headerBaos.write((byte) (len & 0xff));
-			if (len > 0)
-				dataBaos.write(BytesUtil.stringToBytes(getMessageGroupId()));
-
-			// seq no
-			if (getSequenceNumber() == 0)
-				headerBaos.write(0);
-			else {
-				dataBaos.write(BytesUtil.integerToBytes(getSequenceNumber()));
-				headerBaos.write(4);
-			}
-
-			// seq total
-			if (getSequenceTotal() == 0)
-				headerBaos.write(0);
-			else {
-				dataBaos.write(BytesUtil.integerToBytes(getSequenceTotal()));
-				headerBaos.write(4);
-			}
-
-
-			// priority
-			if (getPriority() == 0)
-				headerBaos.write(0);
-			else {
-				headerBaos.write(1);
-				dataBaos.write(getPriority());
-			}
-
-			//timestamp
-			if (getTimestamp() == 0)
-				headerBaos.write(0);
-			else {
-				headerBaos.write(8);
-				dataBaos.write(BytesUtil.longToBytes(getTimestamp()));
-			}
-
-			// publisher
-			len = getLength(getPublisher());
-			headerBaos.write((byte) (len & 0xff));
-			if (len > 0)
-				dataBaos.write(BytesUtil.stringToBytes(getPublisher()));
-
-			// authIdentifier
-			len = getLength(getAuthIdentifier());
-			headerBaos.write(BytesUtil.shortToBytes((short) (len & 0xffff)));
-			if (len > 0)
-				dataBaos.write(BytesUtil.stringToBytes(getAuthIdentifier()));
-
-			// authGroup
-			len = getLength(getAuthGroup());
-			headerBaos.write(BytesUtil.shortToBytes((short) (len & 0xffff)));
-			if (len > 0)
-				dataBaos.write(BytesUtil.stringToBytes(getAuthGroup()));
-
-			// chainPosition
-			if (getChainPosition() == 0)
-				headerBaos.write(0);
-			else {
-				headerBaos.write(8);
-				dataBaos.write(BytesUtil.longToBytes(getChainPosition()));
-			}
-
-			// hash
-			len = getLength(getHash());
-			headerBaos.write(BytesUtil.shortToBytes((short) (len & 0xffff)));
-			if (len > 0)
-				dataBaos.write(BytesUtil.stringToBytes(getHash()));
-
-			// previousHash
-			len = getLength(getPreviousHash());
-			headerBaos.write(BytesUtil.shortToBytes((short) (len & 0xffff)));
-			if (len > 0)
-				dataBaos.write(BytesUtil.stringToBytes(getPreviousHash()));
-
-			// nonce
-			len = getLength(getNonce());
-			headerBaos.write(BytesUtil.shortToBytes((short) (len & 0xffff)));
-			if (len > 0) 
-				dataBaos.write(BytesUtil.stringToBytes(getNonce()));
-
-			// difficultyTarget
-			if (getDifficultyTarget() == 0)
-				headerBaos.write(0);
-			else {
-				headerBaos.write(4);
-				dataBaos.write(BytesUtil.integerToBytes(getDifficultyTarget()));
-			}
-
-			// infoType
-			len = getLength(getInfoType());
-			headerBaos.write((byte) (len & 0xff));
-			if (len > 0)
-				dataBaos.write(BytesUtil.stringToBytes(getInfoType()));
-
-			// infoFormat
-			len = getLength(getInfoFormat());
-			headerBaos.write((byte) (len & 0xff));
-			if (len > 0)
-				dataBaos.write(BytesUtil.stringToBytes(getInfoFormat()));
-
-			// contextData
-			if (getContextData() == null)
-				headerBaos.write(BytesUtil.integerToBytes(0));
-			else {
-				headerBaos.write(BytesUtil.integerToBytes(getContextData().length));
-				dataBaos.write(getContextData());
-			}
-
-			// contentData
-			if (getContentData() == null)
-				headerBaos.write(BytesUtil.integerToBytes(0));
-			else {
-				headerBaos.write(BytesUtil.integerToBytes(getContentData().length));
-				dataBaos.write(getContentData());
-			}
-
-			ByteArrayOutputStream result = new ByteArrayOutputStream();
-			headerBaos.writeTo(result);
-			dataBaos.writeTo(result);
-			return result.toByteArray();
-		} catch (Exception e) {
-		} finally {
-			try {
-				headerBaos.close();
-				dataBaos.close();
-			} catch (Exception e) {}
-		}
-		return new byte[] {};
+		byte[] result = new byte[getEncodedSize()];
+		encode(ByteBuffer.wrap(result));
+		return result;
 	}
 
 	@Override
@@ -1,35 +1,109 @@
 package com.iotracks.iofabric.message_bus;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 
 import com.iotracks.iofabric.element.Element;
-import com.iotracks.iofabric.utils.BytesUtil;
 import com.iotracks.iofabric.utils.Constants;
+import com.iotracks.iofabric.utils.Constants.ArchiveDurability;
 import com.iotracks.iofabric.utils.configuration.Configuration;
 import com.iotracks.iofabric.utils.logging.LoggingService;
 
 /**
  * archives received {@link Message} from {@link Element}
+ * each segment has an index file of headers, a data file and a timestamp index file;
+ * timestamp index has a versioned header and fixed width entries of timestamp, highest timestamp so far,
+ * data position, size and checksum, so queries binary search it instead of decoding messages
+ * closed segments are sealed by a footer file of message count, timestamp bounds and data size,
+ * so queries skip them without opening their files
+ * segments archived before versioning (v1) have no checksums and are read as they are
+ * messages are written by {@link ArchiveWriter} thread through buffers, off the publish path
  * 
  * @author saeid
  *
  */
 public class MessageArchive {
 	private final byte HEADER_SIZE = 33;
-	private final short MAXIMUM_MESSAGE_PER_FILE = 1000;
+	private final int INDEX_RECORD_SIZE = HEADER_SIZE + Long.BYTES;
+	private static final int TIMESTAMP_INDEX_HEADER_SIZE = 16;
+	private static final int TIMESTAMP_INDEX_ENTRY_SIZE = 32;
+	private static final int TIMESTAMP_INDEX_MAGIC = 0x494f5458;
+	private static final int FOOTER_MAGIC = 0x494f4654;
+	private static final int FOOTER_SIZE = 40;
+	private static final int SEGMENT_VERSION = 2;
+	private static final int LEGACY_SEGMENT_VERSION = 1;
 	private final int MAXIMUM_ARCHIVE_SIZE_MB = 1;
 
 	private final String name;
 	private String diskDirectory;
 	private String currentFileName;
-	private RandomAccessFile indexFile;
-	private RandomAccessFile dataFile;
+	private final Object segmentLock = new Object();
+	private FileChannel indexChannel;
+	private FileChannel dataChannel;
+	private FileChannel timestampIndexChannel;
+	private ByteBuffer indexBuffer;
+	private ByteBuffer dataBuffer;
+	private ByteBuffer timestampIndexBuffer;
+	private long dataPosition;
+	private long maxTimestamp;
+	private long minTimestamp;
+	private int messageCount;
+	private final CRC32 checksum = new CRC32();
+	private final Map<String, SegmentFooter> footers = new ConcurrentHashMap<>();
+
+	/**
+	 * footer of a sealed segment
+	 * 
+	 */
+	private static class SegmentFooter {
+		private final int version;
+		private final int count;
+		private final long minTimestamp;
+		private final long maxTimestamp;
+		private final long dataSize;
+
+		private SegmentFooter(int version, int count, long minTimestamp, long maxTimestamp, long dataSize) {
+			this.version = version;
+			this.count = count;
+			this.minTimestamp = minTimestamp;
+			this.maxTimestamp = maxTimestamp;
+			this.dataSize = dataSize;
+		}
+
+		private boolean overlaps(long from, long to) {
+			return count > 0 && minTimestamp <= to && maxTimestamp >= from;
+		}
+
+		private ByteBuffer toBytes() {
+			ByteBuffer buffer = ByteBuffer.allocate(FOOTER_SIZE);
+			buffer.putInt(FOOTER_MAGIC).putInt(version).putInt(count)
+				.putLong(minTimestamp).putLong(maxTimestamp).putLong(dataSize);
+			CRC32 footerChecksum = new CRC32();
+			footerChecksum.update(buffer.array(), 0, buffer.position());
+			buffer.putInt((int) footerChecksum.getValue());
+			buffer.flip();
+			return buffer;
+		}
+	}
 	
 	public MessageArchive(String name) {
 		this.name = name;
@@ -37,127 +111,446 @@ public class MessageArchive {
 	}
 	
 	/**
-	 * sets the file name for {@link Message} to be archived
+	 * recovers segments left unsealed by a crash
 	 * 
 	 */
 	protected void init() {
 		currentFileName = "";
 		diskDirectory = Configuration.getDiskDirectory() + "messages/archive/";
 		
-		File lastFile = null;
-		long lastFileTimestamp = 0;
 		final File workingDirectory = new File(diskDirectory);
 		if (!workingDirectory.exists())
 			workingDirectory.mkdirs();
 		
-		FilenameFilter filter = new FilenameFilter() {
+		for (File file : listSegments()) {
+			String baseName = getBaseName(file);
+			if (getFooter(baseName) != null)
+				continue;
+			try {
+				recover(baseName);
+			} catch (Exception e) {
+				LoggingService.logWarning("Message Archive", "unable to recover " + file.getName() + " --> " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * returns index files of segments of this {@link Element}, oldest first
+	 * 
+	 * @return array of {@link File}
+	 */
+	private File[] listSegments() {
+		File[] files = new File(diskDirectory).listFiles(new FilenameFilter() {
 			@Override
 			public boolean accept(File dir, String fileName) {
-				return fileName.substring(0, name.length()).equals(name) && fileName.substring(fileName.indexOf(".")).equals(".idx");
+				return fileName.startsWith(name + "_") && fileName.endsWith(".idx");
 			}
-		};
-		
-		for (File file : workingDirectory.listFiles(filter)) {
-			if (!file.isFile())
-				continue;
-			String filename = file.getName();
-			if (filename.substring(0, name.length()).equals(name)) {
-				String timestampStr = filename.substring(name.length() + 1, filename.indexOf("."));
-				long timestamp = Long.parseLong(timestampStr);
-				if (timestamp > lastFileTimestamp) {
-					lastFileTimestamp = timestamp;
-					lastFile = file; 
+		});
+		if (files == null)
+			return new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+	
+	private String getBaseName(File file) {
+		return diskDirectory + file.getName().substring(0, file.getName().lastIndexOf("."));
+	}
+	
+	/**
+	 * creates index, data and timestamp index files of a new segment for appending
+	 * 
+	 * @param timestamp- timestamp of first {@link Message} in the file
+	 * @throws Exception
+	 */
+	private void openFiles(long timestamp) throws Exception {
+		// next segment may start at the same millisecond as previous one
+		while (new File(diskDirectory + name + "_" + timestamp + ".idx").exists())
+			timestamp++;
+		currentFileName = diskDirectory + name + "_" + timestamp + ".idx";
+		String baseName = currentFileName.substring(0, currentFileName.lastIndexOf("."));
+		synchronized (segmentLock) {
+			indexChannel = FileChannel.open(Paths.get(currentFileName), 
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			dataChannel = FileChannel.open(Paths.get(baseName + ".iomsg"), 
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			timestampIndexChannel = FileChannel.open(Paths.get(baseName + ".tix"), 
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			writeFully(timestampIndexChannel, getTimestampIndexHeader(SEGMENT_VERSION));
+		}
+		dataPosition = 0;
+		messageCount = 0;
+		minTimestamp = Long.MAX_VALUE;
+		maxTimestamp = 0;
+		if (dataBuffer == null) {
+			dataBuffer = ByteBuffer.allocateDirect(Configuration.getArchiveBufferSize());
+			indexBuffer = ByteBuffer.allocateDirect(Math.max(INDEX_RECORD_SIZE, Configuration.getArchiveBufferSize() / 4));
+			timestampIndexBuffer = ByteBuffer.allocateDirect(Math.max(TIMESTAMP_INDEX_ENTRY_SIZE, Configuration.getArchiveBufferSize() / 4));
+		}
+	}
+	
+	private static ByteBuffer getTimestampIndexHeader(int version) {
+		ByteBuffer header = ByteBuffer.allocate(TIMESTAMP_INDEX_HEADER_SIZE);
+		header.putInt(TIMESTAMP_INDEX_MAGIC).putInt(version).putLong(0);
+		header.flip();
+		return header;
+	}
+	
+	/**
+	 * reads version of segment from header of its timestamp index
+	 * 
+	 * @param timestampIndex - timestamp index file
+	 * @return version or 0 if file has no header
+	 * @throws Exception
+	 */
+	private static int getSegmentVersion(RandomAccessFile timestampIndex) throws Exception {
+		if (timestampIndex.length() < TIMESTAMP_INDEX_HEADER_SIZE)
+			return 0;
+		timestampIndex.seek(0);
+		if (timestampIndex.readInt() != TIMESTAMP_INDEX_MAGIC)
+			return 0;
+		return timestampIndex.readInt();
+	}
+	
+	/**
+	 * appends an entry to timestamp index buffer
+	 * 
+	 * @param buffer - buffer of entries
+	 * @param timestamp - timestamp of {@link Message}
+	 * @param dataPos - position of {@link Message} data in data file
+	 * @param maxTimestamp - highest timestamp so far, including this one
+	 * @param dataSize - size of {@link Message} data
+	 * @param crc - checksum of {@link Message}, 0 in v1 segments
+	 */
+	private static void putTimestampEntry(ByteBuffer buffer, long timestamp, long maxTimestamp, long dataPos, int dataSize, int crc) {
+		buffer.putLong(timestamp);
+		buffer.putLong(maxTimestamp);
+		buffer.putLong(dataPos);
+		buffer.putInt(dataSize);
+		buffer.putInt(crc);
+	}
+
+	/**
+	 * adds missing entries of timestamp index of a v1 segment from its index and data files
+	 * v1 segments are indexed on first use, up to first torn or invalid {@link Message}
+	 * v2 entries are written with messages and never rebuilt, since checksums cannot be trusted then
+	 * 
+	 * @param baseName - path of segment files without extension
+	 * @return number of indexed {@link Message}
+	 * @throws Exception
+	 */
+	private int updateTimestampIndex(String baseName) throws Exception {
+		try (RandomAccessFile index = new RandomAccessFile(new File(baseName + ".idx"), "r");
+				RandomAccessFile data = new RandomAccessFile(new File(baseName + ".iomsg"), "r");
+				RandomAccessFile timestampIndex = new RandomAccessFile(new File(baseName + ".tix"), "rw")) {
+			int count = (int) (index.length() / INDEX_RECORD_SIZE);
+			int version = getSegmentVersion(timestampIndex);
+			if (version == 0) {
+				// missing or written before segments were versioned
+				version = LEGACY_SEGMENT_VERSION;
+				timestampIndex.setLength(0);
+				timestampIndex.write(getTimestampIndexHeader(version).array());
+			}
+			int indexed = (int) Math.min(count, (timestampIndex.length() - TIMESTAMP_INDEX_HEADER_SIZE) / TIMESTAMP_INDEX_ENTRY_SIZE);
+			if (version != LEGACY_SEGMENT_VERSION)
+				return indexed;
+			if (timestampIndex.length() != TIMESTAMP_INDEX_HEADER_SIZE + (long) indexed * TIMESTAMP_INDEX_ENTRY_SIZE)
+				timestampIndex.setLength(TIMESTAMP_INDEX_HEADER_SIZE + (long) indexed * TIMESTAMP_INDEX_ENTRY_SIZE);
+			if (indexed == count)
+				return count;
+
+			// may run in a query, while writer thread updates highest timestamp of current segment
+			long indexedMaxTimestamp = 0;
+			if (indexed > 0) {
+				timestampIndex.seek(TIMESTAMP_INDEX_HEADER_SIZE + (long) (indexed - 1) * TIMESTAMP_INDEX_ENTRY_SIZE + Long.BYTES);
+				indexedMaxTimestamp = timestampIndex.readLong();
+			}
+			byte[] headers = new byte[(count - indexed) * INDEX_RECORD_SIZE];
+			index.seek((long) indexed * INDEX_RECORD_SIZE);
+			index.readFully(headers);
+			ByteBuffer headersBuffer = ByteBuffer.wrap(headers);
+			ByteBuffer entries = ByteBuffer.allocate((count - indexed) * TIMESTAMP_INDEX_ENTRY_SIZE);
+			MessageView view = new MessageView();
+			for (int offset = 0; offset < headers.length; offset += INDEX_RECORD_SIZE) {
+				view.wrap(headersBuffer, offset, null, 0);
+				long dataPos = headersBuffer.getLong(offset + HEADER_SIZE);
+				if (!view.isValid() || dataPos < 0 || dataPos + view.getDataSize() > data.length())
+					break;
+				int dataSize = view.getDataSize();
+				byte[] messageData = new byte[dataSize];
+				data.seek(dataPos);
+				data.readFully(messageData);
+				view.wrap(headersBuffer, offset, ByteBuffer.wrap(messageData), 0);
+				indexedMaxTimestamp = Math.max(indexedMaxTimestamp, view.getTimestamp());
+				putTimestampEntry(entries, view.getTimestamp(), indexedMaxTimestamp, dataPos, dataSize, 0);
+			}
+			timestampIndex.seek(timestampIndex.length());
+			timestampIndex.write(entries.array(), 0, entries.position());
+			return indexed + entries.position() / TIMESTAMP_INDEX_ENTRY_SIZE;
+		}
+	}
+	
+	/**
+	 * truncates torn tail of a segment left unsealed by a crash and seals it
+	 * {@link Message}s are kept up to first one whose data is missing or whose checksum does not match
+	 * 
+	 * @param baseName - path of segment files without extension
+	 * @throws Exception
+	 */
+	private void recover(String baseName) throws Exception {
+		int count = updateTimestampIndex(baseName);
+		SegmentFooter footer;
+		try (RandomAccessFile index = new RandomAccessFile(new File(baseName + ".idx"), "rw");
+				RandomAccessFile data = new RandomAccessFile(new File(baseName + ".iomsg"), "rw");
+				RandomAccessFile timestampIndex = new RandomAccessFile(new File(baseName + ".tix"), "rw")) {
+			int version = getSegmentVersion(timestampIndex);
+			byte[] headers = new byte[count * INDEX_RECORD_SIZE];
+			index.seek(0);
+			index.readFully(headers);
+			ByteBuffer entries = ByteBuffer.allocate(count * TIMESTAMP_INDEX_ENTRY_SIZE);
+			timestampIndex.seek(TIMESTAMP_INDEX_HEADER_SIZE);
+			timestampIndex.readFully(entries.array());
+
+			CRC32 recordChecksum = new CRC32();
+			int valid = 0;
+			long dataEnd = 0;
+			long min = Long.MAX_VALUE;
+			long max = 0;
+			for (; valid < count; valid++) {
+				int offset = valid * TIMESTAMP_INDEX_ENTRY_SIZE;
+				long dataPos = entries.getLong(offset + 2 * Long.BYTES);
+				int dataSize = entries.getInt(offset + 3 * Long.BYTES);
+				if (dataPos < 0 || dataSize < 0 || dataPos + dataSize > data.length())
+					break;
+				if (version == SEGMENT_VERSION) {
+					byte[] messageData = new byte[dataSize];
+					data.seek(dataPos);
+					data.readFully(messageData);
+					recordChecksum.reset();
+					recordChecksum.update(headers, valid * INDEX_RECORD_SIZE, HEADER_SIZE);
+					recordChecksum.update(messageData);
+					if ((int) recordChecksum.getValue() != entries.getInt(offset + 3 * Long.BYTES + Integer.BYTES))
+						break;
 				}
+				long timestamp = entries.getLong(offset);
+				min = Math.min(min, timestamp);
+				max = Math.max(max, timestamp);
+				dataEnd = Math.max(dataEnd, dataPos + dataSize);
+			}
+
+			if (index.length() != (long) valid * INDEX_RECORD_SIZE || data.length() != dataEnd
+					|| timestampIndex.length() != TIMESTAMP_INDEX_HEADER_SIZE + (long) valid * TIMESTAMP_INDEX_ENTRY_SIZE) {
+				LoggingService.logWarning("Message Archive", "truncating torn tail of " + baseName + " after " + valid + " messages");
+				index.setLength((long) valid * INDEX_RECORD_SIZE);
+				data.setLength(dataEnd);
+				timestampIndex.setLength(TIMESTAMP_INDEX_HEADER_SIZE + (long) valid * TIMESTAMP_INDEX_ENTRY_SIZE);
 			}
+			footer = new SegmentFooter(version, valid, valid == 0 ? 0 : min, max, dataEnd);
 		}
-		
-		if (lastFileTimestamp > 0 && lastFile.length() < ((HEADER_SIZE + Long.BYTES) * MAXIMUM_MESSAGE_PER_FILE))
-			currentFileName = lastFile.getPath();
+		writeFooter(baseName, footer);
 	}
 	
 	/**
-	 * opens index and data file
+	 * seals a segment by writing its footer
 	 * 
-	 * @param timestamp- timestamp of first {@link Message} in the file
+	 * @param baseName - path of segment files without extension
+	 * @param footer - {@link SegmentFooter} of segment
 	 * @throws Exception
 	 */
-	private void openFiles(long timestamp) throws Exception {
-		if (currentFileName.equals(""))
-			currentFileName = diskDirectory + name + "_" + timestamp + ".idx";
-		indexFile = new RandomAccessFile(new File(currentFileName), "rw");
-		dataFile = new RandomAccessFile(new File(currentFileName.substring(0, currentFileName.indexOf(".")) + ".iomsg"), "rw");
+	private void writeFooter(String baseName, SegmentFooter footer) throws Exception {
+		try (FileChannel footerChannel = FileChannel.open(Paths.get(baseName + ".ftr"), 
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(footerChannel, footer.toBytes());
+			if (Configuration.getArchiveDurability() != ArchiveDurability.NONE)
+				footerChannel.force(false);
+		}
+		footers.put(baseName, footer);
+	}
+	
+	/**
+	 * returns footer of a sealed segment, footers are read once and kept
+	 * 
+	 * @param baseName - path of segment files without extension
+	 * @return {@link SegmentFooter} or null if segment is not sealed
+	 */
+	private SegmentFooter getFooter(String baseName) {
+		SegmentFooter footer = footers.get(baseName);
+		if (footer != null)
+			return footer;
+		File footerFile = new File(baseName + ".ftr");
+		if (footerFile.length() != FOOTER_SIZE)
+			return null;
+		try (RandomAccessFile file = new RandomAccessFile(footerFile, "r")) {
+			ByteBuffer buffer = ByteBuffer.allocate(FOOTER_SIZE);
+			file.readFully(buffer.array());
+			CRC32 footerChecksum = new CRC32();
+			footerChecksum.update(buffer.array(), 0, FOOTER_SIZE - Integer.BYTES);
+			if (buffer.getInt(0) != FOOTER_MAGIC || buffer.getInt(FOOTER_SIZE - Integer.BYTES) != (int) footerChecksum.getValue())
+				return null;
+			footer = new SegmentFooter(buffer.getInt(4), buffer.getInt(8), buffer.getLong(12), buffer.getLong(20), buffer.getLong(28));
+		} catch (Exception e) {
+			return null;
+		}
+		// sealed segments never change, a footer not matching its files is not trusted
+		if (new File(baseName + ".idx").length() != (long) footer.count * INDEX_RECORD_SIZE
+				|| new File(baseName + ".iomsg").length() != footer.dataSize)
+			return null;
+		footers.put(baseName, footer);
+		return footer;
 	}
 	
 	/**
-	 * archives {@link Message} to file. If size of the data file becomes more than
-	 * defined value, creates a new file 
+	 * queues a {@link Message} to be archived by {@link ArchiveWriter}
 	 * 
 	 * @param message - {@link Message} to be archived
 	 * @param timestamp - timestamp of the {@link Message}
 	 * @throws Exception
 	 */
 	protected void save(byte[] message, long timestamp) throws Exception {
-		if (indexFile == null)
-			openFiles(timestamp);
-		
-		if ((message.length + dataFile.length()) >= (MAXIMUM_ARCHIVE_SIZE_MB * 1_000_000)) {
-			close();
-			openFiles(timestamp);
-		}
-		indexFile.seek(indexFile.length());
-		dataFile.seek(dataFile.length());
-		long dataPos = dataFile.getFilePointer();
-		
-		indexFile.write(message, 0, HEADER_SIZE);
-		indexFile.writeLong(dataPos);
-		dataFile.write(message, HEADER_SIZE, message.length - HEADER_SIZE);
+		ArchiveWriter.getInstance().append(this, Collections.singletonList(message));
 	}
 	
 	/**
-	 * closes index and data files
+	 * queues a batch of {@link Message} to be archived by {@link ArchiveWriter}
+	 * list is copied, so caller may reuse it
 	 * 
+	 * @param messages - list of {@link Message} to be archived
+	 * @param timestamp - timestamp of the batch
+	 * @throws Exception
 	 */
-	public void close() {
+	protected void save(List<byte[]> messages, long timestamp) throws Exception {
+		ArchiveWriter.getInstance().append(this, new ArrayList<>(messages));
+	}
+
+	/**
+	 * appends {@link Message}s to buffers of current segment, called by {@link ArchiveWriter} only
+	 * if size of the data file becomes more than defined value, creates a new segment 
+	 * a batch is never split between files, since they are named by timestamp 
+	 * 
+	 * @param messages - list of {@link Message} to be archived
+	 * @throws Exception
+	 */
+	protected void write(List<byte[]> messages) throws Exception {
+		MessageView view = new MessageView();
+		long firstTimestamp = view.wrap(ByteBuffer.wrap(messages.get(0)), 0).getTimestamp();
+		if (dataChannel == null)
+			openFiles(firstTimestamp);
+
+		long dataSize = 0;
+		for (byte[] message : messages)
+			dataSize += message.length - HEADER_SIZE;
+		if (dataPosition > 0 && (dataSize + dataPosition) >= (MAXIMUM_ARCHIVE_SIZE_MB * 1_000_000)) {
+			closeFiles();
+			openFiles(firstTimestamp);
+		}
+
+		for (byte[] message : messages) {
+			int messageDataSize = message.length - HEADER_SIZE;
+			if (dataBuffer.remaining() < messageDataSize || indexBuffer.remaining() < INDEX_RECORD_SIZE 
+					|| timestampIndexBuffer.remaining() < TIMESTAMP_INDEX_ENTRY_SIZE)
+				flush();
+			long timestamp = view.wrap(ByteBuffer.wrap(message), 0).getTimestamp();
+			checksum.reset();
+			checksum.update(message, 0, message.length);
+			indexBuffer.put(message, 0, HEADER_SIZE);
+			indexBuffer.putLong(dataPosition);
+			maxTimestamp = Math.max(maxTimestamp, timestamp);
+			putTimestampEntry(timestampIndexBuffer, timestamp, maxTimestamp, dataPosition, messageDataSize, (int) checksum.getValue());
+			minTimestamp = Math.min(minTimestamp, timestamp);
+			messageCount++;
+			if (messageDataSize > dataBuffer.capacity()) {
+				// larger than buffer, buffer is empty after flush above
+				synchronized (segmentLock) {
+					writeFully(dataChannel, ByteBuffer.wrap(message, HEADER_SIZE, messageDataSize));
+				}
+			} else {
+				dataBuffer.put(message, HEADER_SIZE, messageDataSize);
+			}
+			dataPosition += messageDataSize;
+		}
+	}
+
+	/**
+	 * writes buffered data, index and timestamp index to files, called by {@link ArchiveWriter} only
+	 * files are written under segment lock, so queries see whole messages only
+	 * 
+	 * @throws Exception
+	 */
+	protected void flush() throws Exception {
+		if (dataChannel == null)
+			return;
+		synchronized (segmentLock) {
+			for (ByteBuffer buffer : new ByteBuffer[] { dataBuffer, indexBuffer, timestampIndexBuffer }) {
+				buffer.flip();
+				writeFully(buffer == dataBuffer ? dataChannel : (buffer == indexBuffer ? indexChannel : timestampIndexChannel), buffer);
+				buffer.clear();
+			}
+		}
+	}
+
+	/**
+	 * forces written files of current segment to disk, called by {@link ArchiveWriter} only
+	 * 
+	 * @throws Exception
+	 */
+	protected void sync() throws Exception {
+		if (dataChannel == null)
+			return;
+		dataChannel.force(false);
+		indexChannel.force(false);
+		timestampIndexChannel.force(false);
+	}
+
+	/**
+	 * flushes, seals and closes files of current segment, called by {@link ArchiveWriter} only
+	 * footer is written after data is forced, so a sealed segment is never torn
+	 * 
+	 */
+	protected void closeFiles() {
+		if (dataChannel == null)
+			return;
+		try {
+			flush();
+			if (Configuration.getArchiveDurability() != ArchiveDurability.NONE)
+				sync();
+			writeFooter(currentFileName.substring(0, currentFileName.lastIndexOf(".")), 
+					new SegmentFooter(SEGMENT_VERSION, messageCount, minTimestamp, maxTimestamp, dataPosition));
+		} catch (Exception e) {
+			LoggingService.logWarning("Message Archive", "unable to seal archive --> " + e.getMessage());
+		}
 		try {
 			currentFileName = "";
-			if (indexFile != null)
-				indexFile.close();
-			if (dataFile != null)
-				dataFile.close();
-			currentFileName = "";
+			if (indexChannel != null)
+				indexChannel.close();
+			if (dataChannel != null)
+				dataChannel.close();
+			if (timestampIndexChannel != null)
+				timestampIndexChannel.close();
 		} catch (Exception e) {}
+		indexChannel = null;
+		dataChannel = null;
+		timestampIndexChannel = null;
 	}
 	
 	/**
-	 * computes {@link Message} size
+	 * writes queued {@link Message}s and closes files
 	 * 
-	 * @param header - header of the {@link Message}
-	 * @return int
 	 */
-	private int getDataSize(byte[] header) {
-		int size = 0;
-		size = header[2];
-		size += BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 3, 5));
-		size += header[5];
-		size += header[6];
-		size += header[7];
-		size += header[8];
-		size += header[9];
-		size += header[10];
-		size += BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 11, 13));
-		size += BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 13, 15));
-		size += header[15];
-		size += BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 16, 18));
-		size += BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 18, 20));
-		size += BytesUtil.bytesToShort(BytesUtil.copyOfRange(header, 20, 22));
-		size += header[22];
-		size += header[23];
-		size += header[24];
-		size += BytesUtil.bytesToInteger(BytesUtil.copyOfRange(header, 25, 29));
-		size += BytesUtil.bytesToInteger(BytesUtil.copyOfRange(header, 29, 33));
-		return size;
+	public void close() {
+		ArchiveWriter.getInstance().flush(this, true);
 	}
-
+	
+	/**
+	 * writes buffer to file channel until it is empty
+	 * 
+	 * @param channel - {@link FileChannel} to write
+	 * @param buffer - buffer to write
+	 * @throws Exception
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws Exception {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+	
 	/**
 	 *
 	 *
@@ -168,6 +561,20 @@ public class MessageArchive {
 		return runtime.maxMemory() - ((runtime.totalMemory() - runtime.freeMemory()));
 	}
 
+	/**
+	 * opens a {@link Cursor} over {@link Message}s sent by this {@link Element} within the time frame
+	 * 
+	 * @param from - beginning of time frame in milliseconds
+	 * @param to - end of time frame in milliseconds
+	 * @param position - position returned by {@link Cursor#getPosition()} to resume from, null to start
+	 * @return {@link Cursor}
+	 * @throws IllegalArgumentException if position is invalid
+	 */
+	public Cursor openCursor(long from, long to, String position) {
+		ArchiveWriter.getInstance().flush(this, false);
+		return new Cursor(from, to, position);
+	}
+
 	/**
 	 * retrieves list of {@link Message} sent by this {@link Element} within the time frame 
 	 * 
@@ -176,69 +583,361 @@ public class MessageArchive {
 	 * @return list of {@link Message}
 	 */
 	public List<Message> messageQuery(long from, long to) {
-		boolean outOfMemory = false;
 		List<Message> result = new ArrayList<>();
-		
-		File workingDirectory = new File(diskDirectory);
-		FilenameFilter filter = new FilenameFilter() {
-			@Override
-			public boolean accept(File dir, String fileName) {
-				return fileName.substring(0, name.length()).equals(name) && fileName.substring(fileName.indexOf(".")).equals(".idx");
+		try (Cursor cursor = openCursor(from, to, null)) {
+			while (cursor.hasNext())
+				result.add(cursor.next());
+		}
+		return result;
+	}
+
+	/**
+	 * page of {@link Message}s handed over by a {@link Cursor}, with their positions
+	 * 
+	 */
+	public static class Page {
+		private final List<Message> messages;
+		private final int[] entries;
+		private final int first;
+		private final long segment;
+
+		private Page(List<Message> messages, int[] entries, int first, long segment) {
+			this.messages = messages;
+			this.entries = entries;
+			this.first = first;
+			this.segment = segment;
+		}
+
+		public int size() {
+			return messages.size() - first;
+		}
+
+		public Message get(int index) {
+			return messages.get(first + index);
+		}
+
+		/**
+		 * returns position of a {@link Message} of page, as "segment:entry"
+		 * 
+		 * @param index - index of {@link Message} in page
+		 * @return position
+		 */
+		public String getPosition(int index) {
+			return segment + ":" + entries[first + index];
+		}
+	}
+
+	/**
+	 * reads {@link Message}s of a time frame lazily, segment by segment and page by page,
+	 * so memory used does not depend on size of result
+	 * position of next {@link Message} can be kept to resume reading with another cursor
+	 * 
+	 */
+	public class Cursor implements Iterator<Message>, AutoCloseable {
+		private static final int PAGE_MESSAGES = 1024;
+		private static final int PAGE_BYTES = 1024 * 1024;
+
+		private final long from;
+		private final long to;
+		private final long startSegment;
+		private final int startEntry;
+		private final List<String> segments = new ArrayList<>();
+		private final MessageView view = new MessageView();
+		private final CRC32 recordChecksum = new CRC32();
+		private List<Message> page = new ArrayList<>();
+		private int[] pageEntries = new int[PAGE_MESSAGES];
+		private int pageIndex;
+		private int segment = -1;
+		private String baseName;
+		private long segmentTimestamp;
+		private int entry;
+		private int count;
+		private int version;
+		private MappedByteBuffer entries;
+		private MappedByteBuffer headers;
+		private RandomAccessFile dataFile;
+		private long dataLength;
+		private int corrupted;
+		private boolean outOfMemory;
+
+		private Cursor(long from, long to, String position) {
+			this.from = from;
+			this.to = to;
+			if (position == null || position.isEmpty()) {
+				startSegment = 0;
+				startEntry = 0;
+			} else {
+				String[] tokens = position.split(":");
+				try {
+					startSegment = Long.parseLong(tokens[0]);
+					startEntry = Integer.parseInt(tokens[1]);
+				} catch (Exception e) {
+					throw new IllegalArgumentException("invalid position " + position);
+				}
+				if (tokens.length != 2 || startSegment < 0 || startEntry < 0)
+					throw new IllegalArgumentException("invalid position " + position);
 			}
-		};
-		File[] listOfFiles = workingDirectory.listFiles(filter);
-		Arrays.sort(listOfFiles);
-		
-		Stack<File> resultSet = new Stack<>();
-		int i = listOfFiles.length - 1;
-		for (; i >= 0; i--) {
-			File file = listOfFiles[i];
-			if (!file.isFile())
-				continue;
-			long timestamp = Long.parseLong(file.getName().substring(name.length() + 1, file.getName().indexOf(".")));
-			if (timestamp < from)
-				break;
-			if (timestamp >= from && timestamp <= to)
-				resultSet.push(file);
-		}
-		if (i >= 0)
-			resultSet.push(listOfFiles[i]);
-		
-		byte[] header = new byte[HEADER_SIZE];
-		while (!resultSet.isEmpty() && !outOfMemory) {
-			File file = resultSet.pop();
-			String fileName = file.getName();
-			try {
-				RandomAccessFile indexFile = new RandomAccessFile(new File(diskDirectory + fileName), "r");
-				RandomAccessFile dataFile = new RandomAccessFile(new File(diskDirectory + fileName.substring(0, fileName.indexOf(".")) + ".iomsg"), "r");
-				long dataFileLength = dataFile.length();
-				while (indexFile.getFilePointer() < indexFile.length()) {
-					if (freeMemory() < 32 * Constants.MiB) {
-						outOfMemory = true;
-						break;
+			segmentTimestamp = startSegment;
+			entry = startEntry;
+
+			Set<String> baseNames = new HashSet<>();
+			for (File file : listSegments()) {
+				String segmentBaseName = getBaseName(file);
+				baseNames.add(segmentBaseName);
+				if (getSegmentTimestamp(segmentBaseName) < startSegment)
+					continue;
+				SegmentFooter footer = getFooter(segmentBaseName);
+				if (footer != null) {
+					if (footer.overlaps(from, to))
+						segments.add(segmentBaseName);
+					continue;
+				}
+				// unsealed, named by timestamp of its first message
+				if (getSegmentTimestamp(segmentBaseName) <= to)
+					segments.add(segmentBaseName);
+			}
+			footers.keySet().retainAll(baseNames);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (pageIndex >= page.size())
+				if (!readPage())
+					return false;
+			return true;
+		}
+
+		@Override
+		public Message next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return page.get(pageIndex++);
+		}
+
+		/**
+		 * hands over rest of current page, next one is read when asked for
+		 * pages are limited by size of data they span, so callers reading ahead
+		 * hold a bounded amount of memory and nothing is copied
+		 * 
+		 * @return {@link Page}, empty if there is no more {@link Message}
+		 */
+		public Page nextPage() {
+			if (!hasNext())
+				return new Page(Collections.emptyList(), new int[0], 0, segmentTimestamp);
+			Page result = new Page(page, pageEntries, pageIndex, segmentTimestamp);
+			page = new ArrayList<>();
+			pageEntries = new int[PAGE_MESSAGES];
+			pageIndex = 0;
+			return result;
+		}
+
+		/**
+		 * returns position of next {@link Message}, as "segment:entry"
+		 * 
+		 * @return position
+		 */
+		public String getPosition() {
+			if (pageIndex < page.size())
+				return segmentTimestamp + ":" + pageEntries[pageIndex];
+			return segmentTimestamp + ":" + entry;
+		}
+
+		/**
+		 * returns whether all {@link Message}s have been read
+		 * reading stops early, if there is not enough memory for next page
+		 * 
+		 * @return true if there is no more {@link Message}
+		 */
+		public boolean isComplete() {
+			return !hasNext() && !outOfMemory;
+		}
+
+		/**
+		 * reads next page of matching {@link Message}s, opening next segments when needed
+		 * 
+		 * @return false if there is no more {@link Message}
+		 */
+		private boolean readPage() {
+			page.clear();
+			pageIndex = 0;
+			while (!outOfMemory) {
+				if (entries == null || entry >= count) {
+					if (!openNextSegment())
+						return false;
+					continue;
+				}
+
+				// matching messages and span of data file holding them
+				int matchingCount = 0;
+				long spanStart = Long.MAX_VALUE;
+				long spanEnd = 0;
+				for (; entry < count && matchingCount < PAGE_MESSAGES; entry++) {
+					int position = getEntryPosition(entry);
+					long timestamp = entries.getLong(position);
+					if (timestamp < from || timestamp > to)
+						continue;
+					long dataPos = entries.getLong(position + 2 * Long.BYTES);
+					int dataSize = entries.getInt(position + 3 * Long.BYTES);
+					if (dataPos < 0 || dataSize < 0 || dataPos + dataSize > dataLength) {
+						corrupted++;
+						continue;
 					}
+					long start = Math.min(spanStart, dataPos);
+					long end = Math.max(spanEnd, dataPos + dataSize);
+					if (matchingCount > 0 && end - start > PAGE_BYTES)
+						break;
+					pageEntries[matchingCount++] = entry;
+					spanStart = start;
+					spanEnd = end;
+				}
+				if (matchingCount == 0)
+					continue;
+				if (freeMemory() - 2 * (spanEnd - spanStart) < 32 * Constants.MiB) {
+					outOfMemory = true;
+					entry = pageEntries[0];
+					return false;
+				}
 
-					indexFile.read(header, 0, HEADER_SIZE);
-					if (((header[0] * 256) + header[1]) != 4)
-						throw new Exception("invalid index file format");
-					long dataPos = indexFile.readLong();
-					int dataSize = getDataSize(header);
-					if (dataPos + dataSize > dataFileLength || dataSize > dataFileLength)
-						throw new Exception("invalid data file format");
-					byte[] data = new byte[dataSize];
-					dataFile.read(data, 0, dataSize);
-					Message message = new Message(header, data);
-					if (message.getTimestamp() < from || message.getTimestamp() > to)
+				ByteBuffer span = ByteBuffer.allocate((int) (spanEnd - spanStart));
+				try {
+					readFully(dataFile.getChannel(), span, spanStart);
+				} catch (Exception e) {
+					LoggingService.logWarning("Message Archive", "unable to read " + baseName + " --> " + e.getMessage());
+					entry = count;
+					continue;
+				}
+				int kept = 0;
+				for (int j = 0; j < matchingCount; j++) {
+					int pageEntry = pageEntries[j];
+					int position = getEntryPosition(pageEntry);
+					int dataOffset = (int) (entries.getLong(position + 2 * Long.BYTES) - spanStart);
+					view.wrap(headers, pageEntry * INDEX_RECORD_SIZE, span, dataOffset);
+					if (!view.isValid() || (version == SEGMENT_VERSION && !isChecksumValid(pageEntry, span, dataOffset))) {
+						corrupted++;
 						continue;
-					result.add(message);
+					}
+					pageEntries[kept++] = pageEntry;
+					page.add(view.toMessage());
 				}
-				indexFile.close();
-				dataFile.close();
+				if (!page.isEmpty())
+					return true;
+			}
+			return false;
+		}
+
+		private boolean isChecksumValid(int recordEntry, ByteBuffer span, int dataOffset) {
+			int position = getEntryPosition(recordEntry);
+			recordChecksum.reset();
+			ByteBuffer record = headers.duplicate();
+			record.limit(recordEntry * INDEX_RECORD_SIZE + HEADER_SIZE).position(recordEntry * INDEX_RECORD_SIZE);
+			recordChecksum.update(record);
+			record = span.duplicate();
+			record.limit(dataOffset + entries.getInt(position + 3 * Long.BYTES)).position(dataOffset);
+			recordChecksum.update(record);
+			return (int) recordChecksum.getValue() == entries.getInt(position + 3 * Long.BYTES + Integer.BYTES);
+		}
+
+		/**
+		 * maps timestamp index and index of next segment and opens its data file
+		 * 
+		 * @return false if there is no more segment
+		 */
+		private boolean openNextSegment() {
+			closeSegment();
+			if (segment + 1 >= segments.size())
+				return false;
+			segment++;
+			baseName = segments.get(segment);
+			int start = getSegmentTimestamp(baseName) == startSegment ? startEntry : 0;
+			segmentTimestamp = getSegmentTimestamp(baseName);
+			entry = count = 0;
+			try {
+				synchronized (segmentLock) {
+					count = updateTimestampIndex(baseName);
+				}
+				if (count == 0)
+					return true;
+				try (RandomAccessFile indexFile = new RandomAccessFile(new File(baseName + ".idx"), "r");
+						RandomAccessFile timestampIndexFile = new RandomAccessFile(new File(baseName + ".tix"), "r")) {
+					entries = timestampIndexFile.getChannel().map(MapMode.READ_ONLY, 0, 
+							TIMESTAMP_INDEX_HEADER_SIZE + (long) count * TIMESTAMP_INDEX_ENTRY_SIZE);
+					headers = indexFile.getChannel().map(MapMode.READ_ONLY, 0, (long) count * INDEX_RECORD_SIZE);
+				}
+				dataFile = new RandomAccessFile(new File(baseName + ".iomsg"), "r");
+				dataLength = dataFile.length();
+				version = entries.getInt(Integer.BYTES);
+				entry = Math.max(start, findFirstEntry(entries, count, from));
 			} catch (Exception e) {
-				LoggingService.logWarning("Message Archive", e.getMessage());
+				LoggingService.logWarning("Message Archive", "unable to read " + baseName + " --> " + e.getMessage());
+				closeSegment();
+				entry = count;
 			}
+			return true;
 		}
-		
-		return result;
+
+		private void closeSegment() {
+			if (corrupted > 0)
+				LoggingService.logWarning("Message Archive", "skipped " + corrupted + " corrupted messages in " + baseName);
+			corrupted = 0;
+			entries = null;
+			headers = null;
+			try {
+				if (dataFile != null)
+					dataFile.close();
+			} catch (Exception e) {}
+			dataFile = null;
+		}
+
+		private long getSegmentTimestamp(String segmentBaseName) {
+			return Long.parseLong(segmentBaseName.substring(diskDirectory.length() + name.length() + 1));
+		}
+
+		@Override
+		public void close() {
+			closeSegment();
+			segment = segments.size();
+			page.clear();
+		}
+	}
+
+	/**
+	 * binary searches timestamp index for first entry which may be in time frame
+	 * highest timestamp so far never decreases, so entries before the found one are all older
+	 * 
+	 * @param entries - timestamp index
+	 * @param count - number of entries
+	 * @param from - beginning of time frame
+	 * @return index of entry
+	 */
+	private static int findFirstEntry(ByteBuffer entries, int count, long from) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (entries.getLong(getEntryPosition(mid) + Long.BYTES) < from)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private static int getEntryPosition(int entry) {
+		return TIMESTAMP_INDEX_HEADER_SIZE + entry * TIMESTAMP_INDEX_ENTRY_SIZE;
+	}
+
+	/**
+	 * reads file channel into buffer from a position until buffer is full
+	 * 
+	 * @param channel - {@link FileChannel} to read
+	 * @param buffer - buffer to fill
+	 * @param position - position in file
+	 * @throws Exception
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws Exception {
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException();
+		buffer.flip();
 	}
 }
@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -28,17 +29,46 @@ import com.iotracks.iofabric.utils.logging.LoggingService;
 public class MessageBus {
 	
 	private final String MODULE_NAME = "Message Bus";
+	private static final long ROUTE_DRAIN_TIMEOUT = 60 * 1000;
+	private static final long ROUTE_RETIRE_INTERVAL = 200;
+	private static final long WAITERS_CHECK_INTERVAL = 20;
+	private static final int MIN_CONSUMER_WINDOW_SIZE = 64 * 1024;
+	private static final int CONSUMER_WINDOW_RATE_WINDOW = 10;
+	private static final int ARCHIVE_QUERY_THREADS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
 
 	private MessageBusServer messageBusServer;
-	private Map<String, Route> routes;
+	private volatile RoutingTable routingTable;
+	private Map<String, RetiringRoute> retiringRoutes;
 	private Map<String, MessagePublisher> publishers;
 	private Map<String, MessageReceiver> receivers;
 	private MessageIdGenerator idGenerator;
+	private ExecutorService archiveQueryExecutor;
 	private static MessageBus instance;
 	private ElementManager elementManager;
 	private Object updateLock = new Object();
 	
-	private long lastSpeedTime, lastSpeedMessageCount;
+	/**
+	 * route queue kept after its route has been removed or its settings changed
+	 * until receiver has got messages routed to it by previous routing
+	 * 
+	 */
+	private static class RetiringRoute {
+		private final String publisher;
+		private final String receiver;
+		private final String queue;
+		private final long version;
+		private final long deadline;
+
+		private RetiringRoute(String publisher, String receiver, String queue, long version, boolean removed) {
+			this.publisher = publisher;
+			this.receiver = receiver;
+			this.queue = queue;
+			this.version = version;
+			// receiver of a changed route still gets messages, so its queue is always drained
+			this.deadline = removed ? System.currentTimeMillis() + ROUTE_DRAIN_TIMEOUT : Long.MAX_VALUE;
+		}
+	}
+	
 	
 	private MessageBus() {
 	}
@@ -85,21 +115,18 @@ public class MessageBus {
 	 * 
 	 */
 	private void init() {
-		lastSpeedMessageCount = 0;
-		lastSpeedTime = System.currentTimeMillis();
 		
-		routes = elementManager.getRoutes();
+		routingTable = new RoutingTable(elementManager.getRoutes());
 		idGenerator = new MessageIdGenerator();
 		publishers = new ConcurrentHashMap<>();
 		receivers = new ConcurrentHashMap<>();
+		retiringRoutes = new ConcurrentHashMap<>();
 
-		if (routes == null)
-			return;
+		Map<String, Route> routes = routingTable.getRoutes();
+		if (Configuration.isMessageDurability() && !routes.isEmpty())
+			messageBusServer.removeStaleQueues(routes);
 		
-		routes.entrySet().stream()
-			.filter(route -> route.getValue() != null)
-			.filter(route -> route.getValue().getReceivers() != null)
-			.forEach(entry -> {
+		routes.entrySet().forEach(entry -> {
 					String publisher = entry.getKey();
 					Route route = entry.getValue();
 				
@@ -111,43 +138,21 @@ public class MessageBus {
 					}
 					publishers.put(publisher, new MessagePublisher(publisher, route, messageBusServer.getProducer(publisher)));
 
-					receivers.putAll(entry.getValue().getReceivers()
-							.stream()
-							.filter(item -> !receivers.containsKey(item))
-							.collect(Collectors.toMap(item -> item, item -> {
-								try {
-									messageBusServer.createCosumer(item);
-								} catch (Exception e) {
-									LoggingService.logWarning(MODULE_NAME + "(" + item + ")",
-											"unable to start receiver module --> " + e.getMessage());
-								}
-								return new MessageReceiver(item, messageBusServer.getConsumer(item));
-							})));
+					route.getReceivers().forEach(item -> {
+						MessageReceiver receiver = receivers.computeIfAbsent(item, MessageReceiver::new);
+						try {
+							messageBusServer.createCosumer(publisher, item);
+						} catch (Exception e) {
+							LoggingService.logWarning(MODULE_NAME + "(" + item + ")",
+									"unable to start receiver module --> " + e.getMessage());
+						}
+						receiver.addConsumer(publisher, messageBusServer.getConsumer(publisher, item));
+					});
 			});
 
-	}
-	
-	/**
-	 * calculates the average speed of {@link Message} moving through ioFabric
-	 * 
-	 */
-	private final Runnable calculateSpeed = () -> {
-		while (true) {
-			try {
-				Thread.sleep(Constants.SPEED_CALCULATION_FREQ_MINUTES * 60 * 1000);
-
-				LoggingService.logInfo(MODULE_NAME, "calculating message processing speed");
-
-				long now = System.currentTimeMillis();
-				long msgs = StatusReporter.getMessageBusStatus().getProcessedMessages();
+		messageBusServer.updateBridges(routes);
 
-				float speed = ((float)(msgs - lastSpeedMessageCount)) / ((now - lastSpeedTime) / 1000f);
-				StatusReporter.setMessageBusStatus().setAverageSpeed(speed);
-				lastSpeedMessageCount = msgs;
-				lastSpeedTime = now;
-			} catch (Exception e) {}
-		}
-	};
+	}
 	
 	/**
 	 * monitors HornetQ server
@@ -164,6 +169,7 @@ public class MessageBus {
 					stop();
 					try {
 						messageBusServer.startServer();
+						messageBusServer.initialize();
 						LoggingService.logInfo(MODULE_NAME, "server restarted");
 						init();
 					} catch (Exception e) {
@@ -171,13 +177,26 @@ public class MessageBus {
 					}
 				}
 
+				for (int i = 0; i < messageBusServer.getSessionCount(); i++) {
+					if (messageBusServer.isSessionClosed(i)) {
+						LoggingService.logWarning(MODULE_NAME, "session " + i + " closed. restarting...");
+						try {
+							messageBusServer.restartSession(i);
+							LoggingService.logInfo(MODULE_NAME, "session restarted");
+						} catch (Exception e) {
+							LoggingService.logWarning(MODULE_NAME, "unable to restart session " + i + " --> " + e.getMessage());
+						}
+					}
+				}
+
 				publishers.entrySet().forEach(entry -> {
 					String publisher = entry.getKey();
 					if (messageBusServer.isProducerClosed(publisher)) {
 						LoggingService.logWarning(MODULE_NAME, "producer module for " + publisher + " stopped. restarting...");
 						entry.getValue().close();
-						Route route = routes.get(publisher);
-						if (route.equals(null) || route.getReceivers() == null || route.getReceivers().size() == 0) {
+						Route route = routingTable.getRoute(publisher);
+						if (route == null 
+								|| (route.getReceivers().size() == 0 && route.getExternalReceivers().size() == 0)) {
 							publishers.remove(publisher);
 						} else {
 							try {
@@ -193,19 +212,67 @@ public class MessageBus {
 
 				receivers.entrySet().forEach(entry -> {
 					String receiver = entry.getKey();
-					if (messageBusServer.isConsumerClosed(receiver)) {
-						LoggingService.logWarning(MODULE_NAME, "consumer module for " + receiver + " stopped. restarting...");
-						entry.getValue().close();
-						try {
-							messageBusServer.createCosumer(receiver);
-							receivers.put(receiver, new MessageReceiver(receiver, messageBusServer.getConsumer(receiver)));
-							LoggingService.logInfo(MODULE_NAME, "consumer module restarted");
-						} catch (Exception e) {
-							LoggingService.logWarning(MODULE_NAME, "unable to restart consumer module for " + receiver + " --> " + e.getMessage());
+					MessageReceiver messageReceiver = entry.getValue();
+					new ArrayList<>(messageReceiver.getPublishers()).forEach(publisher -> {
+						if (messageBusServer.isConsumerClosed(publisher, receiver)) {
+							LoggingService.logWarning(MODULE_NAME, "consumer module for " + receiver + " stopped. restarting...");
+							messageReceiver.removeConsumer(publisher);
+							try {
+								messageBusServer.createCosumer(publisher, receiver);
+								messageReceiver.addConsumer(publisher, messageBusServer.getConsumer(publisher, receiver));
+								LoggingService.logInfo(MODULE_NAME, "consumer module restarted");
+							} catch (Exception e) {
+								LoggingService.logWarning(MODULE_NAME, "unable to restart consumer module for " + receiver + " --> " + e.getMessage());
+							}
 						}
-					}
+					});
 				});
+
+				updateConsumerWindows();
+				messageBusServer.updateBridgesStatus();
+			} catch (Exception e) {
+			}
+		}
+	};
+	
+	/**
+	 * removes retiring route queues soon after they are drained
+	 * they get copies of messages sent with new routes until then, which take memory of publisher address
+	 * 
+	 */
+	private final Runnable checkRetiringRoutes = () -> {
+		while (true) {
+			try {
+				Thread.sleep(ROUTE_RETIRE_INTERVAL);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (retiringRoutes.isEmpty() || !messageBusServer.isServerActive())
+				continue;
+			try {
+				retireRoutes();
 			} catch (Exception e) {
+				LoggingService.logWarning(MODULE_NAME, "unable to check retiring routes --> " + e.getMessage());
+			}
+		}
+	};
+	
+	/**
+	 * wakes up requests waiting for messages which did not come from a local publisher
+	 * only counters of route queues are read, receivers are not polled
+	 * 
+	 */
+	private final Runnable checkWaitingReceivers = () -> {
+		while (true) {
+			try {
+				Thread.sleep(WAITERS_CHECK_INTERVAL);
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				receivers.values().forEach(MessageReceiver::checkWaiters);
+			} catch (Exception e) {
+				LoggingService.logWarning(MODULE_NAME, "unable to check waiting receivers --> " + e.getMessage());
 			}
 		}
 	};
@@ -213,64 +280,209 @@ public class MessageBus {
 	/**
 	 * updates routing, list of publishers and receivers
 	 * Field Agent calls this method when any changes applied
+	 * new routing table is compared with current one and replaces it at once;
+	 * queues of new routes are created before publishers use them,
+	 * publishers finish messages in progress with their previous route,
+	 * queues of removed or changed routes are swapped together with route of their publisher 
+	 * and kept until receivers get their messages
 	 * 
 	 */
 	public void update() {
 		synchronized (updateLock) {
-			Map<String, Route> newRoutes = elementManager.getRoutes();
-			List<String> newPublishers = new ArrayList<>();
-			List<String> newReceivers = new ArrayList<>();
-			
-			if (newRoutes != null) {
-				newRoutes.entrySet()
-					.stream()
-					.filter(route -> route.getValue() != null)
-					.filter(route -> route.getValue().getReceivers() != null)
-					.forEach(entry -> {
-						newPublishers.add(entry.getKey());
-						newReceivers.addAll(entry.getValue().getReceivers()
-								.stream().filter(item -> !newReceivers.contains(item))
-								.collect(Collectors.toList()));
-					});
-			}
-			
-			publishers.entrySet().forEach(entry -> {
-				if (!newPublishers.contains(entry.getKey())) {
-					entry.getValue().close();
-					messageBusServer.removeProducer(entry.getKey());
-				} else {
-					entry.getValue().updateRoute(newRoutes.get(entry.getKey()));
-				}
+			RoutingTable previous = routingTable;
+			RoutingTable next = new RoutingTable(elementManager.getRoutes());
+
+			// route queues are created with filter of new route
+			next.getRoutes().entrySet().forEach(entry -> MessageBusServer.setAddressSettings(entry.getKey(), entry.getValue()));
+
+			next.getReceivers().forEach(receiver -> {
+				MessageReceiver messageReceiver = receivers.computeIfAbsent(receiver, MessageReceiver::new);
+				next.getPublishers(receiver).stream()
+					.filter(publisher -> !next.isQueueChanged(previous, publisher, receiver))
+					.filter(publisher -> !messageReceiver.getPublishers().contains(publisher))
+					.forEach(publisher -> messageReceiver.addConsumer(publisher, messageBusServer.getConsumer(publisher, receiver)));
 			});
-			publishers.entrySet().removeIf(entry -> !newPublishers.contains(entry.getKey()));
-			publishers.putAll(
-					newPublishers.stream()
-					.filter(publisher -> !publishers.containsKey(publisher))
-					.collect(Collectors.toMap(publisher -> publisher, 
-							publisher -> new MessagePublisher(publisher, newRoutes.get(publisher), messageBusServer.getProducer(publisher)))));
 
-			receivers.entrySet().forEach(entry -> {
-				if (!newReceivers.contains(entry.getKey())) {
-					entry.getValue().close();
-					messageBusServer.removeConsumer(entry.getKey());
+			messageBusServer.updateBridges(next.getRoutes());
+
+			next.getRoutes().entrySet().forEach(entry -> {
+				String publisher = entry.getKey();
+				MessagePublisher messagePublisher = publishers.get(publisher);
+				if (messagePublisher == null) {
+					publishers.put(publisher, new MessagePublisher(publisher, entry.getValue(), messageBusServer.getProducer(publisher)));
+					return;
+				}
+				// each message goes to queues of either previous route or new one
+				synchronized (messagePublisher) {
+					messagePublisher.updateRoute(entry.getValue());
+					swapRouteQueues(previous, next, publisher, messagePublisher.getRouteVersion());
 				}
 			});
-			receivers.entrySet().removeIf(entry -> !newReceivers.contains(entry.getKey()));
-			receivers.putAll(
-					newReceivers.stream()
-					.filter(receiver -> !receivers.containsKey(receiver))
-					.collect(Collectors.toMap(receiver -> receiver, 
-							receiver -> new MessageReceiver(receiver, messageBusServer.getConsumer(receiver)))));
 
-			routes = newRoutes;
+			routingTable = next;
 
-			StatusReporter.getMessageBusStatus()
-				.getPublishedMessagesPerElement().entrySet().removeIf(entry -> {
-					return !elementManager.elementExists(entry.getKey());
+			new ArrayList<>(publishers.keySet()).stream()
+				.filter(publisher -> next.getRoute(publisher) == null)
+				.forEach(publisher -> {
+					publishers.remove(publisher).close();
+					messageBusServer.removeProducer(publisher);
+					swapRouteQueues(previous, next, publisher, Long.MAX_VALUE);
 				});
-			elementManager.getElements().forEach(e -> {
-				if (!StatusReporter.getMessageBusStatus().getPublishedMessagesPerElement().entrySet().contains(e.getElementId()))
-						StatusReporter.getMessageBusStatus().getPublishedMessagesPerElement().put(e.getElementId(), 0l);
+
+			receivers.entrySet().removeIf(entry -> {
+				if (next.getReceivers().contains(entry.getKey()) || entry.getValue().hasConsumers())
+					return false;
+				entry.getValue().close();
+				return true;
+			});
+
+			StatusReporter.getMessageBusStatus()
+				.retainElements(elementManager.getElements().stream().map(Element::getElementId).collect(Collectors.toList()));
+		}
+	}
+
+	/**
+	 * retires queues of a publisher whose route to a receiver has been removed or changed
+	 * changed routes get a new queue, publisher must be held meanwhile
+	 * 
+	 * @param previous - previous {@link RoutingTable}
+	 * @param next - new {@link RoutingTable}
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param version - route version of publisher after the change
+	 */
+	private void swapRouteQueues(RoutingTable previous, RoutingTable next, String publisher, long version) {
+		Route route = previous.getRoute(publisher);
+		if (route == null)
+			return;
+		route.getReceivers().forEach(receiver -> {
+			if (!next.isRouted(publisher, receiver)) {
+				retireRoute(publisher, receiver, version, true);
+			} else if (next.isQueueChanged(previous, publisher, receiver)) {
+				retireRoute(publisher, receiver, version, false);
+				receivers.get(receiver).addConsumer(publisher, messageBusServer.getConsumer(publisher, receiver));
+			}
+		});
+	}
+
+	/**
+	 * keeps route queue until receiver gets messages published before routing change
+	 * receiver reads it with a consumer which only gets those messages
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param receiver - ID of receiver {@link Element}
+	 * @param version - route version of publisher after the change
+	 * @param removed - whether route has been removed or its queue changed
+	 */
+	private void retireRoute(String publisher, String receiver, long version, boolean removed) {
+		String queue = messageBusServer.retireRouteQueue(publisher, receiver);
+		MessageReceiver messageReceiver = receivers.get(receiver);
+		if (messageReceiver != null)
+			messageReceiver.removeConsumer(publisher);
+		if (queue == null)
+			return;
+		retiringRoutes.put(queue, new RetiringRoute(publisher, receiver, queue, version, removed));
+		if (messageReceiver != null)
+			addRetiringConsumer(messageReceiver, retiringRoutes.get(queue));
+	}
+
+	private void addRetiringConsumer(MessageReceiver messageReceiver, RetiringRoute retiringRoute) {
+		try {
+			messageReceiver.addRetiringConsumer(retiringRoute.queue, 
+					messageBusServer.createRetiringConsumer(retiringRoute.queue, retiringRoute.receiver, retiringRoute.version));
+		} catch (Exception e) {
+			LoggingService.logWarning(MODULE_NAME + "(" + retiringRoute.receiver + ")",
+					"unable to start consumer of " + retiringRoute.queue + " --> " + e.getMessage());
+		}
+	}
+
+	/**
+	 * removes route queues of previous routing once they are drained
+	 * messages published with newer routes are removed from them first, since they 
+	 * are delivered from current queues
+	 * queues of removed routes drop remaining messages after {@link #ROUTE_DRAIN_TIMEOUT}
+	 * 
+	 */
+	private void retireRoutes() {
+		synchronized (updateLock) {
+			long now = System.currentTimeMillis();
+			retiringRoutes.values().removeIf(retiringRoute -> {
+				String publisher = retiringRoute.publisher;
+				String receiver = retiringRoute.receiver;
+				MessageReceiver messageReceiver = receivers.get(receiver);
+				long count;
+				try {
+					count = messageBusServer.purgeRetiringQueue(retiringRoute.queue, retiringRoute.version);
+				} catch (Exception e) {
+					LoggingService.logWarning(MODULE_NAME, "unable to check queue " + retiringRoute.queue + " --> " + e.getMessage());
+					return false;
+				}
+				if (count > 0 && now < retiringRoute.deadline) {
+					if (messageReceiver != null && messageBusServer.isRetiringConsumerClosed(retiringRoute.queue))
+						addRetiringConsumer(messageReceiver, retiringRoute);
+					return false;
+				}
+				if (count > 0) {
+					LoggingService.logWarning(MODULE_NAME, 
+							"route from " + publisher + " to " + receiver + " not drained, " + count + " messages dropped");
+					StatusReporter.setMessageBusStatus().increaseDroppedMessagesPerElement(publisher, count);
+				}
+				if (messageReceiver != null)
+					messageReceiver.removeRetiringConsumer(retiringRoute.queue);
+				messageBusServer.removeRetiringQueue(retiringRoute.queue);
+				if (messageReceiver != null && !messageReceiver.hasConsumers() 
+						&& !routingTable.getReceivers().contains(receiver)) {
+					messageReceiver.close();
+					receivers.remove(receiver);
+				}
+				return true;
+			});
+		}
+	}
+	
+	/**
+	 * returns consumer window holding about one second of messages at given receive rate
+	 * rounded down to a power of two, so small changes of rate do not change it
+	 * 
+	 * @param bytesPerSecond - receive rate
+	 * @return window size in bytes
+	 */
+	private int getAdaptiveWindowSize(float bytesPerSecond) {
+		long windowSize = Math.max(MIN_CONSUMER_WINDOW_SIZE, Math.min((long) bytesPerSecond, Configuration.getMaxConsumerWindowSize()));
+		return Integer.highestOneBit((int) windowSize);
+	}
+
+	/**
+	 * resizes consumer windows of receivers to their receive rate
+	 * fast receivers get more messages buffered on client side, slow ones less
+	 * consumers are recreated, since window of a consumer is fixed
+	 * receivers with a window set in {@link Configuration} keep it
+	 * 
+	 */
+	private void updateConsumerWindows() {
+		synchronized (updateLock) {
+			receivers.entrySet().forEach(entry -> {
+				String receiver = entry.getKey();
+				MessageReceiver messageReceiver = entry.getValue();
+				int current = messageBusServer.getConsumerWindowSize(receiver);
+				StatusReporter.setMessageBusStatus().setConsumerWindowPerElement(receiver, current);
+				if (!Configuration.isAdaptiveConsumerWindow() || Configuration.getConsumerWindowOverride(receiver) != null)
+					return;
+				int windowSize = getAdaptiveWindowSize(
+						StatusReporter.getMessageBusStatus().getReceiveByteRate(receiver, CONSUMER_WINDOW_RATE_WINDOW));
+				if (windowSize == current)
+					return;
+				messageBusServer.setConsumerWindowSize(receiver, windowSize);
+				new ArrayList<>(messageReceiver.getPublishers()).forEach(publisher -> {
+						try {
+							messageReceiver.replaceConsumer(publisher, () -> {
+								messageBusServer.createCosumer(publisher, receiver);
+								return messageBusServer.getConsumer(publisher, receiver);
+							});
+						} catch (Exception e) {
+							LoggingService.logWarning(MODULE_NAME + "(" + receiver + ")",
+									"unable to resize consumer window --> " + e.getMessage());
+						}
+					});
 			});
 		}
 	}
@@ -305,10 +517,16 @@ public class MessageBus {
 		}
 		
 		LoggingService.logInfo(MODULE_NAME, "MESSAGE BUS SERVER STARTED");
+		archiveQueryExecutor = Executors.newFixedThreadPool(ARCHIVE_QUERY_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "MessageBus : ArchiveQuery");
+			thread.setDaemon(true);
+			return thread;
+		});
 		init();
 
-		new Thread(calculateSpeed, "MessageBus : CalculateSpeed").start();
 		new Thread(checkMessageServerStatus, "MessageBus : CheckMessageBusServerStatus").start();
+		new Thread(checkRetiringRoutes, "MessageBus : CheckRetiringRoutes").start();
+		new Thread(checkWaitingReceivers, "MessageBus : CheckWaitingReceivers").start();
 	}
 	
 	/**
@@ -321,11 +539,22 @@ public class MessageBus {
 		
 		for (MessagePublisher publisher : publishers.values())
 			publisher.close();
+		archiveQueryExecutor.shutdownNow();
 		try {
 			messageBusServer.stopServer();
 		} catch (Exception e) {}
 	}
 
+	/**
+	 * returns executor scanning archives for {@link ArchiveQuery}s
+	 * scans block on disk and archive writer, so they do not run on common pools
+	 * 
+	 * @return {@link ExecutorService}
+	 */
+	public ExecutorService getArchiveQueryExecutor() {
+		return archiveQueryExecutor;
+	}
+
 	/**
 	 * returns {@link MessagePublisher}
 	 * 
@@ -346,21 +575,47 @@ public class MessageBus {
 		return receivers.get(receiver);
 	}
 	
+	/**
+	 * wakes up requests waiting for messages of receivers routed from a publisher
+	 * 
+	 * @param publisher - ID of {@link Element}
+	 */
+	protected void notifyReceivers(String publisher) {
+		Route route = routingTable.getRoute(publisher);
+		if (route == null)
+			return;
+		route.getReceivers().forEach(receiver -> {
+			MessageReceiver messageReceiver = receivers.get(receiver);
+			if (messageReceiver != null)
+				messageReceiver.notifyWaiters();
+		});
+	}
+
 	/**
 	 * returns next generated message id
 	 * 
 	 * @return
 	 */
-	public synchronized String getNextId() {
+	public String getNextId() {
 		return idGenerator.getNextId();
 	}
 	
+	/**
+	 * returns a number of generated message ids at once
+	 * 
+	 * @param count - number of ids
+	 * @return list of ids
+	 */
+	public List<String> getNextIds(int count) {
+		return idGenerator.getNextIds(count);
+	}
+	
 	/**
 	 * returns routes
 	 * 
 	 * @return
 	 */
-	public synchronized Map<String, Route> getRoutes() {
-		return elementManager.getRoutes();
+	public Map<String, Route> getRoutes() {
+		return routingTable.getRoutes();
 	}
 }
@@ -1,12 +1,18 @@
 package com.iotracks.iofabric.message_bus;
 
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.hornetq.api.core.HornetQException;
 import org.hornetq.api.core.SimpleString;
@@ -18,19 +24,33 @@ import org.hornetq.api.core.client.ClientSession;
 import org.hornetq.api.core.client.ClientSession.QueueQuery;
 import org.hornetq.api.core.client.ClientSessionFactory;
 import org.hornetq.api.core.client.HornetQClient;
+import org.hornetq.api.core.client.MessageHandler;
 import org.hornetq.api.core.client.ServerLocator;
+import org.hornetq.core.config.BridgeConfiguration;
 import org.hornetq.core.config.impl.ConfigurationImpl;
+import org.hornetq.core.filter.impl.FilterImpl;
+import org.hornetq.core.paging.PagingStore;
+import org.hornetq.core.postoffice.Binding;
 import org.hornetq.core.remoting.impl.invm.InVMAcceptorFactory;
 import org.hornetq.core.remoting.impl.invm.InVMConnectorFactory;
 import org.hornetq.core.remoting.impl.netty.NettyAcceptorFactory;
+import org.hornetq.core.remoting.impl.netty.NettyConnectorFactory;
+import org.hornetq.core.remoting.impl.netty.TransportConstants;
 import org.hornetq.core.server.HornetQServer;
 import org.hornetq.core.server.HornetQServers;
 import org.hornetq.core.server.JournalType;
+import org.hornetq.core.server.MessageReference;
+import org.hornetq.core.server.Queue;
+import org.hornetq.core.server.cluster.Bridge;
 import org.hornetq.core.settings.impl.AddressFullMessagePolicy;
 import org.hornetq.core.settings.impl.AddressSettings;
+import org.hornetq.utils.LinkedListIterator;
 
 import com.iotracks.iofabric.element.Element;
+import com.iotracks.iofabric.element.Route;
+import com.iotracks.iofabric.status_reporter.StatusReporter;
 import com.iotracks.iofabric.utils.Constants;
+import com.iotracks.iofabric.utils.Constants.OverflowPolicy;
 import com.iotracks.iofabric.utils.configuration.Configuration;
 import com.iotracks.iofabric.utils.logging.LoggingService;
 
@@ -43,26 +63,68 @@ import com.iotracks.iofabric.utils.logging.LoggingService;
 public class MessageBusServer {
 	
 	private final String MODULE_NAME = "Message Bus Server";
+	private static final byte DEFAULT_PRIORITY = 4;
+	protected static final int LARGE_MESSAGE_SIZE = 100 * Constants.KiB;
+	protected static final String ROUTE_VERSION = "routeVersion";
+	protected static final String ROUTE_ORIGIN = "routeOrigin";
+	private static final String ROUTE_QUEUE_VERSION_SEPARATOR = "~";
+	private static final int DEFAULT_BRIDGE_PORT = 55555;
+	private static final long BRIDGE_RETRY_INTERVAL = 1000;
+	private static final long BRIDGE_MAX_RETRY_INTERVAL = 30000;
+	private static final int BRIDGE_CONFIRMATION_WINDOW_SIZE = 1024 * 1024;
+	private static final int BRIDGE_BATCH_DELAY_MILLIS = 2;
+	private static final long MEMORY_RECHECK_INTERVAL = 50;
+	private static final int EXPIRED_MESSAGE_IDS_SIZE = 10000;
+	private static final Object memoryFreed = new Object();
+	private static final AtomicInteger memoryWaiters = new AtomicInteger();
 	private ClientSessionFactory sf;
-	private HornetQServer server;
+	private static HornetQServer server;
 	private static ClientSession messageBusSession;
+	private static ClientSession[] sessions;
+	private static ClientSession[] batchSessions;
 	private ClientConsumer commandlineConsumer;
 	private static ClientProducer commandlineProducer;
 	private Map<String, ClientConsumer> consumers;
+	private Map<String, Integer> consumerWindowSizes = new ConcurrentHashMap<>();
 	private Map<String, ClientProducer> producers;
 	private ServerLocator serverLocator;
+	private static Map<String, Route> publisherRoutes = new ConcurrentHashMap<>();
+	private static Map<String, String> routeQueues = new ConcurrentHashMap<>();
+	private ClientConsumer expiryConsumer;
+	private static Map<String, BridgeStatus> bridges = new ConcurrentHashMap<>();
 	
 	protected boolean isServerActive() {
 		return server.isActive();
 	}
 	
+	/**
+	 * returns index of the session in pool which serves an {@link Element}
+	 * 
+	 * @param name - ID of {@link Element}
+	 * @return index
+	 */
+	private static int getSessionIndex(String name) {
+		return (name.hashCode() & Integer.MAX_VALUE) % sessions.length;
+	}
+	
+	protected int getSessionCount() {
+		return sessions.length;
+	}
+	
+	protected boolean isSessionClosed(int index) {
+		return sessions[index] == null || sessions[index].isClosed() 
+				|| batchSessions[index] == null || batchSessions[index].isClosed();
+	}
+	
 	protected boolean isProducerClosed(String name) {
 		ClientProducer producer = producers.get(name);
 		return producer == null || producer.isClosed();
 	}
 	
-	protected boolean isConsumerClosed(String name) {
-		ClientConsumer consumer = consumers.get(name); 
+	protected boolean isConsumerClosed(String publisher, String receiver) {
+		if (consumers == null)
+			return true;
+		ClientConsumer consumer = consumers.get(getRouteQueue(publisher, receiver)); 
 		return consumer == null || consumer.isClosed();
 	}
 	
@@ -73,10 +135,7 @@ public class MessageBusServer {
 	 */
 	protected void startServer() throws Exception {
 		LoggingService.logInfo(MODULE_NAME, "starting...");
-		AddressSettings addressSettings = new AddressSettings();
-		long memoryLimit = (long) (Configuration.getMemoryLimit() * 1_000_000);
-		addressSettings.setMaxSizeBytes(memoryLimit);
-		addressSettings.setAddressFullMessagePolicy(AddressFullMessagePolicy.DROP);
+		AddressSettings addressSettings = getAddressSettings(new Route());
 		String workingDirectory = Configuration.getDiskDirectory();
 
         org.hornetq.core.config.Configuration configuration = new ConfigurationImpl();
@@ -85,14 +144,18 @@ public class MessageBusServer {
 		configuration.setJournalType(JournalType.NIO);
         configuration.setBindingsDirectory(workingDirectory + "messages/binding");
 		configuration.setCreateBindingsDir(true);
-		configuration.setPersistenceEnabled(false);
+		configuration.setPersistenceEnabled(Configuration.isMessageDurability());
+		if (Configuration.isMessageDurability())
+			setJournalConfiguration(configuration);
         configuration.setSecurityEnabled(false);
         configuration.setPagingDirectory(workingDirectory + "messages/paging");
-        configuration.getAddressesSettings().put(Constants.address, addressSettings);
+        configuration.setLargeMessagesDirectory(workingDirectory + "messages/large");
+        configuration.setMessageExpiryScanPeriod(Constants.MESSAGE_EXPIRY_SCAN_PERIOD_MILLIS);
+        configuration.getAddressesSettings().put(Constants.address + ".#", addressSettings);
         
 		Map<String, Object> connectionParams = new HashMap<>();
-		connectionParams.put("port", 55555);
-		connectionParams.put("host", "localhost");
+		connectionParams.put("port", Configuration.getMessageBusPort());
+		connectionParams.put("host", Configuration.getMessageBusHost());
 		TransportConfiguration nettyConfig = new TransportConfiguration(NettyAcceptorFactory.class.getName(), connectionParams);
 
         HashSet<TransportConfiguration> transportConfig = new HashSet<>();
@@ -102,12 +165,20 @@ public class MessageBusServer {
 		configuration.setAcceptorConfigurations(transportConfig);
 		server = HornetQServers.newHornetQServer(configuration);
 		server.start();
+		publisherRoutes.entrySet().forEach(entry -> 
+			server.getAddressSettingsRepository().addMatch(getPublisherAddress(entry.getKey()), getAddressSettings(entry.getValue())));
 
         serverLocator = HornetQClient.createServerLocatorWithoutHA(new TransportConfiguration(InVMConnectorFactory.class.getName()));
 
         serverLocator.setUseGlobalPools(false);
+        serverLocator.setMinLargeMessageSize(LARGE_MESSAGE_SIZE);
         serverLocator.setScheduledThreadPoolMaxSize(10);
-        serverLocator.setThreadPoolMaxSize(10);
+        serverLocator.setThreadPoolMaxSize(Configuration.getClientThreadPoolSize() > 0 
+        		? Configuration.getClientThreadPoolSize() : Math.max(10, 2 * Runtime.getRuntime().availableProcessors()));
+        serverLocator.setConsumerWindowSize(Configuration.getConsumerWindowSize());
+        serverLocator.setConsumerMaxRate(Configuration.getConsumerMaxRate());
+        serverLocator.setProducerWindowSize(Configuration.getProducerWindowSize());
+        serverLocator.setProducerMaxRate(Configuration.getProducerMaxRate());
         sf = serverLocator.createSessionFactory();
 	}
 	
@@ -118,20 +189,26 @@ public class MessageBusServer {
 	 * @throws Exception
 	 */
 	protected void initialize() throws Exception {
+		routeQueues.clear();
 		messageBusSession = sf.createSession(true, true, 0);
-		QueueQuery queueQuery = messageBusSession.queueQuery(new SimpleString(Constants.address));
-		if (queueQuery.isExists())
-			messageBusSession.deleteQueue(Constants.address);
-		queueQuery = messageBusSession.queueQuery(new SimpleString(Constants.commandlineAddress));
+		sessions = new ClientSession[Runtime.getRuntime().availableProcessors()];
+		batchSessions = new ClientSession[sessions.length];
+		for (int i = 0; i < sessions.length; i++)
+			restartSession(i);
+		QueueQuery queueQuery = messageBusSession.queueQuery(new SimpleString(Constants.commandlineAddress));
 		if (queueQuery.isExists())
 			messageBusSession.deleteQueue(Constants.commandlineAddress);
-		messageBusSession.createQueue(Constants.address, Constants.address, false);
 		messageBusSession.createQueue(Constants.commandlineAddress, Constants.commandlineAddress, false);
 
 		commandlineProducer = messageBusSession.createProducer(Constants.commandlineAddress);
 		
 		commandlineConsumer = messageBusSession.createConsumer(Constants.commandlineAddress, String.format("receiver = '%s'", "iofabric.commandline.command"));
 		commandlineConsumer.setMessageHandler(new CommandLineHandler());
+
+		if (!messageBusSession.queueQuery(new SimpleString(Constants.expiryAddress)).isExists())
+			messageBusSession.createQueue(Constants.expiryAddress, Constants.expiryAddress, false);
+		expiryConsumer = messageBusSession.createConsumer(Constants.expiryAddress);
+		expiryConsumer.setMessageHandler(expiredMessageHandler);
 		messageBusSession.start();
 
 //		Runnable countMessages = new Runnable() {
@@ -149,46 +226,455 @@ public class MessageBusServer {
 	}
 	
 	/**
-	 * creates a new {@link ClientConsumer} for receiver {@link Element}
+	 * sets journal of durable mode from {@link Configuration}
+	 * writes arriving within buffer timeout are synced together (group commit)
+	 * HornetQ falls back to NIO if AIO is not available on the platform
 	 * 
-	 * @param name - ID of {@link Element}
+	 * @param configuration - HornetQ configuration
+	 */
+	private void setJournalConfiguration(org.hornetq.core.config.Configuration configuration) {
+		if ("AIO".equals(Configuration.getJournalType()))
+			configuration.setJournalType(JournalType.ASYNCIO);
+		if (Configuration.getJournalBufferSize() > 0) {
+			configuration.setJournalBufferSize_NIO(Configuration.getJournalBufferSize());
+			configuration.setJournalBufferSize_AIO(Configuration.getJournalBufferSize());
+		}
+		if (Configuration.getJournalBufferTimeout() > 0) {
+			configuration.setJournalBufferTimeout_NIO(Configuration.getJournalBufferTimeout() * 1000);
+			configuration.setJournalBufferTimeout_AIO(Configuration.getJournalBufferTimeout() * 1000);
+		}
+		if (Configuration.getJournalFileSize() > 0)
+			configuration.setJournalFileSize(Configuration.getJournalFileSize());
+		configuration.setJournalSyncTransactional(true);
+		configuration.setJournalSyncNonTransactional(true);
+	}
+
+	/**
+	 * deletes route queues left from routes which do not exist anymore
+	 * in durable mode queues survive restarts and would keep collecting messages
+	 * a queue created with current filter of its route is used again
+	 * 
+	 * @param routes - current routes
+	 */
+	protected void removeStaleQueues(Map<String, Route> routes) {
+		Map<String, String> filters = new HashMap<>();
+		Set<String> bridgeQueues = new HashSet<>();
+		if (routes != null)
+			routes.entrySet().stream()
+				.filter(entry -> entry.getValue() != null)
+				.forEach(entry -> {
+					String publisher = entry.getKey();
+					Route route = entry.getValue();
+					if (route.getReceivers() != null)
+						route.getReceivers().forEach(receiver -> 
+							filters.put(getBaseRouteQueue(publisher, receiver), route.getFilter(receiver)));
+					getLinks(route).forEach(link -> bridgeQueues.add(getBridgeQueue(publisher, link)));
+				});
+		try {
+			for (String queue : server.getHornetQServerControl().getQueueNames()) {
+				if (!queue.startsWith(Constants.address + ".") || bridgeQueues.contains(queue))
+					continue;
+				int versionIndex = queue.indexOf(ROUTE_QUEUE_VERSION_SEPARATOR);
+				String base = versionIndex < 0 ? queue : queue.substring(0, versionIndex);
+				if (filters.containsKey(base) && !routeQueues.containsKey(base)
+						&& Objects.equals(messageBusSession.queueQuery(new SimpleString(queue)).getFilterString(), 
+								SimpleString.toSimpleString(filters.get(base)))) {
+					routeQueues.put(base, queue);
+					continue;
+				}
+				try {
+					messageBusSession.deleteQueue(queue);
+				} catch (Exception e) {
+					LoggingService.logWarning(MODULE_NAME, "unable to delete queue " + queue + " --> " + e.getMessage());
+				}
+			}
+		} catch (Exception e) {
+			LoggingService.logWarning(MODULE_NAME, "unable to remove stale queues --> " + e.getMessage());
+		}
+	}
+
+	/**
+	 * IDs of messages counted as expired lately
+	 * a message expires in each route and bridge queue it is in, each copy keeps its ID
+	 */
+	@SuppressWarnings("serial")
+	private final Set<Long> expiredMessageIds = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+			return size() > EXPIRED_MESSAGE_IDS_SIZE;
+		}
+	});
+
+	/**
+	 * counts expired messages per publisher and discards them
+	 * copies of a message expired in other queues are counted once
+	 * 
+	 */
+	private final MessageHandler expiredMessageHandler = msg -> {
+		try {
+			msg.acknowledge();
+			if (msg.containsProperty(org.hornetq.api.core.Message.HDR_ORIG_MESSAGE_ID) 
+					&& !expiredMessageIds.add(msg.getLongProperty(org.hornetq.api.core.Message.HDR_ORIG_MESSAGE_ID)))
+				return;
+			SimpleString address = msg.getSimpleStringProperty(org.hornetq.api.core.Message.HDR_ORIGINAL_ADDRESS);
+			String prefix = Constants.address + ".";
+			if (address != null && address.toString().startsWith(prefix))
+				StatusReporter.setMessageBusStatus().increaseExpiredMessagesPerElement(address.toString().substring(prefix.length()), 1);
+		} catch (Exception e) {
+			LoggingService.logWarning(MODULE_NAME, "unable to count expired message --> " + e.getMessage());
+		}
+	};
+
+	/**
+	 * creates session of the pool at given index
+	 * producers and consumers on the previous session must be recreated
+	 * 
+	 * @param index - index of session in pool
+	 * @throws Exception
+	 */
+	protected void restartSession(int index) throws Exception {
+		try {
+			if (sessions[index] != null)
+				sessions[index].close();
+			if (batchSessions[index] != null)
+				batchSessions[index].close();
+		} catch (Exception e) {}
+		sessions[index] = sf.createSession(true, true, 0);
+		batchSessions[index] = sf.createSession(false, true, 0);
+		sessions[index].start();
+	}
+	
+	/**
+	 * returns node ID of HornetQ server, publishers stamp it on messages
+	 * route versions are compared only for messages of this instance, bridged ones 
+	 * carry versions of the instance they were published on
+	 * 
+	 * @return node ID
+	 */
+	protected static String getNodeId() {
+		return server.getNodeID().toString();
+	}
+
+	/**
+	 * returns address of a publisher {@link Element}
+	 * 
+	 * @param publisher - ID of {@link Element}
+	 * @return address
+	 */
+	protected static String getPublisherAddress(String publisher) {
+		return Constants.address + "." + publisher;
+	}
+	
+	/**
+	 * returns name of the queue bound to publisher address for a receiver
+	 * settings of a queue are fixed, so when they change, route gets a new queue 
+	 * under a versioned name and previous one is drained and removed
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param receiver - ID of receiver {@link Element}
+	 * @return queue name
+	 */
+	protected static String getRouteQueue(String publisher, String receiver) {
+		return routeQueues.computeIfAbsent(getBaseRouteQueue(publisher, receiver), base -> {
+			String name = base;
+			for (long version = System.currentTimeMillis(); queueExists(name); version++)
+				name = base + ROUTE_QUEUE_VERSION_SEPARATOR + version;
+			return name;
+		});
+	}
+
+	private static String getBaseRouteQueue(String publisher, String receiver) {
+		return getPublisherAddress(publisher) + "." + receiver;
+	}
+
+	private static boolean queueExists(String name) {
+		try {
+			return server != null && server.locateQueue(new SimpleString(name)) != null;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * returns number of messages added to route queues of a receiver so far
+	 * counters are read without waiting for queues, so it can be checked often;
+	 * it changes when a message arrives, whether it was published here or bridged
+	 * 
+	 * @param receiver - ID of receiver {@link Element}
+	 * @param publishers - IDs of publishers routed to receiver
+	 * @param retiringQueues - names of retiring route queues of receiver
+	 * @return number of messages
+	 */
+	protected static long getMessagesAdded(String receiver, Set<String> publishers, Set<String> retiringQueues) {
+		long added = 0;
+		for (String publisher : publishers)
+			added += getMessagesAdded(routeQueues.get(getBaseRouteQueue(publisher, receiver)));
+		for (String queue : retiringQueues)
+			added += getMessagesAdded(queue);
+		return added;
+	}
+
+	private static long getMessagesAdded(String name) {
+		if (name == null || server == null)
+			return 0;
+		try {
+			Queue queue = server.locateQueue(new SimpleString(name));
+			return queue == null ? 0 : queue.getInstantMessagesAdded();
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * returns host:port of ioFabric instance running an external receiver
+	 * 
+	 * @param externalReceiver - "ID@host:port" of receiver
+	 * @return link to remote instance
+	 */
+	protected static String getLink(String externalReceiver) {
+		String link = externalReceiver.substring(externalReceiver.indexOf('@') + 1);
+		if (link.indexOf(':') < 0)
+			link += ":" + DEFAULT_BRIDGE_PORT;
+		return link;
+	}
+
+	/**
+	 * returns links to all ioFabric instances running external receivers of a {@link Route}
+	 * receivers on same instance share the link
+	 * 
+	 * @param route - {@link Route} of publisher
+	 * @return set of host:port
+	 */
+	protected static Set<String> getLinks(Route route) {
+		Set<String> links = new HashSet<>();
+		if (route.getExternalReceivers() != null)
+			route.getExternalReceivers().forEach(receiver -> links.add(getLink(receiver)));
+		return links;
+	}
+
+	/**
+	 * returns name of the queue bound to publisher address which a bridge forwards from
+	 * it is also the name of the bridge
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param link - host:port of remote instance
+	 * @return queue name
+	 */
+	protected static String getBridgeQueue(String publisher, String link) {
+		return getPublisherAddress(publisher) + ".bridge." + link;
+	}
+
+	/**
+	 * maps {@link Message} priority to broker priority
+	 * 0 means not set and gets default priority, higher values are capped at 9
+	 * 
+	 * @param priority - priority of {@link Message}
+	 * @return priority from 0 to 9
+	 */
+	protected static byte getBrokerPriority(byte priority) {
+		int value = priority & 0xff;
+		if (value == 0)
+			return DEFAULT_PRIORITY;
+		return (byte) Math.min(value, 9);
+	}
+
+	/**
+	 * returns content of a {@link ClientMessage} body
+	 * whole body is returned as one array, since {@link Message} is decoded from it;
+	 * chunks of a large message are copied into it as they arrive, without a body buffer in between
+	 * 
+	 * @param msg - {@link ClientMessage}
+	 * @return raw bytes of {@link Message}
+	 * @throws HornetQException
+	 */
+	protected static byte[] getMessageBytes(ClientMessage msg) throws HornetQException {
+		byte[] bytes = new byte[msg.getBodySize()];
+		if (msg.isLargeMessage())
+			msg.saveToOutputStream(new OutputStream() {
+				private int position = 0;
+
+				@Override
+				public void write(int b) {
+					bytes[position++] = (byte) b;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					System.arraycopy(b, off, bytes, position, len);
+					position += len;
+				}
+			});
+		else
+			msg.getBodyBuffer().readBytes(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * creates a new {@link ClientConsumer} on the route from publisher to receiver {@link Element}
+	 * each route has its own queue bound to publisher address, so a {@link Message} 
+	 * is stored once and referenced from the queue of every receiver 
+	 * if route has a predicate for receiver, queue only gets matching messages
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param receiver - ID of receiver {@link Element}
 	 * @throws Exception
 	 */
-	protected void createCosumer(String name) throws Exception {
+	protected void createCosumer(String publisher, String receiver) throws Exception {
 		if (consumers == null)
 			consumers = new ConcurrentHashMap<>();
 
-		ClientConsumer consumer = messageBusSession.createConsumer(Constants.address, String.format("receiver = '%s'", name));
-		consumers.put(name, consumer);
+		SimpleString queue = new SimpleString(getRouteQueue(publisher, receiver));
+		Route route = publisherRoutes.get(publisher);
+		SimpleString filter = SimpleString.toSimpleString(route == null ? null : route.getFilter(receiver));
+		QueueQuery queueQuery = messageBusSession.queueQuery(queue);
+		boolean exists = queueQuery.isExists();
+		// filter of a queue is fixed, durable queue may have one from a previous route
+		if (exists && !Objects.equals(queueQuery.getFilterString(), filter)) {
+			messageBusSession.deleteQueue(queue);
+			exists = false;
+		}
+		if (!exists)
+			messageBusSession.createQueue(new SimpleString(getPublisherAddress(publisher)), queue, filter, Configuration.isMessageDurability());
+		ClientConsumer consumer = sessions[getSessionIndex(receiver)].createConsumer(queue, null, 
+				getConsumerWindowSize(receiver), Configuration.getConsumerMaxRate(), false);
+		consumers.put(queue.toString(), consumer);
 	}
-	
+
+	/**
+	 * returns client buffer size of consumers of a receiver {@link Element}
+	 * override from {@link Configuration} comes first
+	 * 
+	 * @param receiver - ID of {@link Element}
+	 * @return window size in bytes
+	 */
+	protected int getConsumerWindowSize(String receiver) {
+		Integer override = Configuration.getConsumerWindowOverride(receiver);
+		if (override != null)
+			return override;
+		return consumerWindowSizes.getOrDefault(receiver, Configuration.getConsumerWindowSize());
+	}
+
 	/**
-	 * returns {@link ClientConsumer} of a receiver {@link Element}
+	 * sets client buffer size of consumers of a receiver {@link Element}
+	 * window of a consumer is fixed, so it is used by consumers created afterwards
 	 * 
 	 * @param receiver - ID of {@link Element}
+	 * @param windowSize - window size in bytes
+	 */
+	protected void setConsumerWindowSize(String receiver, int windowSize) {
+		consumerWindowSizes.put(receiver, windowSize);
+		StatusReporter.setMessageBusStatus().setConsumerWindowPerElement(receiver, windowSize);
+	}
+	
+	/**
+	 * returns {@link ClientConsumer} of the route from publisher to receiver {@link Element}
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param receiver - ID of receiver {@link Element}
 	 * @return {@link ClientConsumer}
 	 */
-	protected ClientConsumer getConsumer(String receiver) {
-		if (consumers == null || !consumers.containsKey(receiver))
+	protected ClientConsumer getConsumer(String publisher, String receiver) {
+		if (consumers == null || !consumers.containsKey(getRouteQueue(publisher, receiver)))
 			try {
-				createCosumer(receiver);
+				createCosumer(publisher, receiver);
 			} catch (Exception e) {
 				return null;
 			}
-		return consumers.get(receiver);
+		return consumers.get(getRouteQueue(publisher, receiver));
 	}
 	
 	/**
-	 * removes {@link ClientConsumer} when a receiver {@link Element} has been removed
-	 * 
-	 * @param name - ID of {@link Element}
+	 * detaches queue of the route from publisher to receiver, so route gets a new one
+	 * queue stays bound to publisher address until it is removed
+	 * publisher must be held meanwhile, so each message goes to either queue
+	 *
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param receiver - ID of receiver {@link Element}
+	 * @return queue name or null if route has no queue
+	 */
+	protected String retireRouteQueue(String publisher, String receiver) {
+		String queue = routeQueues.remove(getBaseRouteQueue(publisher, receiver));
+		if (queue == null)
+			return null;
+		ClientConsumer consumer = consumers == null ? null : consumers.remove(queue);
+		try {
+			if (consumer != null)
+				consumer.close();
+		} catch (Exception e) {
+			LoggingService.logWarning(MODULE_NAME, "unable to close consumer of " + queue + " --> " + e.getMessage());
+		}
+		return queueExists(queue) ? queue : null;
+	}
+
+	/**
+	 * creates {@link ClientConsumer} of a retiring route queue
+	 * it only gets messages published with previous route, others are delivered from new queue
+	 * bridged messages stay in the queue they arrived at, their route version is not of this instance
+	 *
+	 * @param queue - name of queue
+	 * @param receiver - ID of receiver {@link Element}
+	 * @param version - route version of publisher when queue has been retired
+	 * @return {@link ClientConsumer}
+	 * @throws Exception
 	 */
-	protected void removeConsumer(String name) {
+	protected ClientConsumer createRetiringConsumer(String queue, String receiver, long version) throws Exception {
 		if (consumers == null)
-			return;
-		consumers.remove(name);
+			consumers = new ConcurrentHashMap<>();
+		SimpleString filter = new SimpleString(ROUTE_VERSION + " IS NULL OR " + ROUTE_ORIGIN + " <> '" + getNodeId() 
+				+ "' OR " + ROUTE_VERSION + " < " + version);
+		ClientConsumer consumer = sessions[getSessionIndex(receiver)].createConsumer(new SimpleString(queue), filter, 
+				getConsumerWindowSize(receiver), Configuration.getConsumerMaxRate(), false);
+		consumers.put(queue, consumer);
+		return consumer;
 	}
-	
+
+	/**
+	 * returns whether {@link ClientConsumer} of a retiring route queue has been closed
+	 * 
+	 * @param queue - name of queue
+	 * @return true if consumer is closed or missing
+	 */
+	protected boolean isRetiringConsumerClosed(String queue) {
+		ClientConsumer consumer = consumers == null ? null : consumers.get(queue);
+		return consumer == null || consumer.isClosed();
+	}
+
+	/**
+	 * removes messages published with newer routes from a retiring route queue
+	 * they are delivered from queue of current route, bridged messages are kept
+	 *
+	 * @param queue - name of queue
+	 * @param version - route version of publisher when queue has been retired
+	 * @return number of messages published with previous route and not acknowledged yet, 
+	 * including those being delivered and paged to disk, -1 if queue does not exist
+	 * @throws Exception
+	 */
+	protected long purgeRetiringQueue(String queue, long version) throws Exception {
+		Queue serverQueue = server.locateQueue(new SimpleString(queue));
+		if (serverQueue == null)
+			return -1;
+		serverQueue.deleteMatchingReferences(FilterImpl.createFilter(
+				ROUTE_ORIGIN + " = '" + getNodeId() + "' AND " + ROUTE_VERSION + " >= " + version));
+		return serverQueue.getMessageCount();
+	}
+
+	/**
+	 * closes {@link ClientConsumer} of a retiring route queue and deletes the queue
+	 *
+	 * @param queue - name of queue
+	 */
+	protected void removeRetiringQueue(String queue) {
+		ClientConsumer consumer = consumers == null ? null : consumers.remove(queue);
+		try {
+			if (consumer != null && !consumer.isClosed())
+				consumer.close();
+			if (messageBusSession.queueQuery(new SimpleString(queue)).isExists())
+				messageBusSession.deleteQueue(queue);
+		} catch (Exception e) {
+			LoggingService.logWarning(MODULE_NAME, "unable to remove queue " + queue + " --> " + e.getMessage());
+		}
+	}
+
 	/**
 	 * creates a new {@link ClientProducer} for publisher {@link Element}
 	 * 
@@ -198,7 +684,7 @@ public class MessageBusServer {
 	protected void createProducer(String name) throws Exception {
 		if (producers == null)
 			producers = new ConcurrentHashMap<>();
-		ClientProducer producer = messageBusSession.createProducer(Constants.address);
+		ClientProducer producer = sessions[getSessionIndex(name)].createProducer(getPublisherAddress(name));
 		producers.put(name, producer);
 	}
 	
@@ -224,15 +710,133 @@ public class MessageBusServer {
 	 * @param name - ID of {@link Element}
 	 */
 	protected void removeProducer(String name) {
+		if (publisherRoutes.remove(name) != null && server != null)
+			server.getAddressSettingsRepository().removeMatch(getPublisherAddress(name));
 		if (producers == null)
 			return;
 		producers.remove(name);
 	}
 	
+	/**
+	 * creates a bridge forwarding messages of a publisher to another ioFabric instance
+	 * messages wait in bridge queue while link is down and are paged to disk when memory limit is reached,
+	 * bridge reconnects forever and resends unconfirmed messages, which remote side drops if duplicate
+	 * remote instance delivers them to its route queues bound to the same publisher address
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param link - host:port of remote instance
+	 * @throws Exception
+	 */
+	protected void createBridge(String publisher, String link) throws Exception {
+		String name = getBridgeQueue(publisher, link);
+		if (bridges.containsKey(name))
+			return;
+
+		int separator = link.lastIndexOf(':');
+		Map<String, Object> connectionParams = new HashMap<>();
+		connectionParams.put(TransportConstants.HOST_PROP_NAME, link.substring(0, separator));
+		connectionParams.put(TransportConstants.PORT_PROP_NAME, Integer.parseInt(link.substring(separator + 1)));
+		connectionParams.put(TransportConstants.BATCH_DELAY, BRIDGE_BATCH_DELAY_MILLIS);
+		server.getConfiguration().getConnectorConfigurations()
+			.put(link, new TransportConfiguration(NettyConnectorFactory.class.getName(), connectionParams));
+
+		SimpleString queue = new SimpleString(name);
+		if (!messageBusSession.queueQuery(queue).isExists())
+			messageBusSession.createQueue(new SimpleString(getPublisherAddress(publisher)), queue, Configuration.isMessageDurability());
+
+		BridgeConfiguration bridgeConfiguration = new BridgeConfiguration(name, name, getPublisherAddress(publisher), null, null,
+				LARGE_MESSAGE_SIZE, HornetQClient.DEFAULT_CLIENT_FAILURE_CHECK_PERIOD, HornetQClient.DEFAULT_CONNECTION_TTL,
+				BRIDGE_RETRY_INTERVAL, BRIDGE_MAX_RETRY_INTERVAL, 2.0, -1, true, BRIDGE_CONFIRMATION_WINDOW_SIZE,
+				Collections.singletonList(link), false, null, null);
+		server.deployBridge(bridgeConfiguration);
+		bridges.put(name, StatusReporter.setMessageBusStatus().getBridgeStatus(publisher, link));
+	}
+
+	/**
+	 * removes a bridge and its queue, messages not forwarded yet are dropped
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param link - host:port of remote instance
+	 */
+	protected void removeBridge(String publisher, String link) {
+		String name = getBridgeQueue(publisher, link);
+		bridges.remove(name);
+		StatusReporter.setMessageBusStatus().removeBridgeStatus(publisher, link);
+		try {
+			server.destroyBridge(name);
+			SimpleString queue = new SimpleString(name);
+			if (messageBusSession.queueQuery(queue).isExists())
+				messageBusSession.deleteQueue(queue);
+		} catch (Exception e) {
+			LoggingService.logWarning(MODULE_NAME, "unable to remove bridge " + name + " --> " + e.getMessage());
+		}
+	}
+
+	/**
+	 * creates bridges for external receivers of routes and removes those not needed anymore
+	 * 
+	 * @param routes - current routes
+	 */
+	protected void updateBridges(Map<String, Route> routes) {
+		Set<String> current = new HashSet<>();
+		if (routes != null)
+			routes.entrySet().stream()
+				.filter(entry -> entry.getValue() != null)
+				.forEach(entry -> getLinks(entry.getValue()).forEach(link -> {
+					current.add(getBridgeQueue(entry.getKey(), link));
+					try {
+						createBridge(entry.getKey(), link);
+					} catch (Exception e) {
+						LoggingService.logWarning(MODULE_NAME, "unable to create bridge from " + entry.getKey() + " to " + link + " --> " + e.getMessage());
+					}
+				}));
+		new HashMap<>(bridges).entrySet().stream()
+			.filter(entry -> !current.contains(entry.getKey()))
+			.forEach(entry -> removeBridge(entry.getValue().getPublisher(), entry.getValue().getLink()));
+	}
+
+	/**
+	 * samples connection state, lag and forwarded messages of bridges
+	 * 
+	 */
+	protected void updateBridgesStatus() {
+		bridges.entrySet().forEach(entry -> {
+			try {
+				Queue queue = server.locateQueue(new SimpleString(entry.getKey()));
+				Bridge bridge = server.getClusterManager().getBridges().get(entry.getKey());
+				// session of bridge is kept while reconnecting, so its connection is checked
+				boolean connected = bridge != null && bridge.isConnected() 
+						&& bridge.getForwardingConnection() != null && !bridge.getForwardingConnection().isDestroyed();
+				if (queue != null)
+					entry.getValue().sample(connected, queue.getMessagesAdded(), queue.getMessageCount());
+			} catch (Exception e) {}
+		});
+	}
+	
 	protected static ClientSession getSession() {
 		return messageBusSession;
 	}
 	
+	/**
+	 * returns {@link ClientSession} of the pool which serves an {@link Element}
+	 * 
+	 * @param name - ID of {@link Element}
+	 * @return {@link ClientSession}
+	 */
+	protected static ClientSession getSession(String name) {
+		return sessions[getSessionIndex(name)];
+	}
+	
+	/**
+	 * returns transacted {@link ClientSession} used to send batches of {@link Message}
+	 * 
+	 * @param name - ID of {@link Element}
+	 * @return {@link ClientSession}
+	 */
+	protected static ClientSession getBatchSession(String name) {
+		return batchSessions[getSessionIndex(name)];
+	}
+	
 	public static ClientProducer getCommandlineProducer() {
 		return commandlineProducer;
 	}
@@ -252,16 +856,28 @@ public class MessageBusServer {
 			});
 		if (commandlineConsumer != null)
 			commandlineConsumer.close();
+		if (expiryConsumer != null)
+			expiryConsumer.close();
 		if (producers != null)
 			producers.entrySet().forEach(entry -> {
 				try {
 					entry.getValue().close();
 				} catch (Exception e) {	}
 			});
+		if (sessions != null)
+			for (int i = 0; i < sessions.length; i++) {
+				try {
+					if (sessions[i] != null)
+						sessions[i].close();
+					if (batchSessions[i] != null)
+						batchSessions[i].close();
+				} catch (Exception e) { }
+			}
 		if (serverLocator != null)
 			serverLocator.close();
 		if (sf != null)
 			sf.close();
+		bridges.clear();
 		if (server != null)
 			server.stop();
 		LoggingService.logInfo(MODULE_NAME, "stopped");
@@ -272,11 +888,177 @@ public class MessageBusServer {
 	 * 
 	 */
 	public void setMemoryLimit() {
+		server.getAddressSettingsRepository().addMatch(Constants.address + ".#", getAddressSettings(new Route()));
+		publisherRoutes.entrySet().forEach(entry -> 
+			server.getAddressSettingsRepository().addMatch(getPublisherAddress(entry.getKey()), getAddressSettings(entry.getValue())));
+	}
+
+	/**
+	 * creates {@link AddressSettings} for a publisher {@link Route}
+	 * BLOCK and DROP_OLDEST are handled by publisher before sending, so on server 
+	 * they fall back to DROP and a shared session is never blocked
+	 * expired messages go to expiry address to be counted
+	 * 
+	 * @param route - {@link Route} of publisher
+	 * @return {@link AddressSettings}
+	 */
+	private static AddressSettings getAddressSettings(Route route) {
 		AddressSettings addressSettings = new AddressSettings();
 		long memoryLimit = (long) (Configuration.getMemoryLimit() * 1_000_000);
 		addressSettings.setMaxSizeBytes(memoryLimit);
-		addressSettings.setAddressFullMessagePolicy(AddressFullMessagePolicy.DROP);
+		// HornetQ refuses to page when a page file is not smaller than memory limit
+		addressSettings.setPageSizeBytes(Math.min(AddressSettings.DEFAULT_PAGE_SIZE, memoryLimit / 4));
+		addressSettings.setExpiryAddress(new SimpleString(Constants.expiryAddress));
+		addressSettings.setLastValueQueue(route.isLatestOnly());
+		if (route.getOverflowPolicy() == OverflowPolicy.PAGE)
+			addressSettings.setAddressFullMessagePolicy(AddressFullMessagePolicy.PAGE);
+		else
+			addressSettings.setAddressFullMessagePolicy(AddressFullMessagePolicy.DROP);
+		return addressSettings;
+	}
+
+	/**
+	 * sets address settings of a publisher from its {@link Route}
+	 * latest only takes effect on route queues created after this call
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param route - {@link Route} of publisher
+	 */
+	protected static void setAddressSettings(String publisher, Route route) {
+		publisherRoutes.put(publisher, route);
+		if (server == null)
+			return;
+		server.getAddressSettingsRepository().addMatch(getPublisherAddress(publisher), getAddressSettings(route));
+	}
+
+	/**
+	 * applies {@link OverflowPolicy} of route before sending messages
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param route - {@link Route} of publisher
+	 * @param count - number of messages to be sent
+	 * @return false if messages must be dropped
+	 * @throws Exception
+	 */
+	protected static boolean checkOverflow(String publisher, Route route, int count) throws Exception {
+		PagingStore store = server.getPagingManager().getPageStore(new SimpleString(getPublisherAddress(publisher)));
+		if (store == null)
+			return true;
+
+		switch (route.getOverflowPolicy()) {
+			case PAGE:
+				if (store.isPaging())
+					StatusReporter.setMessageBusStatus().increasePagedMessagesPerElement(publisher, count);
+				return true;
+
+			case BLOCK:
+				// publisher has waited in awaitMemory, without holding locks
+				return true;
+
+			case DROP_OLDEST:
+				int evicted = 0;
+				while (isFull(store) && evictOldest(publisher))
+					evicted++;
+				if (evicted > 0)
+					StatusReporter.setMessageBusStatus().increaseDroppedMessagesPerElement(publisher, evicted);
+				return true;
+
+			default:
+				if (isFull(store)) {
+					StatusReporter.setMessageBusStatus().increaseDroppedMessagesPerElement(publisher, count);
+					return false;
+				}
+				return true;
+		}
+	}
+
+	/**
+	 * waits for free memory of publisher address when {@link OverflowPolicy} of route is BLOCK
+	 * publisher is woken up by acknowledges of local receivers, and rechecks periodically 
+	 * for memory freed otherwise, like by bridges or expiry
+	 * caller must not hold locks shared with other publishers or receivers
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param route - {@link Route} of publisher
+	 * @param count - number of messages to be sent
+	 * @return false if block timeout of route is over and messages must be dropped
+	 * @throws Exception
+	 */
+	protected static boolean awaitMemory(String publisher, Route route, int count) throws Exception {
+		if (route.getOverflowPolicy() != OverflowPolicy.BLOCK || server == null)
+			return true;
+		PagingStore store = server.getPagingManager().getPageStore(new SimpleString(getPublisherAddress(publisher)));
+		if (store == null || !isFull(store))
+			return true;
+
+		long deadline = System.currentTimeMillis() + route.getBlockTimeout();
+		memoryWaiters.incrementAndGet();
+		try {
+			synchronized (memoryFreed) {
+				while (isFull(store)) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						StatusReporter.setMessageBusStatus().increaseDroppedMessagesPerElement(publisher, count);
+						return false;
+					}
+					memoryFreed.wait(Math.min(remaining, MEMORY_RECHECK_INTERVAL));
+				}
+			}
+		} finally {
+			memoryWaiters.decrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * wakes up publishers waiting for free memory, called when messages are acknowledged
+	 * 
+	 */
+	protected static void signalMemoryFreed() {
+		if (memoryWaiters.get() == 0)
+			return;
+		synchronized (memoryFreed) {
+			memoryFreed.notifyAll();
+		}
+	}
+
+	private static boolean isFull(PagingStore store) {
+		return store.getMaxSize() > 0 && store.getAddressSize() >= store.getMaxSize();
+	}
+
+	/**
+	 * removes oldest {@link Message} of a publisher from all its route queues
+	 * size of address counts a message until it is removed from every queue, so 
+	 * oldest one at the head of any queue is removed from all queues it is at the head of
+	 * queues of receivers, bridges and retiring routes are all bound to publisher address
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @return false if there is nothing to remove
+	 * @throws Exception
+	 */
+	private static boolean evictOldest(String publisher) throws Exception {
+		Map<Queue, Long> heads = new HashMap<>();
+		long oldest = Long.MAX_VALUE;
+		for (Binding binding : server.getPostOffice().getBindingsForAddress(new SimpleString(getPublisherAddress(publisher))).getBindings()) {
+			if (!(binding.getBindable() instanceof Queue))
+				continue;
+			Queue queue = (Queue) binding.getBindable();
+			LinkedListIterator<MessageReference> iterator = queue.iterator();
+			try {
+				if (!iterator.hasNext())
+					continue;
+				long messageId = iterator.next().getMessage().getMessageID();
+				heads.put(queue, messageId);
+				oldest = Math.min(oldest, messageId);
+			} finally {
+				iterator.close();
+			}
+		}
 
-		server.getAddressSettingsRepository().addMatch(Constants.address, addressSettings);
+		boolean evicted = false;
+		for (Map.Entry<Queue, Long> head : heads.entrySet())
+			if (head.getValue() == oldest && head.getKey().deleteReference(oldest))
+				evicted = true;
+		return evicted;
 	}
 }
@@ -1,71 +1,382 @@
 package com.iotracks.iofabric.message_bus;
 
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObjectBuilder;
 
 /**
  * represents Message Bus status
+ * counters are updated from many threads, so they are kept in {@link LongAdder}s
+ * and rates are computed on read from {@link RateMeter}s
  * 
  * @author saeid
  *
  */
 public class MessageBusStatus {
-	private long processedMessages;
-	private Map<String, Long> publishedMessagesPerElement;
-	private float averageSpeed;
+	private final LongAdder processedMessages;
+	private final RateMeter processedRate;
+	private final Map<String, LongAdder> publishedMessagesPerElement;
+	private final Map<String, RateMeter> publishRatePerElement;
+	private final Map<String, LongAdder> receivedMessagesPerElement;
+	private final Map<String, RateMeter> receiveRatePerElement;
+	private final Map<String, RateMeter> receiveByteRatePerElement;
+	private final Map<String, Integer> consumerWindowPerElement;
+	private final Map<String, Map<String, LatencyHistogram>> latencyPerRoute;
+	private final LongAdder droppedMessages;
+	private final Map<String, LongAdder> droppedMessagesPerElement;
+	private final LongAdder expiredMessages;
+	private final Map<String, LongAdder> expiredMessagesPerElement;
+	private final LongAdder pagedMessages;
+	private final Map<String, LongAdder> pagedMessagesPerElement;
+	private final Map<String, BridgeStatus> bridges;
+	private final LongAdder archiveDroppedMessages;
+	private volatile int archiveLag;
+	private volatile long archiveLagMillis;
 	
 	public MessageBusStatus() {
-		publishedMessagesPerElement = new HashMap<>();
-		processedMessages = 0;
-		averageSpeed = 0;
+		processedMessages = new LongAdder();
+		processedRate = new RateMeter();
+		publishedMessagesPerElement = new ConcurrentHashMap<>();
+		publishRatePerElement = new ConcurrentHashMap<>();
+		receivedMessagesPerElement = new ConcurrentHashMap<>();
+		receiveRatePerElement = new ConcurrentHashMap<>();
+		receiveByteRatePerElement = new ConcurrentHashMap<>();
+		consumerWindowPerElement = new ConcurrentHashMap<>();
+		latencyPerRoute = new ConcurrentHashMap<>();
+		droppedMessages = new LongAdder();
+		droppedMessagesPerElement = new ConcurrentHashMap<>();
+		expiredMessages = new LongAdder();
+		expiredMessagesPerElement = new ConcurrentHashMap<>();
+		pagedMessages = new LongAdder();
+		pagedMessagesPerElement = new ConcurrentHashMap<>();
+		bridges = new ConcurrentHashMap<>();
+		archiveDroppedMessages = new LongAdder();
 	}
 	
 	public long getProcessedMessages() {
-		return processedMessages;
+		return processedMessages.sum();
 	}
 
 	public Long getPublishedMessagesPerElement(String element) {
-		return publishedMessagesPerElement.get(element);
+		LongAdder n = publishedMessagesPerElement.get(element);
+		return n == null ? null : n.sum();
 	}
 
-	public Map<String, Long> getPublishedMessagesPerElement() {
-		return publishedMessagesPerElement;
+	public Long getReceivedMessagesPerElement(String element) {
+		LongAdder n = receivedMessagesPerElement.get(element);
+		return n == null ? null : n.sum();
 	}
 
 	public MessageBusStatus increasePublishedMessagesPerElement(String element) {
-		this.processedMessages++;
+		return increasePublishedMessagesPerElement(element, 1);
+	}
 
-		Long n = this.publishedMessagesPerElement.get(element);
-		if (n == null)
-			n = 0l;
-		this.publishedMessagesPerElement.put(element, n + 1);
+	public MessageBusStatus increasePublishedMessagesPerElement(String element, long count) {
+		processedMessages.add(count);
+		processedRate.mark(count);
+		publishedMessagesPerElement.computeIfAbsent(element, e -> new LongAdder()).add(count);
+		publishRatePerElement.computeIfAbsent(element, e -> new RateMeter()).mark(count);
 		return this;
 	}
 
-	public float getAverageSpeed() {
-		return averageSpeed;
+	/**
+	 * counts messages received by an element
+	 * 
+	 * @param element - ID of receiver element
+	 * @param count - number of messages
+	 * @param bytes - total size of messages
+	 * @return this
+	 */
+	public MessageBusStatus increaseReceivedMessagesPerElement(String element, long count, long bytes) {
+		receivedMessagesPerElement.computeIfAbsent(element, e -> new LongAdder()).add(count);
+		receiveRatePerElement.computeIfAbsent(element, e -> new RateMeter()).mark(count);
+		receiveByteRatePerElement.computeIfAbsent(element, e -> new RateMeter()).mark(bytes);
+		return this;
+	}
+
+	public long getDroppedMessages() {
+		return droppedMessages.sum();
 	}
 
-	public MessageBusStatus setAverageSpeed(float averageSpeed) {
-		this.averageSpeed = averageSpeed;
+	public long getDroppedMessagesPerElement(String element) {
+		LongAdder n = droppedMessagesPerElement.get(element);
+		return n == null ? 0 : n.sum();
+	}
+
+	/**
+	 * counts messages of a publisher dropped because of its overflow policy
+	 * 
+	 * @param element - ID of publisher element
+	 * @param count - number of messages
+	 * @return this
+	 */
+	public MessageBusStatus increaseDroppedMessagesPerElement(String element, long count) {
+		droppedMessages.add(count);
+		droppedMessagesPerElement.computeIfAbsent(element, e -> new LongAdder()).add(count);
 		return this;
 	}
+
+	public long getExpiredMessages() {
+		return expiredMessages.sum();
+	}
+
+	public long getExpiredMessagesPerElement(String element) {
+		LongAdder n = expiredMessagesPerElement.get(element);
+		return n == null ? 0 : n.sum();
+	}
+
+	/**
+	 * counts messages of a publisher expired before delivery
+	 * 
+	 * @param element - ID of publisher element
+	 * @param count - number of messages
+	 * @return this
+	 */
+	public MessageBusStatus increaseExpiredMessagesPerElement(String element, long count) {
+		expiredMessages.add(count);
+		expiredMessagesPerElement.computeIfAbsent(element, e -> new LongAdder()).add(count);
+		return this;
+	}
+
+	public long getPagedMessages() {
+		return pagedMessages.sum();
+	}
+
+	public long getPagedMessagesPerElement(String element) {
+		LongAdder n = pagedMessagesPerElement.get(element);
+		return n == null ? 0 : n.sum();
+	}
+
+	/**
+	 * counts messages of a publisher sent while its address was paging to disk
+	 * 
+	 * @param element - ID of publisher element
+	 * @param count - number of messages
+	 * @return this
+	 */
+	public MessageBusStatus increasePagedMessagesPerElement(String element, long count) {
+		pagedMessages.add(count);
+		pagedMessagesPerElement.computeIfAbsent(element, e -> new LongAdder()).add(count);
+		return this;
+	}
+
+	public long getArchiveDroppedMessages() {
+		return archiveDroppedMessages.sum();
+	}
+
+	/**
+	 * counts messages not archived because archive writer queue was full
+	 * 
+	 * @param count - number of messages
+	 * @return this
+	 */
+	public MessageBusStatus increaseArchiveDroppedMessages(long count) {
+		archiveDroppedMessages.add(count);
+		return this;
+	}
+
+	public int getArchiveLag() {
+		return archiveLag;
+	}
+
+	public long getArchiveLagMillis() {
+		return archiveLagMillis;
+	}
+
+	/**
+	 * sets how far archive writer is behind publishers
+	 * 
+	 * @param lag - number of publishes waiting to be archived
+	 * @param lagMillis - time oldest of them has been waiting
+	 * @return this
+	 */
+	public MessageBusStatus setArchiveLag(int lag, long lagMillis) {
+		this.archiveLag = lag;
+		this.archiveLagMillis = lagMillis;
+		return this;
+	}
+
+	/**
+	 * returns rate of processed messages over last minute
+	 * 
+	 * @return messages per second
+	 */
+	public float getAverageSpeed() {
+		return processedRate.getRate(RateMeter.ONE_MINUTE);
+	}
+
+	/**
+	 * returns rate of processed messages
+	 * 
+	 * @param window - window in seconds, see {@link RateMeter}
+	 * @return messages per second
+	 */
+	public float getProcessedRate(int window) {
+		return processedRate.getRate(window);
+	}
+
+	public float getPublishRate(String element, int window) {
+		RateMeter meter = publishRatePerElement.get(element);
+		return meter == null ? 0 : meter.getRate(window);
+	}
+
+	public float getReceiveRate(String element, int window) {
+		RateMeter meter = receiveRatePerElement.get(element);
+		return meter == null ? 0 : meter.getRate(window);
+	}
+	
+	public float getReceiveByteRate(String element, int window) {
+		RateMeter meter = receiveByteRatePerElement.get(element);
+		return meter == null ? 0 : meter.getRate(window);
+	}
+
+	public int getConsumerWindowPerElement(String element) {
+		return consumerWindowPerElement.getOrDefault(element, 0);
+	}
+
+	public Map<String, Integer> getConsumerWindowPerElement() {
+		return consumerWindowPerElement;
+	}
+
+	public void setConsumerWindowPerElement(String element, int windowSize) {
+		consumerWindowPerElement.put(element, windowSize);
+	}
 	
 	public void removePublishedMessagesPerElement(String element) {
-		if (publishedMessagesPerElement.containsKey(element))
-			publishedMessagesPerElement.remove(element);
+		publishedMessagesPerElement.remove(element);
+		publishRatePerElement.remove(element);
+		receivedMessagesPerElement.remove(element);
+		receiveRatePerElement.remove(element);
+		receiveByteRatePerElement.remove(element);
+		consumerWindowPerElement.remove(element);
+		droppedMessagesPerElement.remove(element);
+		pagedMessagesPerElement.remove(element);
+		expiredMessagesPerElement.remove(element);
+	}
+
+	/**
+	 * keeps counters of given elements only
+	 * 
+	 * @param elements - IDs of current elements
+	 */
+	public void retainElements(Collection<String> elements) {
+		publishedMessagesPerElement.keySet().retainAll(elements);
+		publishRatePerElement.keySet().retainAll(elements);
+		receivedMessagesPerElement.keySet().retainAll(elements);
+		receiveRatePerElement.keySet().retainAll(elements);
+		receiveByteRatePerElement.keySet().retainAll(elements);
+		consumerWindowPerElement.keySet().retainAll(elements);
+		droppedMessagesPerElement.keySet().retainAll(elements);
+		pagedMessagesPerElement.keySet().retainAll(elements);
+		expiredMessagesPerElement.keySet().retainAll(elements);
+		elements.forEach(element -> publishedMessagesPerElement.computeIfAbsent(element, e -> new LongAdder()));
+	}
+	
+	/**
+	 * returns latency histogram of route from publisher to receiver, creates one if not exists
+	 * callers keep the histogram, so recording does not need a lookup
+	 * 
+	 * @param publisher - ID of publisher element
+	 * @param receiver - ID of receiver element
+	 * @return {@link LatencyHistogram}
+	 */
+	public LatencyHistogram getLatencyHistogram(String publisher, String receiver) {
+		return latencyPerRoute.computeIfAbsent(publisher, p -> new ConcurrentHashMap<>())
+				.computeIfAbsent(receiver, r -> new LatencyHistogram());
+	}
+
+	public void removeLatencyHistogram(String publisher, String receiver) {
+		Map<String, LatencyHistogram> histograms = latencyPerRoute.get(publisher);
+		if (histograms == null)
+			return;
+		histograms.remove(receiver);
+		if (histograms.isEmpty())
+			latencyPerRoute.remove(publisher, histograms);
+	}
+
+	public Map<String, Map<String, LatencyHistogram>> getLatencyPerRoute() {
+		return latencyPerRoute;
+	}
+
+	/**
+	 * returns latency of all routes as json
+	 * 
+	 * @return json array
+	 */
+	public JsonArray getJsonLatencyPerRoute() {
+		JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+		latencyPerRoute.entrySet().forEach(publisher -> {
+			publisher.getValue().entrySet().forEach(receiver -> {
+				arrayBuilder.add(receiver.getValue().toJson()
+						.add("publisher", publisher.getKey())
+						.add("receiver", receiver.getKey()));
+			});
+		});
+		return arrayBuilder.build();
+	}
+	
+	/**
+	 * returns status of bridge from publisher to another ioFabric instance, creates one if not exists
+	 * 
+	 * @param publisher - ID of publisher element
+	 * @param link - host:port of remote instance
+	 * @return {@link BridgeStatus}
+	 */
+	public BridgeStatus getBridgeStatus(String publisher, String link) {
+		return bridges.computeIfAbsent(publisher + " -> " + link, b -> new BridgeStatus(publisher, link));
+	}
+
+	public void removeBridgeStatus(String publisher, String link) {
+		bridges.remove(publisher + " -> " + link);
+	}
+
+	public Collection<BridgeStatus> getBridges() {
+		return bridges.values();
+	}
+
+	/**
+	 * returns status of all bridges as json
+	 * 
+	 * @return json array
+	 */
+	public JsonArray getJsonBridges() {
+		JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+		bridges.values().forEach(bridge -> arrayBuilder.add(bridge.toJson()));
+		return arrayBuilder.build();
 	}
 	
+	/**
+	 * returns rates of a meter over all windows, keyed by window
+	 * 
+	 * @param meter - {@link RateMeter}, may be null
+	 * @return json object of messages per second
+	 */
+	private static JsonObjectBuilder getJsonRates(RateMeter meter) {
+		return Json.createObjectBuilder()
+				.add("1s", meter == null ? 0 : meter.getRate(RateMeter.ONE_SECOND))
+				.add("1m", meter == null ? 0 : meter.getRate(RateMeter.ONE_MINUTE))
+				.add("5m", meter == null ? 0 : meter.getRate(RateMeter.FIVE_MINUTES))
+				.add("15m", meter == null ? 0 : meter.getRate(RateMeter.FIFTEEN_MINUTES));
+	}
+
 	public String getJsonPublishedMessagesPerElement() {
 		JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
 		publishedMessagesPerElement.entrySet().forEach(entry -> {
 			JsonObjectBuilder objectBuilder = Json.createObjectBuilder()
 					.add("id", entry.getKey())
-					.add("messagecount", entry.getValue());
+					.add("messagecount", entry.getValue().sum())
+					.add("publishrate", getJsonRates(publishRatePerElement.get(entry.getKey())))
+					.add("receiverate", getJsonRates(receiveRatePerElement.get(entry.getKey())))
+					.add("consumerwindow", getConsumerWindowPerElement(entry.getKey()))
+					.add("droppedmessages", getDroppedMessagesPerElement(entry.getKey()))
+					.add("pagedmessages", getPagedMessagesPerElement(entry.getKey()))
+					.add("expiredmessages", getExpiredMessagesPerElement(entry.getKey()));
 			arrayBuilder.add(objectBuilder);
 					
 		});
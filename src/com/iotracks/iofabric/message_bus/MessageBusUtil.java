@@ -1,7 +1,10 @@
 package com.iotracks.iofabric.message_bus;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
 import com.iotracks.iofabric.element.Element;
 import com.iotracks.iofabric.element.Route;
@@ -32,12 +35,46 @@ public class MessageBusUtil {
 		if (publisher != null) {
 			try {
 				publisher.publish(message);
+				messageBus.notifyReceivers(message.getPublisher());
 			} catch (Exception e) {
 				LoggingService.logWarning("Message Publisher (" + publisher.getName() + ")", "unable to send message --> " + e.getMessage());
 			}
 		}
 	}
 	
+	/**
+	 * sets messageIds and timestamp and publishes a batch of {@link Message}
+	 * messages of each publisher are sent in a single transaction
+	 * 
+	 * @param messages - list of {@link Message} to be published
+	 */
+	public void publishBatch(List<Message> messages) {
+		if (messages.isEmpty())
+			return;
+		long timestamp = System.currentTimeMillis();
+		List<String> ids = messageBus.getNextIds(messages.size());
+		Map<String, List<Message>> messagesPerPublisher = new LinkedHashMap<>();
+		for (int i = 0; i < messages.size(); i++) {
+			Message message = messages.get(i);
+			message.setId(ids.get(i));
+			message.setTimestamp(timestamp);
+			messagesPerPublisher.computeIfAbsent(message.getPublisher(), publisher -> new ArrayList<>()).add(message);
+		}
+		
+		messagesPerPublisher.entrySet().forEach(entry -> {
+			StatusReporter.setMessageBusStatus().increasePublishedMessagesPerElement(entry.getKey(), entry.getValue().size());
+			MessagePublisher publisher = messageBus.getPublisher(entry.getKey());
+			if (publisher != null) {
+				try {
+					publisher.publish(entry.getValue());
+					messageBus.notifyReceivers(entry.getKey());
+				} catch (Exception e) {
+					LoggingService.logWarning("Message Publisher (" + publisher.getName() + ")", "unable to send messages --> " + e.getMessage());
+				}
+			}
+		});
+	}
+	
 	/**
 	 * gets list of {@link Message} for receiver
 	 * 
@@ -57,6 +94,54 @@ public class MessageBusUtil {
 		return messages;
 	}
 	
+	/**
+	 * gets limited list of {@link Message} for receiver
+	 * 
+	 * @param receiver - ID of {@link Element}
+	 * @param maxCount - maximum number of messages
+	 * @param maxBytes - size after which no more message is received
+	 * @return list of {@link Message}
+	 */
+	public List<Message> getMessages(String receiver, int maxCount, long maxBytes) {
+		List<Message> messages = new ArrayList<>();
+		MessageReceiver rec = messageBus.getReceiver(receiver); 
+		if (rec != null) {
+			try {
+				messages = rec.getMessages(maxCount, maxBytes);
+			} catch (Exception e) {
+				LoggingService.logWarning("Message Receiver (" + receiver + ")", "unable to receive messages --> " + e.getMessage());
+			}
+		}
+		return messages;
+	}
+	
+	/**
+	 * runs a task once when new messages may be available for receiver
+	 * 
+	 * @param receiver - ID of {@link Element}
+	 * @param waiter - task to run
+	 * @return false if receiver is not found
+	 */
+	public boolean waitForMessages(String receiver, Runnable waiter) {
+		MessageReceiver rec = messageBus.getReceiver(receiver);
+		if (rec == null)
+			return false;
+		rec.addWaiter(waiter);
+		return true;
+	}
+	
+	/**
+	 * removes a task added by {@link #waitForMessages(String, Runnable)} that has not run
+	 * 
+	 * @param receiver - ID of {@link Element}
+	 * @param waiter - task to remove
+	 */
+	public void stopWaiting(String receiver, Runnable waiter) {
+		MessageReceiver rec = messageBus.getReceiver(receiver);
+		if (rec != null)
+			rec.removeWaiter(waiter);
+	}
+	
 	/**
 	 * gets list of {@link Message} within a time frame
 	 * 
@@ -77,4 +162,41 @@ public class MessageBusUtil {
 		return messagePublisher.messageQuery(from, to);
 	}
 	
+	/**
+	 * opens a cursor over {@link Message}s within a time frame
+	 * 
+	 * @param publisher - ID of {@link Element}
+	 * @param receiver - ID of {@link Element}
+	 * @param from - beginning of time frame
+	 * @param to - end of time frame
+	 * @param position - position to resume from, null to start
+	 * @return {@link MessageArchive.Cursor} or null if receiver is not routed from publisher
+	 */
+	public MessageArchive.Cursor openCursor(String publisher, String receiver, long from, long to, String position) {
+		Route route = messageBus.getRoutes().get(publisher); 
+		if (to < from || route == null || !route.getReceivers().contains(receiver))
+			return null;
+
+		MessagePublisher messagePublisher = messageBus.getPublisher(publisher);
+		if (messagePublisher == null)
+			return null;
+		return messagePublisher.openCursor(from, to, position);
+	}
+	
+	/**
+	 * starts reading {@link Message}s of many publishers within a time frame, in timestamp order
+	 * 
+	 * @param receiver - ID of {@link Element}
+	 * @param positions - map of publisher ID to position to resume from, empty to start
+	 * @param from - beginning of time frame
+	 * @param to - end of time frame
+	 * @return {@link ArchiveQuery}
+	 */
+	public ArchiveQuery openQuery(String receiver, Map<String, String> positions, long from, long to) {
+		Map<String, Supplier<MessageArchive.Cursor>> cursors = new LinkedHashMap<>();
+		positions.forEach((publisher, position) -> 
+			cursors.put(publisher, () -> openCursor(publisher, receiver, from, to, position)));
+		return new ArchiveQuery(cursors, messageBus.getArchiveQueryExecutor());
+	}
+	
 }
@@ -1,91 +1,109 @@
 package com.iotracks.iofabric.message_bus;
 
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.UUID;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * class to generate unique id for {@link Message}
+ * id is 32 characters of base 58, time(8) + node(18) + sequence(6)
+ * node part is random per thread and sequence is per thread too, so no lock is needed
+ * alphabet is in ascii order, so ids sort by time
  * 
  * @author saeid
  *
  */
 public class MessageIdGenerator {
-	private final char[] ALPHABETS_ARRAY = "ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz123456789".toCharArray();
+	private static final char[] ALPHABETS_ARRAY = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz".toCharArray();
+	private static final int BASE = ALPHABETS_ARRAY.length;
+
+	private static final int TIME_LENGTH = 8;
+	private static final int NODE_LENGTH = 18;
+	private static final int SEQUENCE_LENGTH = 6;
+	private static final int ID_LENGTH = TIME_LENGTH + NODE_LENGTH + SEQUENCE_LENGTH;
+	private static final long MAX_SEQUENCE = (long) Math.pow(BASE, SEQUENCE_LENGTH) - 1;
+
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * state of generator for a thread
+	 * 
+	 */
+	private final class State {
+		private final char[] id = new char[ID_LENGTH];
+		private long lastTime = -1;
+		private long sequence;
+
+		private State() {
+			synchronized (random) {
+				for (int i = TIME_LENGTH; i < TIME_LENGTH + NODE_LENGTH; i++)
+					id[i] = ALPHABETS_ARRAY[random.nextInt(BASE)];
+			}
+		}
+	}
+
+	private final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
 
 	/**
-	 * converts base 10 to base 58
+	 * writes fixed width base 58 presentation of number into array
 	 * 
 	 * @param number - number to be converted
-	 * @return base 58 presentation of number
+	 * @param dest - destination array
+	 * @param offset - position in array
+	 * @param length - number of characters
 	 */
-	private String toBase58(long number) {
-		StringBuilder result = new StringBuilder();
-		while (number >= 58) {
-			result.append(ALPHABETS_ARRAY[(int) (number % 58)]);
-			number /= 58;
+	private void toBase58(long number, char[] dest, int offset, int length) {
+		for (int i = offset + length - 1; i >= offset; i--) {
+			dest[i] = ALPHABETS_ARRAY[(int) (number % BASE)];
+			number /= BASE;
 		}
-		result.append(ALPHABETS_ARRAY[(int) number]);
-		return result.reverse().toString();
 	}
 
-	
-	private final int MAX_SEQUENCE = 100000000;
-	private volatile long lastTime = 0;
-	private volatile int sequence = MAX_SEQUENCE;
 	/**
 	 * generates unique id based on time and sequence  
+	 * if clock goes back or sequence runs out, time of last id is used
+	 * so ids of a thread are always in order
 	 * 
 	 * @param time - timestamp in milliseconds
 	 */
-	public synchronized String generate(long time) {
-		if (lastTime == time) {
-			sequence--;
+	public String generate(long time) {
+		State s = state.get();
+		if (time > s.lastTime) {
+			s.lastTime = time;
+			s.sequence = 0;
+			toBase58(time, s.id, 0, TIME_LENGTH);
+		} else if (s.sequence < MAX_SEQUENCE) {
+			s.sequence++;
 		} else {
-			lastTime = time;
-			sequence = MAX_SEQUENCE;
+			s.lastTime++;
+			s.sequence = 0;
+			toBase58(s.lastTime, s.id, 0, TIME_LENGTH);
 		}
-		return toBase58(time) + toBase58(sequence);
+		toBase58(s.sequence, s.id, TIME_LENGTH + NODE_LENGTH, SEQUENCE_LENGTH);
+		return new String(s.id);
 	}
 
-	
-	// uuid
-	private final int PRE_GENERATED_IDS_COUNT = 100_000;
-	private boolean isRefilling = false;
-	Queue<String> generatedIds = new LinkedList<>();
 	/**
-	 * generates unique id based on UUID
-	 * 
-	 */
-	private final Runnable refill = () -> {
-		if (isRefilling)
-			return;
-		isRefilling = true;
-		while (generatedIds.size() < PRE_GENERATED_IDS_COUNT)
-			synchronized (generatedIds) {
-				generatedIds.offer(UUID.randomUUID().toString().replaceAll("-", ""));
-			}
-		isRefilling = false;
-	};
-	
-	/**
-	 * returns next generated id from list
+	 * returns next generated id
 	 * 
 	 * @return id
 	 */
 	public String getNextId() {
-		while (generatedIds.size() == 0);
-		synchronized (generatedIds) {
-			return generatedIds.poll();
-		}
+		return generate(System.currentTimeMillis());
 	}
 	
-	public MessageIdGenerator() {
-		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-		scheduler.scheduleAtFixedRate(refill, 0, 5, TimeUnit.SECONDS);
+	/**
+	 * returns a number of generated ids at once
+	 * 
+	 * @param count - number of ids
+	 * @return list of ids
+	 */
+	public List<String> getNextIds(int count) {
+		List<String> result = new ArrayList<>(count);
+		long time = System.currentTimeMillis();
+		for (int i = 0; i < count; i++)
+			result.add(generate(time));
+		return result;
 	}
 	
 //			 			 1         2         3         4         5         6         7         8         9         0         1         2         3         4         5         6         7         
@@ -1,9 +1,12 @@
 package com.iotracks.iofabric.message_bus;
 
+import org.hornetq.api.core.client.ClientConsumer;
 import org.hornetq.api.core.client.ClientMessage;
 import org.hornetq.api.core.client.MessageHandler;
 
 import com.iotracks.iofabric.local_api.MessageCallback;
+import com.iotracks.iofabric.status_reporter.StatusReporter;
+import com.iotracks.iofabric.utils.logging.LoggingService;
 
 /**
  * listener for real-time receiving
@@ -12,20 +15,46 @@ import com.iotracks.iofabric.local_api.MessageCallback;
  *
  */
 public class MessageListener implements MessageHandler{
+	private static final String MODULE_NAME = "Message Bus";
+	private final String name;
+	private final ClientConsumer consumer;
 	private final MessageCallback callback;
+	private final LatencyHistogram latency;
 	
-	public MessageListener(MessageCallback callback) {
+	public MessageListener(String name, ClientConsumer consumer, MessageCallback callback, LatencyHistogram latency) {
+		this.name = name;
+		this.consumer = consumer;
 		this.callback = callback;
+		this.latency = latency;
 	}
 	
 	@Override
 	public void onMessage(ClientMessage msg) {
+		if (latency != null)
+			latency.record(System.currentTimeMillis() - msg.getTimestamp());
+		// acknowledged after it is handed to websocket, in durable mode after it is written
+		// core client acknowledges cumulatively until a message with non-default priority arrives,
+		// then each message individually. in both cases a failed message must not stay delivering
+		// behind later acknowledges: consumer is closed, unacknowledged messages go back to route
+		// queue and are redelivered to the consumer message bus creates instead
 		try {
+			byte[] bytes = MessageBusServer.getMessageBytes(msg);
+			StatusReporter.setMessageBusStatus().increaseReceivedMessagesPerElement(name, 1, bytes.length);
+			callback.sendRealtimeMessage(bytes);
 			msg.acknowledge();
-		} catch (Exception e) {}
-		
-		Message message = new Message(msg.getBytesProperty("message"));
-		callback.sendRealtimeMessage(message);
+			MessageBusServer.signalMemoryFreed();
+		} catch (Exception e) {
+			LoggingService.logWarning(MODULE_NAME + "(" + name + ")", "unable to send real-time message, closing consumer to redeliver --> " + e.getMessage());
+			close();
+		}
+	}
+
+	private void close() {
+		try {
+			consumer.close();
+		} catch (Exception e) {
+			LoggingService.logWarning(MODULE_NAME + "(" + name + ")", "unable to close consumer --> " + e.getMessage());
+		}
 	}
 
 }
@@ -1,13 +1,18 @@
 package com.iotracks.iofabric.message_bus;
 
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 import java.util.List;
 
+import org.hornetq.api.core.SimpleString;
 import org.hornetq.api.core.client.ClientMessage;
 import org.hornetq.api.core.client.ClientProducer;
 import org.hornetq.api.core.client.ClientSession;
 
 import com.iotracks.iofabric.element.Element;
 import com.iotracks.iofabric.element.Route;
+import com.iotracks.iofabric.element.RoutePredicate;
+import com.iotracks.iofabric.utils.configuration.Configuration;
 import com.iotracks.iofabric.utils.logging.LoggingService;
 
 /**
@@ -19,16 +24,31 @@ import com.iotracks.iofabric.utils.logging.LoggingService;
 public class MessagePublisher {
 	private final MessageArchive archive;
 	private final String name;
-	private ClientProducer producer;
-	private ClientSession session;
-	private Route route;
+	private final ClientProducer producer;
+	private ClientProducer batchProducer;
+	private final ClientSession session;
+	private volatile Route route;
+	private boolean closed;
+	private final SimpleString lastValueName;
+	private static final SimpleString INFO_TYPE = new SimpleString(RoutePredicate.INFO_TYPE);
+	private static final SimpleString INFO_FORMAT = new SimpleString(RoutePredicate.INFO_FORMAT);
+	private static final SimpleString TAG = new SimpleString(RoutePredicate.TAG);
+	private static final SimpleString GROUP_ID = new SimpleString(RoutePredicate.GROUP_ID);
+	private static final SimpleString ROUTE_VERSION = new SimpleString(MessageBusServer.ROUTE_VERSION);
+	private static final SimpleString ROUTE_ORIGIN = new SimpleString(MessageBusServer.ROUTE_ORIGIN);
+	private final SimpleString origin;
+	private long routeVersion;
 	
 	public MessagePublisher(String name, Route route, ClientProducer producer) {
 		this.archive = new MessageArchive(name);
 		this.route = route;
 		this.name = name;
+		this.lastValueName = new SimpleString(name);
 		this.producer = producer;
-		this.session = MessageBusServer.getSession();
+		this.session = MessageBusServer.getSession(name);
+		this.routeVersion = System.currentTimeMillis();
+		this.origin = new SimpleString(MessageBusServer.getNodeId());
+		MessageBusServer.setAddressSettings(name, route);
 	}
 	
 	public String getName() {
@@ -37,38 +57,167 @@ public class MessagePublisher {
 
 	/**
 	 * publishes a {@link Message}
+	 * messages of one publisher are serialized; the {@link ClientSession} is locked 
+	 * only while sending, since it is shared with other publishers in its shard
+	 * waiting for free memory of a BLOCK route holds neither of them
 	 * 
 	 * @param message - {@link Message} to be published
 	 * @throws Exception
 	 */
-	protected synchronized void publish(Message message) throws Exception {
+	protected void publish(Message message) throws Exception {
 		byte[] bytes = message.getBytes();
-
-		try {
-			archive.save(bytes, message.getTimestamp());
-		} catch (Exception e) {
-			LoggingService.logWarning("Message Publisher (" + this.name + ")", "unable to archive massage --> " + e.getMessage());
+		synchronized (this) {
+			if (closed)
+				return;
+			try {
+				archive.save(bytes, message.getTimestamp());
+			} catch (Exception e) {
+				LoggingService.logWarning("Message Publisher (" + this.name + ")", "unable to archive massage --> " + e.getMessage());
+			}
 		}
-		for (String receiver : route.getReceivers()) {
-			ClientMessage msg = session.createMessage(false);
-			msg.putObjectProperty("receiver", receiver);
-			msg.putBytesProperty("message", bytes);
-			producer.send(msg);
+		if (!MessageBusServer.awaitMemory(name, route, 1))
+			return;
+		synchronized (this) {
+			if (closed || (route.getReceivers().isEmpty() && route.getExternalReceivers().isEmpty()) 
+					|| !MessageBusServer.checkOverflow(name, route, 1))
+				return;
+			synchronized (session) {
+				ClientMessage msg = session.createMessage(Configuration.isMessageDurability());
+				msg.setTimestamp(message.getTimestamp());
+				msg.setPriority(MessageBusServer.getBrokerPriority(message.getPriority()));
+				setRouteProperties(msg, message);
+				setBody(msg, bytes);
+				producer.send(msg);
+			}
 		}
 	}
 	
-	protected void update(ClientProducer producer, ClientSession session) {
-		this.session = session;
-		this.producer = producer;
+	/**
+	 * sets expiration and last value of {@link ClientMessage} from {@link Route}
+	 * header fields used by route predicates are copied to properties, so broker 
+	 * filters messages without reading the body; remote instances may have predicates too
+	 * route version tells queues of previous routing which messages are theirs, 
+	 * origin tells it is a version of this instance
+	 * 
+	 * @param msg - {@link ClientMessage} to be sent
+	 * @param message - {@link Message} in it
+	 */
+	private void setRouteProperties(ClientMessage msg, Message message) {
+		msg.putLongProperty(ROUTE_VERSION, routeVersion);
+		msg.putStringProperty(ROUTE_ORIGIN, origin);
+		if (route.getTtl() > 0)
+			msg.setExpiration(message.getTimestamp() + route.getTtl());
+		if (route.isLatestOnly())
+			msg.putStringProperty(org.hornetq.api.core.Message.HDR_LAST_VALUE_NAME, lastValueName);
+		if (!route.getPredicates().isEmpty() || !route.getExternalReceivers().isEmpty()) {
+			putProperty(msg, INFO_TYPE, message.getInfoType());
+			putProperty(msg, INFO_FORMAT, message.getInfoFormat());
+			putProperty(msg, TAG, message.getTag());
+			putProperty(msg, GROUP_ID, message.getMessageGroupId());
+		}
+	}
+
+	/**
+	 * sets body of {@link ClientMessage}
+	 * publisher has the whole encoded message already, it is archived as well;
+	 * a large one is sent to broker in chunks read from that array and kept in files there, 
+	 * instead of being copied to the body buffer
+	 * 
+	 * @param msg - {@link ClientMessage} to be sent
+	 * @param bytes - encoded {@link Message}
+	 */
+	private static void setBody(ClientMessage msg, byte[] bytes) {
+		if (bytes.length >= MessageBusServer.LARGE_MESSAGE_SIZE)
+			msg.setBodyInputStream(new ByteArrayInputStream(bytes));
+		else
+			msg.getBodyBuffer().writeBytes(bytes);
+	}
+
+	private static void putProperty(ClientMessage msg, SimpleString name, String value) {
+		if (value != null)
+			msg.putStringProperty(name, new SimpleString(value));
+	}
+
+	/**
+	 * publishes a batch of {@link Message} in a single transaction
+	 * 
+	 * @param messages - list of {@link Message} to be published
+	 * @throws Exception
+	 */
+	protected void publish(List<Message> messages) throws Exception {
+		List<byte[]> bytes = new ArrayList<>(messages.size());
+		for (Message message : messages)
+			bytes.add(message.getBytes());
+		synchronized (this) {
+			if (closed)
+				return;
+			try {
+				archive.save(bytes, messages.get(0).getTimestamp());
+			} catch (Exception e) {
+				LoggingService.logWarning("Message Publisher (" + this.name + ")", "unable to archive massage --> " + e.getMessage());
+			}
+		}
+		if (!MessageBusServer.awaitMemory(name, route, messages.size()))
+			return;
+		synchronized (this) {
+			if (closed || (route.getReceivers().isEmpty() && route.getExternalReceivers().isEmpty()) 
+					|| !MessageBusServer.checkOverflow(name, route, messages.size()))
+				return;
+			ClientSession batchSession = MessageBusServer.getBatchSession(name);
+			synchronized (batchSession) {
+				if (batchProducer == null || batchProducer.isClosed())
+					batchProducer = batchSession.createProducer(MessageBusServer.getPublisherAddress(name));
+				try {
+					for (int i = 0; i < bytes.size(); i++) {
+						ClientMessage msg = batchSession.createMessage(Configuration.isMessageDurability());
+						msg.setTimestamp(messages.get(i).getTimestamp());
+						msg.setPriority(MessageBusServer.getBrokerPriority(messages.get(i).getPriority()));
+						setRouteProperties(msg, messages.get(i));
+						setBody(msg, bytes.get(i));
+						batchProducer.send(msg);
+					}
+					batchSession.commit();
+				} catch (Exception e) {
+					batchSession.rollback();
+					throw e;
+				}
+			}
+		}
 	}
 	
-	protected void updateRoute(Route route) {
+	/**
+	 * replaces route of publisher
+	 * waits for a publish in progress, so it is completed with the previous route
+	 * 
+	 * @param route - new {@link Route}
+	 */
+	protected synchronized void updateRoute(Route route) {
 		this.route = route;
+		this.routeVersion = Math.max(routeVersion + 1, System.currentTimeMillis());
+		MessageBusServer.setAddressSettings(name, route);
+	}
+
+	/**
+	 * returns version of current route, messages are sent with it
+	 * it grows with each route update, also across restarts
+	 * 
+	 * @return version
+	 */
+	protected synchronized long getRouteVersion() {
+		return routeVersion;
 	}
 
-	public void close() {
+	/**
+	 * closes archive and batch producer
+	 * waits for a publish in progress, so no message is sent after closing
+	 * 
+	 */
+	public synchronized void close() {
+		closed = true;
 		try {
 			archive.close();
+			if (batchProducer != null)
+				batchProducer.close();
 		} catch (Exception e) {}
 	}
 
@@ -83,5 +232,18 @@ public class MessagePublisher {
 	public synchronized List<Message> messageQuery(long from, long to) {
 		return archive.messageQuery(from, to);
 	}
+
+	/**
+	 * opens a cursor over {@link Message}s published by this {@link Element} 
+	 * within a time frame, publishing is not blocked while it is read
+	 * 
+	 * @param from - beginning of time frame
+	 * @param to - end of time frame
+	 * @param position - position to resume from, null to start
+	 * @return {@link MessageArchive.Cursor}
+	 */
+	public MessageArchive.Cursor openCursor(long from, long to, String position) {
+		return archive.openCursor(from, to, position);
+	}
 	
 }
@@ -1,13 +1,20 @@
 package com.iotracks.iofabric.message_bus;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hornetq.api.core.client.ClientConsumer;
 import org.hornetq.api.core.client.ClientMessage;
 
 import com.iotracks.iofabric.element.Element;
 import com.iotracks.iofabric.local_api.MessageCallback;
+import com.iotracks.iofabric.status_reporter.StatusReporter;
+import com.iotracks.iofabric.utils.logging.LoggingService;
 
 /**
  * receiver {@link Element}
@@ -18,51 +25,262 @@ import com.iotracks.iofabric.local_api.MessageCallback;
 public class MessageReceiver {
 	private final String name;
 
-	private MessageListener listener;
-	private ClientConsumer consumer;
+	private MessageCallback callback;
+	private final Map<String, ClientConsumer> consumers;
+	private final Map<String, ClientConsumer> retiringConsumers;
+	private final Map<String, LatencyHistogram> latencies;
+	private final Set<Runnable> waiters;
+	private long messagesAdded;
 
-	public MessageReceiver(String name, ClientConsumer consumer) {
+	public MessageReceiver(String name) {
 		this.name = name;
-		this.consumer = consumer;
-		this.listener = null;
+		this.consumers = new ConcurrentHashMap<>();
+		this.retiringConsumers = new ConcurrentHashMap<>();
+		this.latencies = new ConcurrentHashMap<>();
+		this.waiters = ConcurrentHashMap.newKeySet();
+		this.callback = null;
+	}
+
+	/**
+	 * adds {@link ClientConsumer} of the route from a publisher to this {@link Element}
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param consumer - {@link ClientConsumer} of the route queue
+	 */
+	protected synchronized void addConsumer(String publisher, ClientConsumer consumer) {
+		if (consumer == null)
+			return;
+		consumers.put(publisher, consumer);
+		LatencyHistogram latency = StatusReporter.getMessageBusStatus().getLatencyHistogram(publisher, name);
+		latencies.put(publisher, latency);
+		if (callback != null)
+			try {
+				consumer.setMessageHandler(new MessageListener(name, consumer, callback, latency));
+			} catch (Exception e) {}
+	}
+
+	/**
+	 * closes {@link ClientConsumer} of the route from a publisher to this {@link Element}
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 */
+	protected synchronized void removeConsumer(String publisher) {
+		ClientConsumer consumer = consumers.remove(publisher);
+		latencies.remove(publisher);
+		StatusReporter.getMessageBusStatus().removeLatencyHistogram(publisher, name);
+		if (consumer == null)
+			return;
+		try {
+			consumer.close();
+		} catch (Exception e) {}
+	}
+
+	/**
+	 * replaces {@link ClientConsumer} of the route from a publisher to this {@link Element}
+	 * previous consumer is closed before new one is created, so messages it buffered and 
+	 * not received yet are back in route queue before new one gets any and their order is kept
+	 * 
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param factory - creates new {@link ClientConsumer} of the route queue
+	 * @throws Exception
+	 */
+	protected synchronized void replaceConsumer(String publisher, Callable<ClientConsumer> factory) throws Exception {
+		ClientConsumer previous = consumers.remove(publisher);
+		if (previous != null)
+			try {
+				previous.close();
+			} catch (Exception e) {
+				LoggingService.logWarning("Message Receiver (" + name + ")", "unable to close consumer --> " + e.getMessage());
+			}
+		ClientConsumer consumer = factory.call();
+		if (consumer == null)
+			return;
+		consumers.put(publisher, consumer);
+		if (callback != null)
+			try {
+				consumer.setMessageHandler(new MessageListener(name, consumer, callback, latencies.get(publisher)));
+			} catch (Exception e) {}
+		// messages of previous consumer are back in queue without being added to it again
+		notifyWaiters();
+	}
+
+	/**
+	 * adds {@link ClientConsumer} of a route queue of previous routing, read until it is drained
+	 * 
+	 * @param queue - name of route queue
+	 * @param consumer - {@link ClientConsumer} of the queue
+	 */
+	protected synchronized void addRetiringConsumer(String queue, ClientConsumer consumer) {
+		ClientConsumer previous = retiringConsumers.put(queue, consumer);
+		if (callback != null)
+			try {
+				consumer.setMessageHandler(new MessageListener(name, consumer, callback, null));
+			} catch (Exception e) {}
+		if (previous == null || previous == consumer)
+			return;
+		try {
+			previous.close();
+		} catch (Exception e) {}
+	}
+
+	/**
+	 * closes {@link ClientConsumer} of a drained route queue of previous routing
+	 * 
+	 * @param queue - name of route queue
+	 */
+	protected synchronized void removeRetiringConsumer(String queue) {
+		ClientConsumer consumer = retiringConsumers.remove(queue);
+		if (consumer == null)
+			return;
+		try {
+			consumer.close();
+		} catch (Exception e) {}
+	}
+
+	/**
+	 * returns whether this {@link Element} still receives from any route queue
+	 * 
+	 * @return true if there is a consumer of current or previous routing
+	 */
+	protected boolean hasConsumers() {
+		return !consumers.isEmpty() || !retiringConsumers.isEmpty();
+	}
+
+	/**
+	 * returns IDs of publishers routed to this {@link Element}
+	 * 
+	 * @return set of {@link Element} IDs
+	 */
+	protected Set<String> getPublishers() {
+		return consumers.keySet();
 	}
 
 	/**
 	 * receivers list of {@link Message} sent to this {@link Element}
+	 * messages with higher priority come first
 	 * 
 	 * @return list of {@link Message}
 	 * @throws Exception
 	 */
-	protected synchronized List<Message> getMessages() throws Exception {
+	protected List<Message> getMessages() throws Exception {
+		return getMessages(Integer.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * receives limited list of {@link Message} sent to this {@link Element}
+	 * consumers are read in turn, so a busy route does not hold back the others
+	 * queues of previous routing come first, since their messages are older
+	 * messages not received stay in route queues for next call
+	 * 
+	 * @param maxCount - maximum number of messages
+	 * @param maxBytes - size after which no more message is received, so it is exceeded by one message at most
+	 * @return list of {@link Message}, higher priority first
+	 * @throws Exception
+	 */
+	protected synchronized List<Message> getMessages(int maxCount, long maxBytes) throws Exception {
 		List<Message> result = new ArrayList<>();
+		long bytes = 0;
 		
-		if (consumer != null || listener == null) {
-			Message message = getMessage();
-			while (message != null) {
-				result.add(message);
-				message = getMessage();
+		if (callback == null) {
+			List<ClientMessage> received = new ArrayList<>();
+			List<Map.Entry<String, ClientConsumer>> active = new ArrayList<>(retiringConsumers.entrySet());
+			active.addAll(consumers.entrySet());
+			while (!active.isEmpty() && result.size() < maxCount && bytes < maxBytes) {
+				Iterator<Map.Entry<String, ClientConsumer>> iterator = active.iterator();
+				while (iterator.hasNext() && result.size() < maxCount && bytes < maxBytes) {
+					Map.Entry<String, ClientConsumer> entry = iterator.next();
+					ClientMessage msg = receive(entry.getValue());
+					if (msg == null) {
+						iterator.remove();
+						continue;
+					}
+					byte[] messageBytes = MessageBusServer.getMessageBytes(msg);
+					bytes += messageBytes.length;
+					Message message = new Message(messageBytes);
+					LatencyHistogram latency = latencies.get(entry.getKey());
+					if (latency != null)
+						latency.record(System.currentTimeMillis() - message.getTimestamp());
+					result.add(message);
+					received.add(msg);
+				}
 			}
+			// acknowledges received messages after all of them are decoded
+			// core client switches to individual acknowledge once a message with non-default
+			// priority arrives, so an acknowledge of the last message does not cover the others
+			for (ClientMessage message : received)
+				message.acknowledge();
+			if (!received.isEmpty())
+				MessageBusServer.signalMemoryFreed();
+			// higher priority first, sort is stable so order of each priority is kept
+			if (result.size() > 1)
+				result.sort((m1, m2) -> MessageBusServer.getBrokerPriority(m2.getPriority()) - MessageBusServer.getBrokerPriority(m1.getPriority()));
+			if (!result.isEmpty())
+				StatusReporter.setMessageBusStatus().increaseReceivedMessagesPerElement(name, result.size(), bytes);
 		}
 		return result;
 	}
 
 	/**
-	 * receives only one {@link Message}
+	 * adds a task run once when new messages may be available for this {@link Element}
 	 * 
-	 * @return {@link Message}
-	 * @throws Exception
+	 * @param waiter - task to run
 	 */
-	private Message getMessage() throws Exception {
-		if (consumer == null || listener != null)
-			return null;
+	protected void addWaiter(Runnable waiter) {
+		waiters.add(waiter);
+	}
+
+	/**
+	 * removes a waiting task, when its request is completed or has timed out
+	 * 
+	 * @param waiter - task added before
+	 */
+	protected void removeWaiter(Runnable waiter) {
+		waiters.remove(waiter);
+	}
+
+	/**
+	 * runs waiting tasks if messages have been added to route queues since last check
+	 * publishers of this instance notify receivers, messages bridged from other instances 
+	 * or left in retiring queues are found this way
+	 * 
+	 */
+	protected void checkWaiters() {
+		if (waiters.isEmpty())
+			return;
+		long added = MessageBusServer.getMessagesAdded(name, consumers.keySet(), retiringConsumers.keySet());
+		if (added == messagesAdded)
+			return;
+		messagesAdded = added;
+		notifyWaiters();
+	}
 
-		Message result = null; 
-		ClientMessage msg = consumer.receiveImmediate();
-		if (msg != null) {
-			msg.acknowledge();
-			result = new Message(msg.getBytesProperty("message"));
+	/**
+	 * runs and removes waiting tasks
+	 * 
+	 */
+	protected void notifyWaiters() {
+		for (Runnable waiter : waiters) {
+			if (!waiters.remove(waiter))
+				continue;
+			try {
+				waiter.run();
+			} catch (Exception e) {
+				LoggingService.logWarning("Message Receiver (" + name + ")", "unable to notify waiting request --> " + e.getMessage());
+			}
 		}
-		return result;
+	}
+
+	/**
+	 * receives only one {@link ClientMessage}, without acknowledging it
+	 * 
+	 * @param consumer - {@link ClientConsumer} to receive from
+	 * @return {@link ClientMessage}
+	 * @throws Exception
+	 */
+	private ClientMessage receive(ClientConsumer consumer) throws Exception {
+		if (consumer.isClosed() || callback != null)
+			return null;
+		return consumer.receiveImmediate();
 	}
 
 	protected String getName() {
@@ -73,14 +291,22 @@ public class MessageReceiver {
 	 * enables real-time receiving for this {@link Element}
 	 * 
 	 */
-	protected void enableRealTimeReceiving() {
-		if (consumer == null || consumer.isClosed())
-			return;
-		listener = new MessageListener(new MessageCallback(name));
-		try {
-			consumer.setMessageHandler(listener);
-		} catch (Exception e) {
-			listener = null;
+	protected synchronized void enableRealTimeReceiving() {
+		callback = new MessageCallback(name);
+		for (Map.Entry<String, ClientConsumer> entry : consumers.entrySet()) {
+			ClientConsumer consumer = entry.getValue();
+			if (consumer.isClosed())
+				continue;
+			try {
+				consumer.setMessageHandler(new MessageListener(name, consumer, callback, latencies.get(entry.getKey())));
+			} catch (Exception e) {}
+		}
+		for (ClientConsumer consumer : retiringConsumers.values()) {
+			if (consumer.isClosed())
+				continue;
+			try {
+				consumer.setMessageHandler(new MessageListener(name, consumer, callback, null));
+			} catch (Exception e) {}
 		}
 	}
 	
@@ -88,21 +314,31 @@ public class MessageReceiver {
 	 * disables real-time receiving for this {@link Element}
 	 * 
 	 */
-	protected void disableRealTimeReceiving() {
-		try {
-			if (consumer == null || listener == null || consumer.getMessageHandler() == null)
-				return;
-			listener = null;
-			consumer.setMessageHandler(null);
-		} catch (Exception e) {}
+	protected synchronized void disableRealTimeReceiving() {
+		if (callback == null)
+			return;
+		callback = null;
+		List<ClientConsumer> all = new ArrayList<>(consumers.values());
+		all.addAll(retiringConsumers.values());
+		for (ClientConsumer consumer : all) {
+			try {
+				if (consumer.getMessageHandler() != null)
+					consumer.setMessageHandler(null);
+			} catch (Exception e) {}
+		}
 	}
 	
-	protected void close() {
-		if (consumer == null)
-			return;
+	protected synchronized void close() {
 		disableRealTimeReceiving();
-		try {
-			consumer.close();
-		} catch (Exception e) {}
+		notifyWaiters();
+		List<ClientConsumer> all = new ArrayList<>(consumers.values());
+		all.addAll(retiringConsumers.values());
+		for (ClientConsumer consumer : all) {
+			try {
+				consumer.close();
+			} catch (Exception e) {}
+		}
+		consumers.clear();
+		retiringConsumers.clear();
 	}
 }
@@ -0,0 +1,262 @@
+package com.iotracks.iofabric.message_bus;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * read-only view over an encoded IOMessage
+ * fields are read lazily at computed offsets, straight from the buffer
+ *
+ */
+public class MessageView {
+	public static final int HEADER_SIZE = 33;
+
+	public static final int ID = 0;
+	public static final int TAG = 1;
+	public static final int GROUP_ID = 2;
+	public static final int SEQUENCE_NUMBER = 3;
+	public static final int SEQUENCE_TOTAL = 4;
+	public static final int PRIORITY = 5;
+	public static final int TIMESTAMP = 6;
+	public static final int PUBLISHER = 7;
+	public static final int AUTH_IDENTIFIER = 8;
+	public static final int AUTH_GROUP = 9;
+	public static final int CHAIN_POSITION = 10;
+	public static final int HASH = 11;
+	public static final int PREVIOUS_HASH = 12;
+	public static final int NONCE = 13;
+	public static final int DIFFICULTY_TARGET = 14;
+	public static final int INFO_TYPE = 15;
+	public static final int INFO_FORMAT = 16;
+	public static final int CONTEXT_DATA = 17;
+	public static final int CONTENT_DATA = 18;
+
+	private static final int FIELDS_COUNT = 19;
+	// position of each field length in header and width of it
+	private static final int[] SIZE_POSITION = { 2, 3, 5, 6, 7, 8, 9, 10, 11, 13, 15, 16, 18, 20, 22, 23, 24, 25, 29 };
+	private static final int[] SIZE_WIDTH = { 1, 2, 1, 1, 1, 1, 1, 1, 2, 2, 1, 2, 2, 2, 1, 1, 1, 4, 4 };
+
+	private ByteBuffer header;
+	private int headerOffset;
+	private ByteBuffer data;
+	private int dataOffset;
+	private final int[] offsets = new int[FIELDS_COUNT + 1];
+	private boolean offsetsComputed;
+
+	/**
+	 * points this view to an encoded {@link Message}
+	 *
+	 * @param buffer - buffer containing the {@link Message}
+	 * @param offset - position of {@link Message} in buffer
+	 * @return this view
+	 */
+	public MessageView wrap(ByteBuffer buffer, int offset) {
+		return wrap(buffer, offset, buffer, offset + HEADER_SIZE);
+	}
+
+	/**
+	 * points this view to an encoded {@link Message} whose header and data are stored apart
+	 * data may be null, if only sizes are read
+	 *
+	 * @param header - buffer containing the header
+	 * @param headerOffset - position of header in buffer
+	 * @param data - buffer containing the data
+	 * @param dataOffset - position of data in buffer
+	 * @return this view
+	 */
+	public MessageView wrap(ByteBuffer header, int headerOffset, ByteBuffer data, int dataOffset) {
+		this.header = header;
+		this.headerOffset = headerOffset;
+		this.data = data;
+		this.dataOffset = dataOffset;
+		this.offsetsComputed = false;
+		return this;
+	}
+
+	public short getVersion() {
+		return header.getShort(headerOffset);
+	}
+
+	public boolean isValid() {
+		return getVersion() == Message.VERSION;
+	}
+
+	/**
+	 * returns length of a field from header
+	 *
+	 * @param field - index of field
+	 * @return length in bytes
+	 */
+	public int getSize(int field) {
+		int pos = headerOffset + SIZE_POSITION[field];
+		switch (SIZE_WIDTH[field]) {
+			case 1:
+				return header.get(pos) & 0xff;
+			case 2:
+				return header.getShort(pos) & 0xffff;
+			default:
+				return header.getInt(pos);
+		}
+	}
+
+	/**
+	 * computes offset of every field in data, using header only
+	 *
+	 */
+	private void computeOffsets() {
+		if (offsetsComputed)
+			return;
+		int pos = dataOffset;
+		for (int i = 0; i < FIELDS_COUNT; i++) {
+			offsets[i] = pos;
+			pos += getSize(i);
+		}
+		offsets[FIELDS_COUNT] = pos;
+		offsetsComputed = true;
+	}
+
+	/**
+	 * returns size of data section
+	 *
+	 * @return length in bytes
+	 */
+	public int getDataSize() {
+		computeOffsets();
+		return offsets[FIELDS_COUNT] - dataOffset;
+	}
+
+	/**
+	 * returns size of encoded {@link Message}
+	 *
+	 * @return length in bytes
+	 */
+	public int getLength() {
+		return HEADER_SIZE + getDataSize();
+	}
+
+	/**
+	 * returns position of a field in data buffer
+	 *
+	 * @param field - index of field
+	 * @return offset
+	 */
+	public int getOffset(int field) {
+		computeOffsets();
+		return offsets[field];
+	}
+
+	/**
+	 * reads a big-endian number field
+	 *
+	 * @param field - index of field
+	 * @return value
+	 */
+	private long getNumber(int field) {
+		int size = getSize(field);
+		int pos = getOffset(field);
+		long result = 0;
+		for (int i = 0; i < size; i++)
+			result = (result << 8) + (data.get(pos + i) & 0xff);
+		return result;
+	}
+
+	/**
+	 * reads a string field
+	 *
+	 * @param field - index of field
+	 * @return value or null
+	 */
+	private String getString(int field) {
+		int size = getSize(field);
+		if (size == 0)
+			return null;
+		int pos = getOffset(field);
+		if (data.hasArray())
+			return new String(data.array(), data.arrayOffset() + pos, size, StandardCharsets.UTF_8);
+		return new String(getBytes(field), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * copies a field out of the buffer
+	 *
+	 * @param field - index of field
+	 * @return value or null
+	 */
+	public byte[] getBytes(int field) {
+		int size = getSize(field);
+		if (size == 0)
+			return null;
+		byte[] result = new byte[size];
+		ByteBuffer src = data.duplicate();
+		src.position(getOffset(field));
+		src.get(result);
+		return result;
+	}
+
+	public String getId() {
+		return getString(ID);
+	}
+	public String getTag() {
+		return getString(TAG);
+	}
+	public String getMessageGroupId() {
+		return getString(GROUP_ID);
+	}
+	public int getSequenceNumber() {
+		return (int) getNumber(SEQUENCE_NUMBER);
+	}
+	public int getSequenceTotal() {
+		return (int) getNumber(SEQUENCE_TOTAL);
+	}
+	public byte getPriority() {
+		return (byte) getNumber(PRIORITY);
+	}
+	public long getTimestamp() {
+		return getNumber(TIMESTAMP);
+	}
+	public String getPublisher() {
+		return getString(PUBLISHER);
+	}
+	public String getAuthIdentifier() {
+		return getString(AUTH_IDENTIFIER);
+	}
+	public String getAuthGroup() {
+		return getString(AUTH_GROUP);
+	}
+	public long getChainPosition() {
+		return getNumber(CHAIN_POSITION);
+	}
+	public String getHash() {
+		return getString(HASH);
+	}
+	public String getPreviousHash() {
+		return getString(PREVIOUS_HASH);
+	}
+	public String getNonce() {
+		return getString(NONCE);
+	}
+	public int getDifficultyTarget() {
+		return (int) getNumber(DIFFICULTY_TARGET);
+	}
+	public String getInfoType() {
+		return getString(INFO_TYPE);
+	}
+	public String getInfoFormat() {
+		return getString(INFO_FORMAT);
+	}
+	public byte[] getContextData() {
+		return getBytes(CONTEXT_DATA);
+	}
+	public byte[] getContentData() {
+		return getBytes(CONTENT_DATA);
+	}
+
+	/**
+	 * decodes all fields
+	 *
+	 * @return {@link Message}
+	 */
+	public Message toMessage() {
+		return new Message(this);
+	}
+}
@@ -0,0 +1,92 @@
+package com.iotracks.iofabric.message_bus;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * rolling rate of events over the last 15 minutes
+ * counts are kept per second in a ring, so rates over any window up to 15 minutes
+ * are summed on read, without locks or a timer thread
+ * each slot holds the lap of the ring it belongs to and its count in one long,
+ * so a slot is reset and counted with one compare-and-set
+ *
+ */
+public class RateMeter {
+	public static final int ONE_SECOND = 1;
+	public static final int ONE_MINUTE = 60;
+	public static final int FIVE_MINUTES = 5 * 60;
+	public static final int FIFTEEN_MINUTES = 15 * 60;
+
+	private static final int SLOTS = FIFTEEN_MINUTES + 1;
+	private static final int COUNT_BITS = 40;
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+	private static final long LAP_MASK = (1L << (Long.SIZE - COUNT_BITS)) - 1;
+
+	private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+	private static long getLap(long second) {
+		return (second / SLOTS) & LAP_MASK;
+	}
+
+	/**
+	 * adds events to the slot of a second, resetting it if it holds an older lap
+	 *
+	 * @param second - epoch second
+	 * @param count - number of events
+	 */
+	private void add(long second, long count) {
+		int slot = (int) (second % SLOTS);
+		long lap = getLap(second);
+		while (true) {
+			long value = slots.get(slot);
+			long current = (value >>> COUNT_BITS) == lap ? value & COUNT_MASK : 0;
+			long next = (lap << COUNT_BITS) | Math.min(current + count, COUNT_MASK);
+			if (slots.compareAndSet(slot, value, next))
+				return;
+		}
+	}
+
+	/**
+	 * records events in the current second
+	 *
+	 * @param count - number of events
+	 */
+	public void mark(long count) {
+		add(System.currentTimeMillis() / 1000, count);
+	}
+
+	/**
+	 * records events counted over an interval ending now, spread evenly over its seconds
+	 * used for counters which are sampled periodically
+	 *
+	 * @param count - number of events
+	 * @param interval - interval length in seconds, at most 15 minutes
+	 */
+	public void mark(long count, int interval) {
+		long now = System.currentTimeMillis() / 1000;
+		interval = Math.max(1, Math.min(interval, FIFTEEN_MINUTES));
+		long share = count / interval;
+		long remainder = count % interval;
+		for (int i = 0; i < interval; i++) {
+			long amount = share + (i < remainder ? 1 : 0);
+			if (amount > 0)
+				add(now - i, amount);
+		}
+	}
+
+	/**
+	 * returns average rate over the last complete seconds
+	 *
+	 * @param window - window length in seconds, at most 15 minutes
+	 * @return events per second
+	 */
+	public float getRate(int window) {
+		long now = System.currentTimeMillis() / 1000;
+		long total = 0;
+		for (long second = now - window; second < now; second++) {
+			long value = slots.get((int) (second % SLOTS));
+			if ((value >>> COUNT_BITS) == getLap(second))
+				total += value & COUNT_MASK;
+		}
+		return (float) total / window;
+	}
+}
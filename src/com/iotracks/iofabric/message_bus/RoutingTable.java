@@ -0,0 +1,105 @@
+package com.iotracks.iofabric.message_bus;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.iotracks.iofabric.element.Element;
+import com.iotracks.iofabric.element.Route;
+
+/**
+ * immutable snapshot of routing
+ * each update builds a new version and replaces the current one at once,
+ * so readers always see one consistent version without locking
+ * {@link Route}s are copied, so changes Field Agent makes to its routes afterwards are not seen
+ *
+ */
+public final class RoutingTable {
+	private final Map<String, Route> routes;
+	private final Map<String, Set<String>> publishersPerReceiver;
+
+	/**
+	 * builds a new version from routes of Field Agent
+	 *
+	 * @param routes - map of publisher ID to {@link Route}, may be null
+	 */
+	public RoutingTable(Map<String, Route> routes) {
+		Map<String, Route> routesCopy = new HashMap<>();
+		Map<String, Set<String>> publishers = new HashMap<>();
+		if (routes != null)
+			routes.entrySet().stream()
+				.filter(entry -> entry.getValue() != null && entry.getValue().getReceivers() != null)
+				.forEach(entry -> {
+					Route route = new Route(entry.getValue());
+					routesCopy.put(entry.getKey(), route);
+					route.getReceivers().forEach(receiver ->
+						publishers.computeIfAbsent(receiver, r -> new HashSet<>()).add(entry.getKey()));
+				});
+		publishers.replaceAll((receiver, set) -> Collections.unmodifiableSet(set));
+		this.routes = Collections.unmodifiableMap(routesCopy);
+		this.publishersPerReceiver = Collections.unmodifiableMap(publishers);
+	}
+
+	public Map<String, Route> getRoutes() {
+		return routes;
+	}
+
+	public Route getRoute(String publisher) {
+		return routes.get(publisher);
+	}
+
+	public Set<String> getPublishers() {
+		return routes.keySet();
+	}
+
+	public Set<String> getReceivers() {
+		return publishersPerReceiver.keySet();
+	}
+
+	/**
+	 * returns publishers routed to a receiver
+	 *
+	 * @param receiver - ID of receiver {@link Element}
+	 * @return set of publisher IDs, empty if not routed
+	 */
+	public Set<String> getPublishers(String receiver) {
+		return publishersPerReceiver.getOrDefault(receiver, Collections.emptySet());
+	}
+
+	public boolean isRouted(String publisher, String receiver) {
+		return getPublishers(receiver).contains(publisher);
+	}
+
+	/**
+	 * returns whether route queue from publisher to receiver needs to be recreated from a previous version
+	 * latest only and filter are fixed when a queue is created
+	 *
+	 * @param previous - previous version
+	 * @param publisher - ID of publisher {@link Element}
+	 * @param receiver - ID of receiver {@link Element}
+	 * @return true if queue settings have changed
+	 */
+	public boolean isQueueChanged(RoutingTable previous, String publisher, String receiver) {
+		if (!previous.isRouted(publisher, receiver))
+			return false;
+		return isQueueChanged(previous.getRoute(publisher), getRoute(publisher), receiver);
+	}
+
+	/**
+	 * returns whether route queue created for a route needs to be recreated for another one
+	 *
+	 * @param oldRoute - {@link Route} queue has been created for
+	 * @param route - new {@link Route}
+	 * @param receiver - ID of receiver {@link Element}
+	 * @return true if queue settings have changed
+	 */
+	private static boolean isQueueChanged(Route oldRoute, Route route, String receiver) {
+		if (oldRoute == null || route == null)
+			return false;
+		return oldRoute.isLatestOnly() != route.isLatestOnly()
+				|| !Objects.equals(oldRoute.getFilter(receiver), route.getFilter(receiver));
+	}
+}
@@ -102,6 +102,12 @@ public class ResourceConsumptionManager {
 			indexFile.delete();
 			amount -= dataFile.length();
 			dataFile.delete();
+			File timestampIndexFile = new File(archivesDirectory + indexFile.getName().substring(0, indexFile.getName().indexOf('.')) + ".tix");
+			amount -= timestampIndexFile.length();
+			timestampIndexFile.delete();
+			File footerFile = new File(archivesDirectory + indexFile.getName().substring(0, indexFile.getName().indexOf('.')) + ".ftr");
+			amount -= footerFile.length();
+			footerFile.delete();
 			if (amount < 0)
 				break;
 		}
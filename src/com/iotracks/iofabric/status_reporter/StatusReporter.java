@@ -9,6 +9,7 @@ import java.util.concurrent.TimeUnit;
 import com.iotracks.iofabric.field_agent.FieldAgentStatus;
 import com.iotracks.iofabric.local_api.LocalApiStatus;
 import com.iotracks.iofabric.message_bus.MessageBusStatus;
+import com.iotracks.iofabric.message_bus.RateMeter;
 import com.iotracks.iofabric.process_manager.ProcessManagerStatus;
 import com.iotracks.iofabric.resource_consumption_manager.ResourceConsumptionManagerStatus;
 import com.iotracks.iofabric.supervisor.SupervisorStatus;
@@ -72,7 +73,25 @@ public final class StatusReporter {
 		result.append("\nRunning Elements            : " + processManagerStatus.getRunningElementsCount());
 		result.append("\nConnection to Controller    : " + connectionStatus);
 		result.append(String.format("\nMessages Processed          : about %,d", messageBusStatus.getProcessedMessages())); 
+		result.append(String.format("\nMessages Dropped/Paged      : about %,d / %,d", 
+				messageBusStatus.getDroppedMessages(), messageBusStatus.getPagedMessages())); 
+		result.append(String.format("\nMessages Expired            : about %,d", messageBusStatus.getExpiredMessages())); 
+		result.append(String.format("\nArchive Lag/Dropped         : %,d (%,d ms) / %,d", messageBusStatus.getArchiveLag(),
+				messageBusStatus.getArchiveLagMillis(), messageBusStatus.getArchiveDroppedMessages())); 
+		result.append(String.format("\nMessage Rate (1s/1m/5m/15m) : %.2f / %.2f / %.2f / %.2f msg/s",
+				messageBusStatus.getProcessedRate(RateMeter.ONE_SECOND), messageBusStatus.getProcessedRate(RateMeter.ONE_MINUTE),
+				messageBusStatus.getProcessedRate(RateMeter.FIVE_MINUTES), messageBusStatus.getProcessedRate(RateMeter.FIFTEEN_MINUTES))); 
 		result.append("\nSystem Time                 : " + 		dateFormat.format(cal.getTime()));
+		messageBusStatus.getLatencyPerRoute().entrySet().forEach(publisher -> {
+			publisher.getValue().entrySet().forEach(receiver -> {
+				result.append("\nRoute Latency               : " + publisher.getKey() + " -> " + receiver.getKey() + " : " + receiver.getValue());
+			});
+		});
+		messageBusStatus.getBridges().forEach(bridge -> 
+			result.append("\nBridge                      : " + bridge.getPublisher() + " -> " + bridge.getLink() + " : " + bridge));
+		messageBusStatus.getConsumerWindowPerElement().forEach((receiver, window) ->
+			result.append(String.format("\nConsumer Window             : %s : %,d KiB, receiving %.2f KiB/s", receiver, window / 1024,
+					messageBusStatus.getReceiveByteRate(receiver, RateMeter.ONE_MINUTE) / 1024)));
 		
 		return result.toString();
 	}
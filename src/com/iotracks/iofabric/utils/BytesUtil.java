@@ -1,7 +1,13 @@
 package com.iotracks.iofabric.utils;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * provides methods for "number <=> byte array" conversions
@@ -10,19 +16,15 @@ import java.io.IOException;
  *
  */
 public class BytesUtil {
+	private static final ThreadLocal<CharsetEncoder> UTF8_ENCODER = ThreadLocal.withInitial(() -> 
+		StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE));
 	
 	public static byte[] copyOfRange(byte[] src, int from, int to) {
 		if (from < 0 || from >= src.length || to < from || to > src.length)
 			return new byte[] {};
-		byte[] tmp = new byte[from];
-		byte[] result = new byte[to - from];
-		ByteArrayInputStream input = new ByteArrayInputStream(src);
-		input.read(tmp, 0, tmp.length);
-		input.read(result, 0, result.length);
-		try {
-			input.close();
-		} catch (IOException e) {}
-		return result;
+		return Arrays.copyOfRange(src, from, to);
 	}
 	
 	public static byte[] longToBytes(long x) {
@@ -84,6 +86,50 @@ public class BytesUtil {
 		return new String(bytes);
 	}
 
+	/**
+	 * computes UTF-8 encoded length of string without encoding it
+	 * counts malformed surrogates as one byte, since {@link #putUtf8} writes them as '?'
+	 * 
+	 * @param s - string
+	 * @return length in bytes
+	 */
+	public static int utf8Length(String s) {
+		int result = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				result++;
+			else if (c < 0x800)
+				result += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				result += 4;
+				i++;
+			} else if (Character.isSurrogate(c))
+				result++;
+			else
+				result += 3;
+		}
+		return result;
+	}
+
+	/**
+	 * writes UTF-8 encoded string into buffer at its current position
+	 * JDK encoder is used, which writes malformed surrogates as '?', like {@link String#getBytes(java.nio.charset.Charset)}
+	 * 
+	 * @param buffer - output buffer
+	 * @param s - string
+	 */
+	public static void putUtf8(ByteBuffer buffer, String s) {
+		if (s == null)
+			return;
+		CharsetEncoder encoder = UTF8_ENCODER.get().reset();
+		CoderResult result = encoder.encode(CharBuffer.wrap(s), buffer, true);
+		if (!result.isOverflow())
+			result = encoder.flush(buffer);
+		if (result.isOverflow())
+			throw new BufferOverflowException();
+	}
+
 	/**
 	 * returns string presentation of byte array
 	 * byte[] a = {1, 2, 3, 4} => String a = "[1, 2, 3, 4]"
@@ -28,6 +28,14 @@ public class Constants {
 	public enum ControllerStatus {
 		NOT_PROVISIONED, BROKEN, OK
 	}
+
+	public enum OverflowPolicy {
+		BLOCK, PAGE, DROP_OLDEST, DROP_NEW
+	}
+
+	public enum ArchiveDurability {
+		NONE, PERIODIC, BATCH
+	}
 	
 	public static final String VERSION = "1.29";
 	
@@ -44,6 +52,8 @@ public class Constants {
 
 	public static final String address = "iofabric.message_bus";
 	public static final String commandlineAddress = "iofabric.commandline";
+	public static final String expiryAddress = "iofabric.expiry";
+	public static final long MESSAGE_EXPIRY_SCAN_PERIOD_MILLIS = 1000;
 	
 	public static final int KiB = 1024;
 	public static final int MiB = 1024 * 1024;
@@ -57,8 +67,6 @@ public class Constants {
 	public static final int PING_CONTROLLER_FREQ_SECONDS = 60;
 	public static final int POST_STATUS_FREQ_SECONDS = osArch.equals("arm") ? 20 : 5;
 
-	public static final int SPEED_CALCULATION_FREQ_MINUTES = 1;
-
 	public static final int MONITOR_CONTAINERS_STATUS_FREQ_SECONDS = osArch.equals("arm") ? 30 : 10;
 	public static final int MONITOR_REGISTRIES_STATUS_FREQ_SECONDS = osArch.equals("arm") ? 120 : 60;
 
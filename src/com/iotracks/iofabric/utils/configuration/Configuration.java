@@ -24,6 +24,7 @@ import com.iotracks.iofabric.field_agent.FieldAgent;
 import com.iotracks.iofabric.message_bus.MessageBus;
 import com.iotracks.iofabric.process_manager.ProcessManager;
 import com.iotracks.iofabric.resource_consumption_manager.ResourceConsumptionManager;
+import com.iotracks.iofabric.utils.Constants.ArchiveDurability;
 import com.iotracks.iofabric.utils.Orchestrator;
 import com.iotracks.iofabric.utils.logging.LoggingService;
 
@@ -53,6 +54,26 @@ public final class Configuration {
 	private static int logFileCount;
 	private static int statusUpdateFreq;
 	private static int getChangesFreq;
+	private static boolean messageDurability;
+	private static String journalType;
+	private static int journalBufferSize;
+	private static int journalBufferTimeout;
+	private static int journalFileSize;
+	private static String messageBusHost;
+	private static int messageBusPort;
+	private static int consumerWindowSize = 1024 * 1024;
+	private static int maxConsumerWindowSize = 8 * 1024 * 1024;
+	private static boolean adaptiveConsumerWindow = true;
+	private static Map<String, Integer> consumerWindowOverrides = Collections.emptyMap();
+	private static int consumerMaxRate = -1;
+	private static int producerWindowSize = 64 * 1024;
+	private static int producerMaxRate = -1;
+	private static int clientThreadPoolSize;
+	private static ArchiveDurability archiveDurability = ArchiveDurability.NONE;
+	private static int archiveSyncInterval = 1000;
+	private static int archiveFlushInterval = 200;
+	private static int archiveBufferSize = 64 * 1024;
+	private static int archiveQueueSize = 10000;
 	private static Map<String, Object> defaultConfig;
 	
 	public static boolean debugging = false;
@@ -91,6 +112,259 @@ public final class Configuration {
 		Configuration.getChangesFreq = getChangesFreq;
 	}
 
+	/**
+	 * returns whether messages are persisted in journal and survive restarts
+	 * 
+	 * @return true if durable
+	 */
+	public static boolean isMessageDurability() {
+		return messageDurability;
+	}
+
+	public static void setMessageDurability(boolean messageDurability) {
+		Configuration.messageDurability = messageDurability;
+	}
+
+	public static String getJournalType() {
+		return journalType;
+	}
+
+	public static void setJournalType(String journalType) {
+		Configuration.journalType = journalType;
+	}
+
+	public static int getJournalBufferSize() {
+		return journalBufferSize;
+	}
+
+	public static void setJournalBufferSize(int journalBufferSize) {
+		Configuration.journalBufferSize = journalBufferSize;
+	}
+
+	/**
+	 * returns how long journal waits to group writes in one sync
+	 * 
+	 * @return timeout in microseconds
+	 */
+	public static int getJournalBufferTimeout() {
+		return journalBufferTimeout;
+	}
+
+	public static void setJournalBufferTimeout(int journalBufferTimeout) {
+		Configuration.journalBufferTimeout = journalBufferTimeout;
+	}
+
+	public static int getJournalFileSize() {
+		return journalFileSize;
+	}
+
+	public static void setJournalFileSize(int journalFileSize) {
+		Configuration.journalFileSize = journalFileSize;
+	}
+
+	/**
+	 * returns address message bus listens on for other ioFabric instances
+	 * 
+	 * @return host name or ip address
+	 */
+	public static String getMessageBusHost() {
+		return messageBusHost;
+	}
+
+	public static void setMessageBusHost(String messageBusHost) {
+		Configuration.messageBusHost = messageBusHost;
+	}
+
+	public static int getMessageBusPort() {
+		return messageBusPort;
+	}
+
+	public static void setMessageBusPort(int messageBusPort) {
+		Configuration.messageBusPort = messageBusPort;
+	}
+
+	/**
+	 * returns initial size of client buffer of each route consumer
+	 * 
+	 * @return window size in bytes
+	 */
+	public static int getConsumerWindowSize() {
+		return consumerWindowSize;
+	}
+
+	public static void setConsumerWindowSize(int consumerWindowSize) {
+		Configuration.consumerWindowSize = consumerWindowSize;
+	}
+
+	/**
+	 * returns upper bound of adaptive consumer window
+	 * 
+	 * @return window size in bytes
+	 */
+	public static int getMaxConsumerWindowSize() {
+		return maxConsumerWindowSize;
+	}
+
+	public static void setMaxConsumerWindowSize(int maxConsumerWindowSize) {
+		Configuration.maxConsumerWindowSize = maxConsumerWindowSize;
+	}
+
+	/**
+	 * returns whether consumer windows of receivers follow their receive rate
+	 * 
+	 * @return true if adaptive
+	 */
+	public static boolean isAdaptiveConsumerWindow() {
+		return adaptiveConsumerWindow;
+	}
+
+	public static void setAdaptiveConsumerWindow(boolean adaptiveConsumerWindow) {
+		Configuration.adaptiveConsumerWindow = adaptiveConsumerWindow;
+	}
+
+	/**
+	 * returns fixed consumer window of a receiver, which is not adapted to its receive rate
+	 * 
+	 * @param receiver - ID of receiver element
+	 * @return window size in bytes, null if receiver has no override
+	 */
+	public static Integer getConsumerWindowOverride(String receiver) {
+		return consumerWindowOverrides.get(receiver);
+	}
+
+	/**
+	 * sets fixed consumer windows of receivers
+	 * format is "receiverId:bytes,receiverId:bytes"
+	 * 
+	 * @param overrides - list of overrides
+	 */
+	public static void setConsumerWindowOverrides(String overrides) {
+		Map<String, Integer> result = new HashMap<>();
+		for (String override : overrides.split(",")) {
+			if (override.trim().isEmpty())
+				continue;
+			int separator = override.lastIndexOf(':');
+			if (separator < 0)
+				throw new IllegalArgumentException("invalid consumer window override " + override);
+			result.put(override.substring(0, separator).trim(), Integer.parseInt(override.substring(separator + 1).trim()));
+		}
+		Configuration.consumerWindowOverrides = Collections.unmodifiableMap(result);
+	}
+
+	/**
+	 * returns maximum rate of each route consumer
+	 * 
+	 * @return messages per second, -1 if not limited
+	 */
+	public static int getConsumerMaxRate() {
+		return consumerMaxRate;
+	}
+
+	public static void setConsumerMaxRate(int consumerMaxRate) {
+		Configuration.consumerMaxRate = consumerMaxRate;
+	}
+
+	/**
+	 * returns credits producers request from server at once
+	 * 
+	 * @return window size in bytes
+	 */
+	public static int getProducerWindowSize() {
+		return producerWindowSize;
+	}
+
+	public static void setProducerWindowSize(int producerWindowSize) {
+		Configuration.producerWindowSize = producerWindowSize;
+	}
+
+	/**
+	 * returns maximum rate of each publisher
+	 * 
+	 * @return messages per second, -1 if not limited
+	 */
+	public static int getProducerMaxRate() {
+		return producerMaxRate;
+	}
+
+	public static void setProducerMaxRate(int producerMaxRate) {
+		Configuration.producerMaxRate = producerMaxRate;
+	}
+
+	/**
+	 * returns size of thread pool delivering messages to consumers
+	 * 
+	 * @return number of threads, 0 to size by number of processors
+	 */
+	public static int getClientThreadPoolSize() {
+		return clientThreadPoolSize;
+	}
+
+	public static void setClientThreadPoolSize(int clientThreadPoolSize) {
+		Configuration.clientThreadPoolSize = clientThreadPoolSize;
+	}
+
+	/**
+	 * returns when archived messages are forced to disk
+	 * none leaves it to operating system, periodic forces every sync interval,
+	 * batch forces after each group of messages written
+	 * 
+	 * @return {@link ArchiveDurability}
+	 */
+	public static ArchiveDurability getArchiveDurability() {
+		return archiveDurability;
+	}
+
+	public static void setArchiveDurability(ArchiveDurability archiveDurability) {
+		Configuration.archiveDurability = archiveDurability;
+	}
+
+	public static int getArchiveSyncInterval() {
+		return archiveSyncInterval;
+	}
+
+	public static void setArchiveSyncInterval(int archiveSyncInterval) {
+		Configuration.archiveSyncInterval = archiveSyncInterval;
+	}
+
+	/**
+	 * returns time after which buffered archive data is written to files
+	 * 
+	 * @return interval in milliseconds
+	 */
+	public static int getArchiveFlushInterval() {
+		return archiveFlushInterval;
+	}
+
+	public static void setArchiveFlushInterval(int archiveFlushInterval) {
+		Configuration.archiveFlushInterval = archiveFlushInterval;
+	}
+
+	/**
+	 * returns size of archive data buffer of each publisher, written to file when full
+	 * 
+	 * @return size in bytes
+	 */
+	public static int getArchiveBufferSize() {
+		return archiveBufferSize;
+	}
+
+	public static void setArchiveBufferSize(int archiveBufferSize) {
+		Configuration.archiveBufferSize = archiveBufferSize;
+	}
+
+	/**
+	 * returns number of publishes waiting for archive writer, after which messages are not archived
+	 * 
+	 * @return queue size
+	 */
+	public static int getArchiveQueueSize() {
+		return archiveQueueSize;
+	}
+
+	public static void setArchiveQueueSize(int archiveQueueSize) {
+		Configuration.archiveQueueSize = archiveQueueSize;
+	}
+
 	public static void resetToDefault() throws Exception {
 		setConfig(defaultConfig, true);
 	}
@@ -130,6 +404,31 @@ public final class Configuration {
 
 	}
 
+	/**
+	 * returns XML node value, adds node with default value if not exists
+	 * 
+	 * @param name - node name
+	 * @param defaultValue - default value of node
+	 * @return node value
+	 * @throws Exception
+	 */
+	private static String getOptionalNode(String name, String defaultValue) throws Exception {
+		try {
+			return getNode(name);
+		} catch (ConfigurationItemException e) {
+			Element el = configFile.createElement(name);
+			el.appendChild(configFile.createTextNode(defaultValue));
+			configElement.appendChild(el);
+
+			DOMSource source = new DOMSource(configFile);
+			TransformerFactory transformerFactory = TransformerFactory.newInstance();
+			Transformer transformer = transformerFactory.newTransformer();
+			StreamResult result = new StreamResult("/etc/iofabric/config.xml");
+			transformer.transform(source, result);
+			return defaultValue;
+		}
+	}
+
 	public static HashMap<String, String> getOldNodeValuesForParameters(Set<String> parameters) throws ConfigurationItemException{
 
 		HashMap<String, String> result = new HashMap<String, String>();
@@ -446,6 +745,30 @@ public final class Configuration {
 	        StreamResult result = new StreamResult("/etc/iofabric/config.xml");
 	        transformer.transform(source, result);
 		}
+		setMessageDurability(getOptionalNode("message_durability", "off").trim().equalsIgnoreCase("on"));
+		setJournalType(getOptionalNode("journal_type", "NIO").trim().toUpperCase());
+		setJournalBufferSize(Integer.parseInt(getOptionalNode("journal_buffer_size", "501760").trim()));
+		setJournalBufferTimeout(Integer.parseInt(getOptionalNode("journal_buffer_timeout", "3333").trim()));
+		setJournalFileSize(Integer.parseInt(getOptionalNode("journal_file_size", "10485760").trim()));
+		setMessageBusHost(getOptionalNode("message_bus_host", "localhost").trim());
+		setMessageBusPort(Integer.parseInt(getOptionalNode("message_bus_port", "55555").trim()));
+		setConsumerWindowSize(Integer.parseInt(getOptionalNode("consumer_window_size", "1048576").trim()));
+		setMaxConsumerWindowSize(Integer.parseInt(getOptionalNode("max_consumer_window_size", "8388608").trim()));
+		setAdaptiveConsumerWindow(getOptionalNode("adaptive_consumer_window", "on").trim().equalsIgnoreCase("on"));
+		setConsumerWindowOverrides(getOptionalNode("consumer_window_overrides", ""));
+		setConsumerMaxRate(Integer.parseInt(getOptionalNode("consumer_max_rate", "-1").trim()));
+		setProducerWindowSize(Integer.parseInt(getOptionalNode("producer_window_size", "65536").trim()));
+		setProducerMaxRate(Integer.parseInt(getOptionalNode("producer_max_rate", "-1").trim()));
+		setClientThreadPoolSize(Integer.parseInt(getOptionalNode("client_thread_pool_size", "0").trim()));
+		try {
+			setArchiveDurability(ArchiveDurability.valueOf(getOptionalNode("archive_durability", "none").trim().toUpperCase()));
+		} catch (IllegalArgumentException e) {
+			setArchiveDurability(ArchiveDurability.NONE);
+		}
+		setArchiveSyncInterval(Integer.parseInt(getOptionalNode("archive_sync_interval", "1000").trim()));
+		setArchiveFlushInterval(Integer.parseInt(getOptionalNode("archive_flush_interval", "200").trim()));
+		setArchiveBufferSize(Integer.parseInt(getOptionalNode("archive_buffer_size", "65536").trim()));
+		setArchiveQueueSize(Integer.parseInt(getOptionalNode("archive_queue_size", "10000").trim()));
 	}
 
 	public static String getAccessToken() {
@@ -596,6 +919,16 @@ public final class Configuration {
 						String.format("Log Disk Limit            : %.2f GiB\n", logDiskLimit) + 
 						"Status Update Frequency   : " + statusUpdateFreq + "\n" + 
 						"Get Changes Frequency     : " + getChangesFreq + "\n" + 
+						"Message Durability        : " + (messageDurability ? "on (" + journalType + " journal)" : "off") + "\n" + 
+						"Message Bus Address       : " + messageBusHost + ":" + messageBusPort + "\n" + 
+						"Consumer Window           : " + consumerWindowSize + " bytes" 
+							+ (adaptiveConsumerWindow ? " (adaptive, up to " + maxConsumerWindowSize + " bytes)" : "") 
+							+ (consumerWindowOverrides.isEmpty() ? "" : ", " + consumerWindowOverrides.size() + " overridden") + "\n" + 
+						"Producer Window           : " + producerWindowSize + " bytes\n" + 
+						"Archive Durability        : " + archiveDurability.name().toLowerCase() 
+							+ (archiveDurability == ArchiveDurability.PERIODIC ? " (" + archiveSyncInterval + " ms)" : "") + "\n" + 
+						"Consumer/Producer Rate    : " + (consumerMaxRate < 0 ? "unlimited" : consumerMaxRate + " msg/s") 
+							+ " / " + (producerMaxRate < 0 ? "unlimited" : producerMaxRate + " msg/s") + "\n" + 
 						"Log File Directory        : " + logDiskDirectory + "\n" + 
 						String.format("Log Rolling File Count    : %d", logFileCount));
 		return result.toString();